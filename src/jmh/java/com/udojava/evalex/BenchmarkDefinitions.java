@@ -0,0 +1,145 @@
+/*
+ * Copyright 2018 Yisin Lin
+ * 
+ * https://github.com/ethancommitpush
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package com.udojava.evalex;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.List;
+import java.util.Map;
+
+import idv.ethancommitpush.exbuilder.ExpNode;
+import idv.ethancommitpush.exbuilder.ExpNode.ExpNodeType;
+import idv.ethancommitpush.exbuilder.ExpressionBuilder;
+import idv.ethancommitpush.exbuilder.TreeMapBuilder;
+
+/** The variables, operators and functions shared by the benchmarks, modelled after TestExpression */
+public class BenchmarkDefinitions {
+
+	public static final MathContext MC = new MathContext(10, RoundingMode.HALF_EVEN);
+
+	/** Variables <code>a0</code> to <code>a{count-1}</code> with the values 1.5, 2.5, ... */
+	public static Map<String, ExpNode> variables(int count) {
+		TreeMapBuilder<String, ExpNode> builder = new TreeMapBuilder<String, ExpNode>(String.CASE_INSENSITIVE_ORDER);
+		for (int i = 0; i < count; i += 1) {
+			builder.add("a" + i, new ExpNode(new BigDecimal(i).add(new BigDecimal("1.5"))));
+		}
+		return builder.build();
+	}
+
+	/** <code>a0+a1*a2-a3+...</code> over the given number of variables */
+	public static String variableExpression(int count) {
+		String[] operators = {"+", "*", "-"};
+		StringBuilder sb = new StringBuilder("a0");
+		for (int i = 1; i < count; i += 1) {
+			sb.append(operators[i % operators.length]).append('a').append(i);
+		}
+		return sb.toString();
+	}
+
+	public static Map<String, Operator> operators() {
+		return (new TreeMapBuilder<String, Operator>(String.CASE_INSENSITIVE_ORDER))
+				.add("+", new Operator("+", 20, true) {
+					@Override
+					public ExpNode eval(ExpNode v1, ExpNode v2) {
+						if (v1.getType() == ExpNodeType.NUMERIC && v2.getType() == ExpNodeType.NUMERIC) {
+							return v1.add(v2);
+						} else {
+							return v1.append(v2);
+						}
+					}
+				})
+				.add("-", new Operator("-", 20, true) {
+					@Override
+					public ExpNode eval(ExpNode v1, ExpNode v2) {
+						return v1.subtract(v2);
+					}
+				})
+				.add("*", new Operator("*", 30, true) {
+					@Override
+					public ExpNode eval(ExpNode v1, ExpNode v2) {
+						return v1.multiply(v2);
+					}
+				})
+				.add("/", new Operator("/", 30, true) {
+					@Override
+					public ExpNode eval(ExpNode v1, ExpNode v2) {
+						return v1.divide(v2, MC);
+					}
+				})
+				.add("-u", new UnaryOperator("-u", 60, false) {
+					@Override
+					public ExpNode evalUnary(ExpNode v1) {
+						return v1.multiply(new ExpNode(-1));
+					}
+				})
+				.build();
+	}
+
+	public static Map<String, LazyFunction> functions() {
+		return (new TreeMapBuilder<String, LazyFunction>(String.CASE_INSENSITIVE_ORDER))
+				.add("ROUND", new Function("ROUND", 1) {
+					@Override
+					public ExpNode eval(List<ExpNode> parameters) {
+						return parameters.get(0).round(MC);
+					}
+				})
+				.add("HEX", new Function("HEX", 1) {
+					@Override
+					public ExpNode eval(List<ExpNode> parameters) {
+						return ExpNode.genTextExpNode(Integer.toHexString(parameters.get(0).getNumeric().intValue()));
+					}
+				})
+				.add("REPLACE", new Function("REPLACE", 3) {
+					@Override
+					public ExpNode eval(List<ExpNode> parameters) {
+						return ExpNode.genTextExpNode(parameters.get(0).getText()
+								.replaceAll(parameters.get(1).getText(), parameters.get(2).getText()));
+					}
+				})
+				.add("MAX", new Function("MAX", -1) {
+					@Override
+					public ExpNode eval(List<ExpNode> parameters) {
+						ExpNode max = parameters.get(0);
+						for (ExpNode p : parameters) {
+							if (p.getNumeric().compareTo(max.getNumeric()) > 0) {
+								max = p;
+							}
+						}
+						return max;
+					}
+				})
+				.build();
+	}
+
+	public static ExpressionBuilder builder(Map<String, ExpNode> variables) {
+		return (new ExpressionBuilder())
+				.setMathContext(MC)
+				.setVariableMap(variables)
+				.setOperatorMap(operators())
+				.setFunctionMap(functions());
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2018 Yisin Lin
+ * 
+ * https://github.com/ethancommitpush
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package com.udojava.evalex;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import idv.ethancommitpush.exbuilder.ExpNode;
+import idv.ethancommitpush.exbuilder.ExpressionBuilder;
+
+/** Evaluation of new and of already compiled expressions. Run with <code>-prof gc</code> for allocation rates */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EvalBenchmark {
+
+	private static final String MIXED = "(1+2)+','+(-3*4)+','+(7/8)+','+a1";
+	private static final String FUNCTIONS = "round(max(a1, a2, 3.5)/7)+hex(255)+replace('192.168.0.1','0','633')+round(a1*a2)";
+
+	@Param({"10", "100"})
+	public int variableCount;
+
+	private ExpressionBuilder builder;
+	private Map<String, ExpNode> variables;
+	private String variableSource;
+	private Expression mixed;
+	private Expression variableHeavy;
+	private Expression functionHeavy;
+
+	@Setup
+	public void setUp() throws Exception {
+		variables = BenchmarkDefinitions.variables(variableCount);
+		builder = BenchmarkDefinitions.builder(variables);
+		variableSource = BenchmarkDefinitions.variableExpression(variableCount);
+		mixed = builder.setExpression(MIXED).build().compile();
+		variableHeavy = builder.setExpression(variableSource).build().compile();
+		functionHeavy = builder.setExpression(FUNCTIONS).build().compile();
+	}
+
+	/** Parse, validate and evaluate, as for an expression evaluated only once */
+	@Benchmark
+	public ExpNode firstEval() throws Exception {
+		return builder.setExpression(MIXED).build().eval();
+	}
+
+	@Benchmark
+	public ExpNode repeatedEval() throws Exception {
+		return mixed.eval();
+	}
+
+	@Benchmark
+	public ExpNode variableHeavy() throws Exception {
+		return variableHeavy.eval();
+	}
+
+	@Benchmark
+	public ExpNode variableHeavyFirstEval() throws Exception {
+		return builder.setExpression(variableSource).build().eval();
+	}
+
+	@Benchmark
+	public ExpNode functionHeavy() throws Exception {
+		return functionHeavy.eval();
+	}
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright 2018 Yisin Lin
+ * 
+ * https://github.com/ethancommitpush
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package com.udojava.evalex;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import idv.ethancommitpush.exbuilder.ExpNode;
+import idv.ethancommitpush.exbuilder.ExpressionBuilder;
+import idv.ethancommitpush.exbuilder.LatencyHistogram;
+
+/**
+ * A load harness driving a synthetic rule corpus from many threads for a fixed duration, all
+ * threads sharing the same variable, operator and function maps. Prints one JSON object with
+ * the throughput, the latency percentiles and the GC activity of the measured period.
+ * <pre>
+ * java -cp target/benchmarks.jar com.udojava.evalex.LoadHarness --threads=64 --virtual=true --duration=30
+ * </pre>
+ * Options (with defaults): <code>--threads=4 --virtual=false --duration=10 --warmup=5 --rules=1000
+ * --size=20 --variables=50 --functionMix=0.2 --buildRatio=0.1 --seed=42</code>.
+ * <code>buildRatio</code> is the share of operations that build and compile the rule before
+ * evaluating it, the other operations evaluate an already compiled rule.
+ */
+public class LoadHarness {
+
+	private final Map<String, String> options = new LinkedHashMap<String, String>();
+
+	private final int threads;
+	private final boolean virtual;
+	private final int durationSeconds;
+	private final int warmupSeconds;
+	private final int rules;
+	private final int size;
+	private final int variables;
+	private final double functionMix;
+	private final double buildRatio;
+	private final long seed;
+
+	private volatile boolean recording;
+	private volatile boolean stopped;
+
+	public LoadHarness(String[] args) {
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (!arg.startsWith("--") || eq < 0) {
+				throw new IllegalArgumentException("Expected --name=value, got " + arg);
+			}
+			options.put(arg.substring(2, eq), arg.substring(eq + 1));
+		}
+		threads = Integer.parseInt(option("threads", "4"));
+		virtual = Boolean.parseBoolean(option("virtual", "false"));
+		durationSeconds = Integer.parseInt(option("duration", "10"));
+		warmupSeconds = Integer.parseInt(option("warmup", "5"));
+		rules = Integer.parseInt(option("rules", "1000"));
+		size = Integer.parseInt(option("size", "20"));
+		variables = Integer.parseInt(option("variables", "50"));
+		functionMix = Double.parseDouble(option("functionMix", "0.2"));
+		buildRatio = Double.parseDouble(option("buildRatio", "0.1"));
+		seed = Long.parseLong(option("seed", "42"));
+	}
+
+	private String option(String name, String defaultValue) {
+		String value = options.get(name);
+		return value != null ? value : defaultValue;
+	}
+
+	public static void main(String[] args) throws Exception {
+		System.out.println(new LoadHarness(args).run());
+	}
+
+	/** Generate the corpus, drive it and return the report as JSON */
+	public String run() throws Exception {
+		Map<String, ExpNode> variableMap = BenchmarkDefinitions.variables(variables);
+		Map<String, Operator> operatorMap = BenchmarkDefinitions.operators();
+		Map<String, LazyFunction> functionMap = BenchmarkDefinitions.functions();
+		ExpressionBuilder builder = new ExpressionBuilder()
+				.setMathContext(BenchmarkDefinitions.MC)
+				.setVariableMap(variableMap)
+				.setOperatorMap(operatorMap)
+				.setFunctionMap(functionMap);
+		List<String> corpus = corpus();
+		List<Expression> compiled = builder.compileAll(corpus).getExpressions();
+		if (compiled.size() != corpus.size()) {
+			throw new IllegalStateException("Generated corpus does not compile");
+		}
+
+		Worker[] workers = new Worker[threads];
+		CountDownLatch done = new CountDownLatch(threads);
+		for (int i = 0; i < threads; i += 1) {
+			workers[i] = new Worker(corpus, compiled, variableMap, operatorMap, functionMap, seed + i, done);
+			start(workers[i]);
+		}
+
+		Thread.sleep(warmupSeconds * 1000L);
+		long gcCount = gcCount();
+		long gcMillis = gcMillis();
+		long start = System.nanoTime();
+		recording = true;
+		Thread.sleep(durationSeconds * 1000L);
+		recording = false;
+		long elapsed = System.nanoTime() - start;
+		gcCount = gcCount() - gcCount;
+		gcMillis = gcMillis() - gcMillis;
+		stopped = true;
+		done.await();
+
+		LatencyHistogram latencies = new LatencyHistogram(6);
+		long errors = 0;
+		for (Worker worker : workers) {
+			latencies.add(worker.latencies);
+			errors += worker.errors;
+		}
+		return report(latencies, errors, elapsed, gcCount, gcMillis);
+	}
+
+	/** Rules of <code>size</code> terms joined by <code>+ - *</code>, terms being variables, literals or function calls */
+	List<String> corpus() {
+		Random random = new Random(seed);
+		String[] operators = {"+", "-", "*"};
+		List<String> corpus = new ArrayList<String>(rules);
+		for (int r = 0; r < rules; r += 1) {
+			StringBuilder sb = new StringBuilder();
+			for (int t = 0; t < size; t += 1) {
+				if (t > 0) {
+					sb.append(operators[random.nextInt(operators.length)]);
+				}
+				String variable = "a" + random.nextInt(variables);
+				if (random.nextDouble() < functionMix) {
+					if (random.nextBoolean()) {
+						sb.append("round(").append(variable).append("/").append(random.nextInt(9) + 1).append(")");
+					} else {
+						sb.append("max(").append(variable).append(",a").append(random.nextInt(variables))
+								.append(",").append(random.nextInt(100)).append(")");
+					}
+				} else if (random.nextInt(4) == 0) {
+					sb.append(random.nextInt(1000)).append('.').append(random.nextInt(100));
+				} else {
+					sb.append(variable);
+				}
+			}
+			corpus.add(sb.toString());
+		}
+		return corpus;
+	}
+
+	/** Start a platform thread, or a virtual thread if requested and supported by the JDK */
+	private void start(Runnable worker) throws Exception {
+		if (virtual) {
+			try {
+				Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+				Method unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+				((Thread) unstarted.invoke(builder, worker)).start();
+				return;
+			} catch (NoSuchMethodException e) {
+				throw new IllegalStateException("Virtual threads are not supported by Java " 
+						+ System.getProperty("java.version"));
+			}
+		}
+		Thread thread = new Thread(worker, "load-" + worker.hashCode());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private class Worker implements Runnable {
+		private final List<String> corpus;
+		private final List<Expression> compiled;
+		private final Map<String, ExpNode> variableMap;
+		private final Map<String, Operator> operatorMap;
+		private final Map<String, LazyFunction> functionMap;
+		private final Random random;
+		private final CountDownLatch done;
+		private final LatencyHistogram latencies = new LatencyHistogram(6);
+		private long errors;
+
+		Worker(List<String> corpus, List<Expression> compiled, Map<String, ExpNode> variableMap
+				, Map<String, Operator> operatorMap, Map<String, LazyFunction> functionMap, long seed, CountDownLatch done) {
+			this.corpus = corpus;
+			this.compiled = compiled;
+			this.variableMap = variableMap;
+			this.operatorMap = operatorMap;
+			this.functionMap = functionMap;
+			this.random = new Random(seed);
+			this.done = done;
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (!stopped) {
+					int rule = random.nextInt(corpus.size());
+					boolean build = random.nextDouble() < buildRatio;
+					long start = System.nanoTime();
+					try {
+						Expression expression = build 
+								? new Expression(corpus.get(rule), BenchmarkDefinitions.MC, variableMap, operatorMap, functionMap)
+								: compiled.get(rule);
+						expression.eval();
+					} catch (Exception e) {
+						errors++;
+					}
+					if (recording) {
+						latencies.record(System.nanoTime() - start);
+					}
+				}
+			} finally {
+				done.countDown();
+			}
+		}
+	}
+
+	private String report(LatencyHistogram latencies, long errors, long elapsedNanos, long gcCount, long gcMillis) {
+		StringBuilder sb = new StringBuilder("{");
+		sb.append("\"threads\":").append(threads).append(',');
+		sb.append("\"virtual\":").append(virtual).append(',');
+		sb.append("\"durationSeconds\":").append(durationSeconds).append(',');
+		sb.append("\"warmupSeconds\":").append(warmupSeconds).append(',');
+		sb.append("\"rules\":").append(rules).append(',');
+		sb.append("\"size\":").append(size).append(',');
+		sb.append("\"variables\":").append(variables).append(',');
+		sb.append("\"functionMix\":").append(functionMix).append(',');
+		sb.append("\"buildRatio\":").append(buildRatio).append(',');
+		sb.append("\"seed\":").append(seed).append(',');
+		sb.append("\"javaVersion\":\"").append(System.getProperty("java.version")).append("\",");
+		sb.append("\"operations\":").append(latencies.getCount()).append(',');
+		sb.append("\"errors\":").append(errors).append(',');
+		sb.append("\"throughputPerSecond\":")
+				.append(String.format(Locale.ROOT, "%.1f", latencies.getCount() * 1e9 / elapsedNanos)).append(',');
+		sb.append("\"latencyNanos\":{")
+				.append("\"mean\":").append(latencies.getMean()).append(',')
+				.append("\"p50\":").append(latencies.getPercentile(50)).append(',')
+				.append("\"p99\":").append(latencies.getPercentile(99)).append(',')
+				.append("\"p999\":").append(latencies.getPercentile(99.9)).append(',')
+				.append("\"max\":").append(latencies.getMax()).append("},");
+		sb.append("\"gc\":{\"collections\":").append(gcCount).append(",\"timeMillis\":").append(gcMillis).append("}");
+		return sb.append('}').toString();
+	}
+
+	private static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, gc.getCollectionCount());
+		}
+		return count;
+	}
+
+	private static long gcMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			millis += Math.max(0, gc.getCollectionTime());
+		}
+		return millis;
+	}
+}
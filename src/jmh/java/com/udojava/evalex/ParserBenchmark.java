@@ -0,0 +1,87 @@
+/*
+ * Copyright 2018 Yisin Lin
+ * 
+ * https://github.com/ethancommitpush
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package com.udojava.evalex;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import idv.ethancommitpush.exbuilder.ExpressionBuilder;
+
+/** Throughput of the tokenizer and of the shunting yard parser, without evaluation */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+
+	@Param({"(1+2)+','+(-3*4)+','+(7/8)+','+a1", "round(a1*a2)+hex(255)+replace('192.168.0.1','0','633')"})
+	public String source;
+
+	private Expression expression;
+
+	/** The definitions, built once so that compile() measures only the compilation */
+	private ExpressionBuilder builder;
+
+	@Setup
+	public void setUp() {
+		builder = BenchmarkDefinitions.builder(BenchmarkDefinitions.variables(3)).setExpression(source);
+		expression = builder.build();
+	}
+
+	@Benchmark
+	public void tokenizer(Blackhole bh) {
+		Expression.Tokenizer tokenizer = expression.new Tokenizer(source);
+		while (tokenizer.hasNext()) {
+			bh.consume(tokenizer.next());
+		}
+	}
+
+	@Benchmark
+	public List<Expression.Token> shuntingYard() {
+		return expression.shuntingYard(source);
+	}
+
+	/** Parsing and validation, as done on the first evaluation of an expression */
+	@Benchmark
+	public Expression compile() {
+		return builder.build().compile();
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2018 Yisin Lin
+ * 
+ * https://github.com/ethancommitpush
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package idv.ethancommitpush.exbuilder;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** The arithmetic of {@link ExpNode}, on integral and on fractional operands */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExpNodeBenchmark {
+
+	private final MathContext mc = new MathContext(10, RoundingMode.HALF_EVEN);
+	private final ExpNode integral1 = new ExpNode(1234567);
+	private final ExpNode integral2 = new ExpNode(89);
+	private final ExpNode fraction1 = new ExpNode(new BigDecimal("1234.5678"));
+	private final ExpNode fraction2 = new ExpNode(new BigDecimal("0.125"));
+	private final ExpNode pi = new ExpNode(new BigDecimal("3.14159265358979323846264338327950288419716939937510"));
+	private final ExpNode fixed1 = ExpNode.fixed(12345678, 4);
+	private final ExpNode fixed2 = ExpNode.fixed(125, 3);
+	private final ExpNode text1 = ExpNode.genTextExpNode("192.168.");
+	private final ExpNode text2 = ExpNode.genTextExpNode("0.1");
+
+	@Benchmark
+	public ExpNode addIntegral() {
+		return integral1.add(integral2);
+	}
+
+	@Benchmark
+	public ExpNode addFraction() {
+		return fraction1.add(fraction2);
+	}
+
+	@Benchmark
+	public ExpNode subtractFraction() {
+		return fraction1.subtract(fraction2);
+	}
+
+	@Benchmark
+	public ExpNode multiplyIntegral() {
+		return integral1.multiply(integral2);
+	}
+
+	@Benchmark
+	public ExpNode multiplyFraction() {
+		return fraction1.multiply(fraction2, mc);
+	}
+
+	@Benchmark
+	public ExpNode addFixed() {
+		return fixed1.add(fixed2, mc);
+	}
+
+	@Benchmark
+	public ExpNode multiplyFixed() {
+		return fixed1.multiply(fixed2, mc);
+	}
+
+	@Benchmark
+	public ExpNode divideFraction() {
+		return fraction1.divide(fraction2, mc);
+	}
+
+	@Benchmark
+	public ExpNode round() {
+		return pi.round(mc);
+	}
+
+	/** Concatenation including reading the text, as joining long texts is deferred until then */
+	@Benchmark
+	public String append() {
+		return text1.append(text2).getText();
+	}
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2018 Yisin Lin
+ * 
+ * https://github.com/ethancommitpush
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package com.udojava.evalex;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Map;
+
+import idv.ethancommitpush.exbuilder.ExpNode;
+import idv.ethancommitpush.exbuilder.ExpNode.ExpNodeType;
+import idv.ethancommitpush.exbuilder.Normalization;
+
+/**
+ * An incremental aggregate of the values of an expression over a stream of records, see
+ * {@link Expression#aggregate}, or of values added directly. An aggregate keeps a constant
+ * amount of state, <code>null</code> values are skipped. Results are normalized like the
+ * arithmetic of {@link ExpNode}, with the {@link Expression#getNormalization() normalization} of
+ * the expression, or {@link Normalization#CANONICAL_SCALE} if none. Aggregates are not thread safe, parallel
+ * streams aggregate into one {@link #partial()} per thread and {@link #merge} them.
+ */
+public class Aggregate {
+
+	/** The aggregate function. */
+	public enum Kind {
+		/** The number of values. */
+		COUNT,
+		/** The sum of the values, <code>null</code> if there are none. */
+		SUM,
+		/** The mean of the values, <code>null</code> if there are none. */
+		AVG,
+		/** The smallest value, <code>null</code> if there are none. */
+		MIN,
+		/** The largest value, <code>null</code> if there are none. */
+		MAX
+	}
+
+	private final Kind kind;
+	private final Expression expression;
+	private final MathContext mc;
+	private long count;
+	/** The exact sum of the values for SUM and AVG, the smallest or largest value for MIN and MAX. */
+	private BigDecimal value;
+
+	/**
+	 * Creates an aggregate of values added with {@link #add(ExpNode)}.
+	 * @param kind The aggregate function.
+	 * @param mc The {@link MathContext} to round the result with, <code>null</code> not to round
+	 *        it, but to divide an average with {@link MathContext#DECIMAL128}.
+	 */
+	public Aggregate(Kind kind, MathContext mc) {
+		this(kind, null, mc);
+	}
+
+	/**
+	 * @param kind The aggregate function.
+	 * @param expression The expression to evaluate for each record, <code>null</code> if none.
+	 * @param mc The {@link MathContext} to round the result with.
+	 */
+	Aggregate(Kind kind, Expression expression, MathContext mc) {
+		this.kind = kind;
+		this.expression = expression;
+		this.mc = mc;
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	/** @return The number of values aggregated, not counting <code>null</code> values. */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Evaluates the expression of the aggregate for a record and adds the result.
+	 * @param record The variables of the record.
+	 * @return This aggregate.
+	 * @throws Exception If the evaluation fails.
+	 * @throws IllegalStateException If the aggregate has no expression.
+	 */
+	public Aggregate add(Map<String, ExpNode> record) throws Exception {
+		if (expression == null) {
+			throw new IllegalStateException("The aggregate has no expression to evaluate for records");
+		}
+		return add(expression.eval(record, EvaluationContext.current()));
+	}
+
+	/**
+	 * Adds a value.
+	 * @param value The value, skipped if <code>null</code>.
+	 * @return This aggregate.
+	 * @throws ExpressionException If the value is no number.
+	 */
+	public Aggregate add(ExpNode value) {
+		if (value == null) {
+			return this;
+		}
+		if (value.getType() != ExpNodeType.NUMERIC) {
+			throw new ExpressionException("Cannot aggregate " + value.getText() + " with " + kind);
+		}
+		accumulate(1, value.getNumeric());
+		return this;
+	}
+
+	/**
+	 * Adds the values of another aggregate of the same function, e.g. a partial aggregate of
+	 * another thread.
+	 * @param other The other aggregate, which is not changed.
+	 * @return This aggregate.
+	 */
+	public Aggregate merge(Aggregate other) {
+		if (other.kind != kind) {
+			throw new IllegalArgumentException("Cannot merge " + other.kind + " into " + kind);
+		}
+		if (other.count > 0) {
+			accumulate(other.count, other.value);
+		}
+		return this;
+	}
+
+	private void accumulate(long n, BigDecimal v) {
+		switch(kind) {
+			case COUNT:
+				break;
+			case SUM:
+			case AVG:
+				value = count == 0 ? v : value.add(v);
+				break;
+			case MIN:
+				value = count == 0 || v.compareTo(value) < 0 ? v : value;
+				break;
+			case MAX:
+				value = count == 0 || v.compareTo(value) > 0 ? v : value;
+				break;
+		}
+		count += n;
+	}
+
+	/**
+	 * @return An empty aggregate of the same function and expression, to merge into this one later.
+	 */
+	public Aggregate partial() {
+		return new Aggregate(kind, expression, mc);
+	}
+
+	/** Removes all values. */
+	public void reset() {
+		count = 0;
+		value = null;
+	}
+
+	/**
+	 * @return The result of the aggregate function over the values added so far.
+	 */
+	public ExpNode getResult() {
+		if (kind == Kind.COUNT) {
+			return new ExpNode(BigDecimal.valueOf(count));
+		}
+		if (count == 0) {
+			return null;
+		}
+		BigDecimal result = kind == Kind.AVG
+				? value.divide(BigDecimal.valueOf(count), mc != null ? mc : MathContext.DECIMAL128) : value;
+		Normalization normalization = expression != null ? expression.getNormalization() : Normalization.CANONICAL_SCALE;
+		return new ExpNode(normalization.normalize(mc != null ? result.round(mc) : result));
+	}
+
+	@Override
+	public String toString() {
+		return kind + "=" + getResult();
+	}
+}
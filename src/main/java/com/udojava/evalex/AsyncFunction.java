@@ -0,0 +1,113 @@
+/*
+ * Copyright 2012-2018 Udo Klimaschewski
+ * 
+ * http://UdoJava.com/
+ * http://about.me/udo.klimaschewski
+ *
+ * Derivative work: ExBuilder (https://github.com/ethancommitpush)
+ * Modifications Copyright 2018 Yisin Lin
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package com.udojava.evalex;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import idv.ethancommitpush.exbuilder.ExpNode;
+
+/**
+ * A function whose result is computed asynchronously, e.g. a remote lookup. With
+ * {@link Expression#evalAsync()}, the parameters of a call are evaluated concurrently and the
+ * call is composed with the rest of the expression without blocking. With
+ * {@link Expression#eval()}, the calling thread waits for the result.
+ */
+public abstract class AsyncFunction extends LazyFunction {
+
+	/** The executor used when none is given, see {@link #getDefaultExecutor()}. */
+	private static final Executor DEFAULT_EXECUTOR = createDefaultExecutor();
+
+	public AsyncFunction(String name, int numParams) {
+		super(name, numParams);
+	}
+
+	public LazyNumber lazyEval(final List<LazyNumber> lazyParams) {
+		return new LazyNumber() {
+
+			public ExpNode eval() throws Exception {
+				List<ExpNode> params = new ArrayList<ExpNode>(lazyParams.size());
+				for (LazyNumber lazyParam : lazyParams) {
+					params.add(lazyParam.eval());
+				}
+				try {
+					return evalAsync(params).get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof Exception) {
+						throw (Exception) e.getCause();
+					}
+					throw e;
+				}
+			}
+
+			public String getString() throws Exception {
+				return String.valueOf(eval());
+			}
+		};
+	}
+
+	/**
+	 * Implementation for this function. It should not block, but return a future completed
+	 * by another thread.
+	 * @param parameters The evaluated parameters.
+	 * @return The future result.
+	 */
+	public abstract CompletableFuture<ExpNode> evalAsync(List<ExpNode> parameters);
+
+	/**
+	 * The executor asynchronous evaluations run functions on by default: a new virtual thread per
+	 * task if the JDK supports virtual threads, else a fixed pool of daemon threads, two per
+	 * available processor, queueing further tasks.
+	 * @return The default executor.
+	 */
+	public static Executor getDefaultExecutor() {
+		return DEFAULT_EXECUTOR;
+	}
+
+	private static Executor createDefaultExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (Exception e) {
+			return Executors.newFixedThreadPool(2 * Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "evalex-async");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2018 Yisin Lin
+ * 
+ * https://github.com/ethancommitpush
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package com.udojava.evalex;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import idv.ethancommitpush.exbuilder.ExpNode;
+import idv.ethancommitpush.exbuilder.ExpNode.ExpNodeType;
+
+/**
+ * A typed view of a column of numbers in a {@link ByteBuffer}, e.g. a direct or memory mapped
+ * buffer, to bind variables to in {@link Expression#evalBatch}. The value of row <code>r</code>
+ * is read at byte <code>offset + r * stride</code> in the byte order of the buffer, so a column
+ * can be one field of an array of records. The buffer is read and written with absolute
+ * positions only, a column may be shared by threads reading different rows.
+ */
+public final class Column {
+
+	/** The type of the values of a column. */
+	public enum Type {
+		/** 8 byte IEEE 754 doubles. */
+		DOUBLE(8),
+		/** 8 byte two's complement longs. */
+		LONG(8),
+		/** 4 byte two's complement ints. */
+		INT(4);
+
+		private final int size;
+
+		Type(int size) {
+			this.size = size;
+		}
+
+		/** @return The size of a value in bytes. */
+		public int size() {
+			return size;
+		}
+	}
+
+	private final ByteBuffer buffer;
+	private final Type type;
+	private final int offset;
+	private final int stride;
+
+	/**
+	 * Creates a view of a column of values.
+	 * @param buffer The buffer holding the column.
+	 * @param type The type of the values.
+	 * @param offset The position of the value of the first row in bytes.
+	 * @param stride The distance of the values of consecutive rows in bytes.
+	 */
+	public Column(ByteBuffer buffer, Type type, int offset, int stride) {
+		if (offset < 0 || stride < type.size()) {
+			throw new IllegalArgumentException("Invalid offset " + offset + " or stride " + stride + " for " + type);
+		}
+		this.buffer = buffer;
+		this.type = type;
+		this.offset = offset;
+		this.stride = stride;
+	}
+
+	/**
+	 * Creates a view of a buffer of consecutive doubles.
+	 * @param buffer The buffer holding the column.
+	 * @return The column.
+	 */
+	public static Column ofDoubles(ByteBuffer buffer) {
+		return new Column(buffer, Type.DOUBLE, 0, Type.DOUBLE.size());
+	}
+
+	/**
+	 * Creates a view of a buffer of consecutive longs.
+	 * @param buffer The buffer holding the column.
+	 * @return The column.
+	 */
+	public static Column ofLongs(ByteBuffer buffer) {
+		return new Column(buffer, Type.LONG, 0, Type.LONG.size());
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	/** @return The number of rows that fit into the buffer. */
+	public int getRows() {
+		int available = buffer.limit() - offset - type.size();
+		return available < 0 ? 0 : available / stride + 1;
+	}
+
+	/**
+	 * @param row A row.
+	 * @return The value of the row.
+	 * @throws ExpressionException If the value is a double that is not a number or infinite.
+	 */
+	public ExpNode get(int row) {
+		int index = offset + row * stride;
+		switch(type) {
+			case DOUBLE:
+				double value = buffer.getDouble(index);
+				if (Double.isNaN(value) || Double.isInfinite(value)) {
+					throw new ExpressionException("Column has no numeric value at row " + row + ": " + value);
+				}
+				return ExpNode.valueOf(BigDecimal.valueOf(value));
+			case LONG:
+				return ExpNode.fixed(buffer.getLong(index), 0);
+			default:
+				return ExpNode.fixed(buffer.getInt(index), 0);
+		}
+	}
+
+	/**
+	 * Reads the value of a row rounded to a math context. Longs and ints are read into the given
+	 * node as scaled longs, without allocating unless they need rounding.
+	 * @param row A row.
+	 * @param node The node to read longs and ints into.
+	 * @param mc The math context.
+	 * @return The rounded value of the row.
+	 * @throws ExpressionException If the value is a double that is not a number or infinite.
+	 */
+	ExpNode read(int row, ExpNode node, MathContext mc) {
+		int index = offset + row * stride;
+		switch(type) {
+			case DOUBLE:
+				return get(row).round(mc);
+			case LONG:
+				node.setFixed(buffer.getLong(index), 0);
+				break;
+			default:
+				node.setFixed(buffer.getInt(index), 0);
+				break;
+		}
+		return mc.getPrecision() == 0 || node.getPrecision() <= mc.getPrecision() ? node : node.round(mc);
+	}
+
+	/**
+	 * Writes a value to a row. Doubles are rounded to the nearest double, a <code>null</code>
+	 * value is written as NaN. Longs and ints must be integral and in range.
+	 * @param row A row.
+	 * @param value The value.
+	 * @throws ExpressionException If the value is no number or does not fit the column.
+	 */
+	public void put(int row, ExpNode value) {
+		int index = offset + row * stride;
+		if (value == null && type == Type.DOUBLE) {
+			buffer.putDouble(index, Double.NaN);
+			return;
+		}
+		if (value == null || value.getType() != ExpNodeType.NUMERIC) {
+			throw new ExpressionException("Column of " + type + " cannot hold " + (value == null ? "null" : value.getText())
+					+ " at row " + row);
+		}
+		try {
+			switch(type) {
+				case DOUBLE:
+					buffer.putDouble(index, value.getNumeric().doubleValue());
+					break;
+				case LONG:
+					buffer.putLong(index, value.getNumeric().longValueExact());
+					break;
+				default:
+					buffer.putInt(index, value.getNumeric().intValueExact());
+					break;
+			}
+		} catch (ArithmeticException e) {
+			throw new ExpressionException("Column of " + type + " cannot hold " + value.getText() + " at row " + row);
+		}
+	}
+
+	/**
+	 * The variables of one row, rounded to the math context of the evaluation: the values of the
+	 * columns, and the other variables for names without a column. Moved from row to row by the
+	 * batch evaluation, long and int columns are read into one node per column, which is only
+	 * valid until the next read of the column.
+	 */
+	static final class Row extends AbstractMap<String, ExpNode> {
+		private final Map<String, Column> columns;
+		private final Map<String, ExpNode> variables;
+		private final MathContext mc;
+		private final Map<Column, ExpNode> nodes = new IdentityHashMap<Column, ExpNode>();
+		int row;
+
+		Row(Map<String, Column> columns, Map<String, ExpNode> variables, MathContext mc) {
+			this.columns = columns;
+			this.variables = variables;
+			this.mc = mc;
+			for (Column column : columns.values()) {
+				nodes.put(column, new ExpNode());
+			}
+		}
+
+		@Override
+		public ExpNode get(Object name) {
+			Column column = columns.get(name);
+			if (column != null) {
+				return column.read(row, nodes.get(column), mc);
+			}
+			ExpNode value = variables != null ? variables.get(name) : null;
+			return value != null && value.getType() == ExpNodeType.NUMERIC ? value.round(mc) : value;
+		}
+
+		@Override
+		public boolean containsKey(Object name) {
+			return columns.containsKey(name) || variables != null && variables.containsKey(name);
+		}
+
+		/** @return A snapshot of the variables of the current row, the columns take precedence */
+		@Override
+		public Set<Map.Entry<String, ExpNode>> entrySet() {
+			Map<String, ExpNode> entries = new LinkedHashMap<String, ExpNode>();
+			if (variables != null) {
+				for (Map.Entry<String, ExpNode> variable : variables.entrySet()) {
+					if (!columns.containsKey(variable.getKey())) {
+						entries.put(variable.getKey(), get(variable.getKey()));
+					}
+				}
+			}
+			for (Map.Entry<String, Column> column : columns.entrySet()) {
+				entries.put(column.getKey(), column.getValue().get(row).round(mc));
+			}
+			return Collections.unmodifiableMap(entries).entrySet();
+		}
+	}
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2018 Yisin Lin
+ * 
+ * https://github.com/ethancommitpush
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package com.udojava.evalex;
+
+import java.math.MathContext;
+import java.util.concurrent.TimeUnit;
+
+import idv.ethancommitpush.exbuilder.ExpNode;
+import idv.ethancommitpush.exbuilder.ExpNode.ExpNodeType;
+
+/**
+ * Limits of an evaluation: a wall-clock timeout, a maximum number of evaluated nodes and a
+ * maximum precision and scale of numeric values. An evaluation exceeding a limit, or whose thread
+ * is interrupted, fails with a {@link BudgetExceededException}. The limits are checked between the
+ * nodes of the evaluation, a function call is not interrupted but the evaluation fails right after.
+ * Multiplications and powers whose exact result would exceed the maximum precision fail before
+ * they are computed.
+ * A budget can be shared by all expressions and threads.
+ */
+public class EvaluationBudget {
+
+	/** The number of nodes between two checks of the clock and the interrupt flag. */
+	private static final int CHECK_INTERVAL = 64;
+
+	private long timeoutNanos = Long.MAX_VALUE;
+	private long maxNodes = Long.MAX_VALUE;
+	private int maxPrecision = Integer.MAX_VALUE;
+	private int maxScale = Integer.MAX_VALUE;
+
+	public long getTimeout(TimeUnit unit) {
+		return unit.convert(timeoutNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/** Sets the maximum time an evaluation may take */
+	public EvaluationBudget setTimeout(long timeout, TimeUnit unit) {
+		this.timeoutNanos = unit.toNanos(timeout);
+		return this;
+	}
+
+	public long getMaxNodes() {
+		return maxNodes;
+	}
+
+	/** Sets the maximum number of operators, functions, variables and literals an evaluation may evaluate */
+	public EvaluationBudget setMaxNodes(long maxNodes) {
+		this.maxNodes = maxNodes;
+		return this;
+	}
+
+	public int getMaxPrecision() {
+		return maxPrecision;
+	}
+
+	/** Sets the maximum number of digits of any numeric value in an evaluation */
+	public EvaluationBudget setMaxPrecision(int maxPrecision) {
+		this.maxPrecision = maxPrecision;
+		return this;
+	}
+
+	public int getMaxScale() {
+		return maxScale;
+	}
+
+	/** Sets the maximum absolute scale of any numeric value in an evaluation, e.g. 2 for 1.25 and 1E+2 */
+	public EvaluationBudget setMaxScale(int maxScale) {
+		this.maxScale = maxScale;
+		return this;
+	}
+
+	/**
+	 * Starts an evaluation.
+	 * @return The usage of this budget by the evaluation.
+	 */
+	Usage start() {
+		return start(false);
+	}
+
+	/**
+	 * Starts an evaluation.
+	 * @param shared Whether nodes of the evaluation may be evaluated by several threads at once,
+	 *        as by {@link Expression#evalAsync}.
+	 * @return The usage of this budget by the evaluation.
+	 */
+	Usage start(boolean shared) {
+		if (Thread.currentThread().isInterrupted()) {
+			throw new BudgetExceededException(BudgetExceededException.Limit.INTERRUPTED, "Evaluation interrupted");
+		}
+		return new Usage(timeoutNanos == Long.MAX_VALUE ? Long.MAX_VALUE : System.nanoTime() + timeoutNanos, shared);
+	}
+
+	/** The usage of a budget by one evaluation. */
+	final class Usage {
+		private final long deadline;
+		private final boolean checkNumbers = maxPrecision != Integer.MAX_VALUE || maxScale != Integer.MAX_VALUE;
+		private final boolean shared;
+		private long nodes;
+
+		private Usage(long deadline, boolean shared) {
+			this.deadline = deadline;
+			this.shared = shared;
+		}
+
+		/**
+		 * Counts an evaluated node and checks the limits.
+		 * @param value The value of the node.
+		 */
+		void step(ExpNode value) {
+			long n = shared ? count() : ++nodes;
+			if (n > maxNodes) {
+				throw new BudgetExceededException(BudgetExceededException.Limit.NODES,
+						"Evaluation exceeded " + maxNodes + " nodes");
+			}
+			if (n % CHECK_INTERVAL == 0) {
+				checkTime();
+			}
+			if (checkNumbers && value != null && value.getType() == ExpNodeType.NUMERIC) {
+				// fixed point values are checked without creating their BigDecimal
+				int precision = value.getPrecision();
+				if (precision > maxPrecision) {
+					throw new BudgetExceededException(BudgetExceededException.Limit.PRECISION,
+							"Value with " + precision + " digits exceeds maximum precision " + maxPrecision);
+				}
+				int scale = value.getScale();
+				if (Math.abs((long) scale) > maxScale) {
+					throw new BudgetExceededException(BudgetExceededException.Limit.SCALE,
+							"Value with scale " + scale + " exceeds maximum scale " + maxScale);
+				}
+			}
+		}
+
+		/**
+		 * Checks the operands of a multiplication (<code>*</code>) or power (<code>POW</code>) before it
+		 * is computed. Unless the math context rounds the result, a product has at least the digits of
+		 * both factors less one, and a power at least the exponent times the digits of the base, which
+		 * may be far too many to compute.
+		 * @param name The name of the operator or function.
+		 * @param left The first operand.
+		 * @param right The second operand.
+		 * @param mc The math context of the evaluation.
+		 */
+		void checkOperands(String name, ExpNode left, ExpNode right, MathContext mc) {
+			if (maxPrecision == Integer.MAX_VALUE || mc.getPrecision() != 0 || !isNumeric(left) || !isNumeric(right)) {
+				return;
+			}
+			long digits;
+			if ("*".equals(name)) {
+				digits = (long) left.getPrecision() + right.getPrecision() - 1;
+			} else if ("POW".equalsIgnoreCase(name)) {
+				int exponent;
+				try {
+					exponent = right.getNumeric().intValueExact();
+				} catch (ArithmeticException e) {
+					// not a power the function computes
+					return;
+				}
+				// the unscaled base is at least 2^(bitLength - 1), log10(2) rounded down
+				int bits = left.getNumeric().unscaledValue().bitLength();
+				digits = (long) (Math.max(exponent, 0) * (double) Math.max(bits - 1, 0) * 0.30102) + 1;
+			} else {
+				return;
+			}
+			if (digits > maxPrecision) {
+				throw new BudgetExceededException(BudgetExceededException.Limit.PRECISION,
+						name + " of values with " + left.getPrecision() + " and " + right.getPrecision()
+						+ " digits exceeds maximum precision " + maxPrecision);
+			}
+		}
+
+		private boolean isNumeric(ExpNode value) {
+			return value != null && value.getType() == ExpNodeType.NUMERIC && value.getPrecision() > 0;
+		}
+
+		/** @return The number of nodes including one more, counted by several threads. */
+		private synchronized long count() {
+			return ++nodes;
+		}
+
+		/** Checks the deadline and whether the thread was interrupted. */
+		void checkTime() {
+			if (Thread.currentThread().isInterrupted()) {
+				throw new BudgetExceededException(BudgetExceededException.Limit.INTERRUPTED, "Evaluation interrupted");
+			}
+			if (deadline != Long.MAX_VALUE && System.nanoTime() - deadline > 0) {
+				throw new BudgetExceededException(BudgetExceededException.Limit.TIMEOUT,
+						"Evaluation exceeded " + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms");
+			}
+		}
+	}
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2018 Yisin Lin
+ * 
+ * https://github.com/ethancommitpush
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package com.udojava.evalex;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+import idv.ethancommitpush.exbuilder.ExpNode;
+
+/**
+ * Scratch space reused by the evaluations on one thread: the operand stack and the parameter
+ * lists passed to {@link Function}s. With a context, an evaluation allocates nothing but its
+ * results and the parameters of {@link LazyFunction}s other than {@link Function}s. A context
+ * grows to the largest expression evaluated with it and may be used by nested evaluations, e.g.
+ * by a function evaluating another expression, but not by several threads at once.
+ */
+public final class EvaluationContext {
+
+	private static final ThreadLocal<EvaluationContext> CURRENT = new ThreadLocal<EvaluationContext>() {
+		@Override
+		protected EvaluationContext initialValue() {
+			return new EvaluationContext();
+		}
+	};
+
+	/** The operand stacks and parameters of all running evaluations, each in its own range. */
+	private ExpNode[] stack = new ExpNode[32];
+	/** The end of the ranges in use. */
+	private int top;
+	/** The parameter lists, one per nested function call. */
+	private Parameters[] parameters = new Parameters[4];
+	/** The number of parameter lists in use. */
+	private int calls;
+
+	/**
+	 * @return The context of the current thread, or the current virtual thread task.
+	 */
+	public static EvaluationContext current() {
+		return CURRENT.get();
+	}
+
+	/** Releases all scratch space, e.g. after an evaluation failed in a way leaving it in use. */
+	public void reset() {
+		Arrays.fill(stack, null);
+		top = 0;
+		for (int i = 0; i < calls; i++) {
+			parameters[i].values = null;
+		}
+		calls = 0;
+	}
+
+	/**
+	 * Reserves a range of the stack.
+	 * @param size The size of the range.
+	 * @return The start of the range.
+	 */
+	int reserve(int size) {
+		int base = top;
+		if (base + size > stack.length) {
+			stack = Arrays.copyOf(stack, Math.max(stack.length * 2, base + size));
+		}
+		top = base + size;
+		return base;
+	}
+
+	/**
+	 * Releases the range of the stack starting at <code>base</code> and all ranges after it.
+	 * @param base The start of the range.
+	 */
+	void release(int base) {
+		Arrays.fill(stack, base, top, null);
+		top = base;
+	}
+
+	/**
+	 * The stack, which is replaced when it grows. Ranges reserved before keep their contents,
+	 * so values must be written to the current stack.
+	 * @return The current stack.
+	 */
+	ExpNode[] stack() {
+		return stack;
+	}
+
+	/**
+	 * Passes a range of the stack as parameter list to a function call, until {@link #closeCall()}.
+	 * @param base The start of the range.
+	 * @param size The size of the range.
+	 * @return The parameters.
+	 */
+	Parameters openCall(int base, int size) {
+		if (calls == parameters.length) {
+			parameters = Arrays.copyOf(parameters, calls * 2);
+		}
+		Parameters p = parameters[calls];
+		if (p == null) {
+			p = parameters[calls] = new Parameters();
+		}
+		calls++;
+		p.values = stack;
+		p.base = base;
+		p.size = size;
+		return p;
+	}
+
+	/** Ends the last function call. */
+	void closeCall() {
+		parameters[--calls].values = null;
+	}
+
+	/** A read only view of parameters on the stack, valid until the function returns. */
+	static final class Parameters extends AbstractList<ExpNode> implements RandomAccess {
+		private ExpNode[] values;
+		private int base;
+		private int size;
+
+		@Override
+		public ExpNode get(int index) {
+			if (index < 0 || index >= size) {
+				throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+			}
+			return values[base + index];
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+	}
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright 2018 Yisin Lin
+ * 
+ * https://github.com/ethancommitpush
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package com.udojava.evalex;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import com.udojava.evalex.Expression.Token;
+import com.udojava.evalex.Expression.TokenType;
+
+import idv.ethancommitpush.exbuilder.ExpNode;
+
+/**
+ * A profile of the evaluations of one expression, recording the calls and the inclusive and
+ * exclusive time of every node of the expression tree. The inclusive time of a node covers its
+ * whole subtree, the exclusive time only the node itself, e.g. the {@link Operator} or the
+ * {@link LazyFunction} it invokes. A profile accumulates over all evaluations done through it,
+ * it is not thread-safe.
+ * <pre>
+ * EvaluationProfile profile = new EvaluationProfile(expression);
+ * profile.eval();
+ * System.out.println(profile.getTreeReport());
+ * </pre>
+ */
+public class EvaluationProfile {
+
+	private final Expression expression;
+	private final List<Token> rpn;
+	private final long[] calls;
+	private final long[] inclusive;
+	private final long[] exclusive;
+
+	/** The time spent evaluating parameters of each function call in progress. */
+	private long[] childTime = new long[8];
+	private int depth;
+
+	/**
+	 * Creates a profile for an expression, compiling it if not done yet.
+	 * @param expression The expression to profile.
+	 */
+	public EvaluationProfile(Expression expression) {
+		this.expression = expression;
+		this.rpn = expression.getRPN();
+		this.calls = new long[rpn.size()];
+		this.inclusive = new long[rpn.size()];
+		this.exclusive = new long[rpn.size()];
+	}
+
+	/**
+	 * Evaluates the expression with the variables it was created with, recording its profile.
+	 * @return The result of the expression.
+	 * @throws Exception 
+	 */
+	public ExpNode eval() throws Exception {
+		return expression.evalProfiled(expression.getVariableMap(), this);
+	}
+
+	/**
+	 * Evaluates the expression with other variables, recording its profile.
+	 * @param variables All defined variables with name and value.
+	 * @return The result of the expression.
+	 * @throws Exception 
+	 */
+	public ExpNode eval(Map<String, ExpNode> variables) throws Exception {
+		return expression.evalProfiled(variables, this);
+	}
+
+	void reset() {
+		depth = 0;
+	}
+
+	void enter() {
+		if (depth == childTime.length) {
+			long[] grown = new long[depth * 2];
+			System.arraycopy(childTime, 0, grown, 0, depth);
+			childTime = grown;
+		}
+		childTime[depth++] = 0;
+	}
+
+	long exit() {
+		return childTime[--depth];
+	}
+
+	void addChildTime(long nanos) {
+		if (depth > 0) {
+			childTime[depth - 1] += nanos;
+		}
+	}
+
+	void record(int node, long inclusiveNanos, long exclusiveNanos) {
+		calls[node]++;
+		inclusive[node] += inclusiveNanos;
+		exclusive[node] += exclusiveNanos;
+	}
+
+	/** The profile of a node, or of all nodes of the same operator or function. */
+	public static class Entry {
+		private final String label;
+		private final long calls;
+		private final long inclusiveNanos;
+		private final long exclusiveNanos;
+
+		Entry(String label, long calls, long inclusiveNanos, long exclusiveNanos) {
+			this.label = label;
+			this.calls = calls;
+			this.inclusiveNanos = inclusiveNanos;
+			this.exclusiveNanos = exclusiveNanos;
+		}
+
+		public String getLabel() {
+			return label;
+		}
+
+		public long getCalls() {
+			return calls;
+		}
+
+		public long getInclusiveNanos() {
+			return inclusiveNanos;
+		}
+
+		public long getExclusiveNanos() {
+			return exclusiveNanos;
+		}
+
+		@Override
+		public String toString() {
+			return label + ": calls=" + calls + " inclusive=" + inclusiveNanos + "ns exclusive=" + exclusiveNanos + "ns";
+		}
+	}
+
+	/** @return The profile of every node, in RPN order. */
+	public List<Entry> getNodes() {
+		List<Entry> nodes = new ArrayList<Entry>();
+		for (int i = 0; i < rpn.size(); i++) {
+			if (rpn.get(i).type != TokenType.OPEN_PAREN) {
+				nodes.add(new Entry(label(i), calls[i], inclusive[i], exclusive[i]));
+			}
+		}
+		return nodes;
+	}
+
+	/**
+	 * @return The profile of every operator and function, summed over all nodes invoking it,
+	 * by descending exclusive time. Inclusive times of nested calls of the same function are
+	 * counted once per call.
+	 */
+	public List<Entry> getSymbols() {
+		Map<String, long[]> sums = new LinkedHashMap<String, long[]>();
+		for (int i = 0; i < rpn.size(); i++) {
+			TokenType type = rpn.get(i).type;
+			if (type == TokenType.OPERATOR || type == TokenType.UNARY_OPERATOR || type == TokenType.FUNCTION) {
+				String label = label(i);
+				long[] sum = sums.get(label);
+				if (sum == null) {
+					sum = new long[3];
+					sums.put(label, sum);
+				}
+				sum[0] += calls[i];
+				sum[1] += inclusive[i];
+				sum[2] += exclusive[i];
+			}
+		}
+		List<Entry> symbols = new ArrayList<Entry>();
+		for (Map.Entry<String, long[]> sum : sums.entrySet()) {
+			symbols.add(new Entry(sum.getKey(), sum.getValue()[0], sum.getValue()[1], sum.getValue()[2]));
+		}
+		Collections.sort(symbols, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry e1, Entry e2) {
+				return Long.compare(e2.exclusiveNanos, e1.exclusiveNanos);
+			}
+		});
+		return symbols;
+	}
+
+	/**
+	 * @return The expression tree, one node per line indented by its depth, annotated with
+	 * the calls and the inclusive and exclusive time in milliseconds.
+	 */
+	public String getTreeReport() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format(Locale.ROOT, "%10s %12s %12s  %s%n", "calls", "incl(ms)", "excl(ms)", "node"));
+		walk(new Visitor() {
+			public void visit(int node, int[] path, int depth, StringBuilder sb) {
+				sb.append(String.format(Locale.ROOT, "%10d %12.3f %12.3f  ", calls[node]
+						, inclusive[node] / 1e6, exclusive[node] / 1e6));
+				for (int d = 0; d < depth; d++) {
+					sb.append("  ");
+				}
+				sb.append(label(node)).append(String.format("%n"));
+			}
+		}, sb);
+		return sb.toString();
+	}
+
+	/**
+	 * @return The exclusive time of every node in nanoseconds, as collapsed stacks for flame
+	 * graph tools: one line per node with the path from the root separated by semicolons.
+	 */
+	public String getCollapsedStacks() {
+		StringBuilder sb = new StringBuilder();
+		walk(new Visitor() {
+			public void visit(int node, int[] path, int depth, StringBuilder sb) {
+				if (calls[node] == 0) {
+					return;
+				}
+				sb.append(frame(expression.getId()));
+				for (int d = 0; d <= depth; d++) {
+					sb.append(';').append(frame(label(path[d])));
+				}
+				sb.append(' ').append(exclusive[node]).append('\n');
+			}
+		}, sb);
+		return sb.toString();
+	}
+
+	private interface Visitor {
+		/**
+		 * @param node The RPN position of the node.
+		 * @param path The RPN positions of the nodes from the root to this node.
+		 * @param depth The depth of this node, the index of it in the path.
+		 */
+		void visit(int node, int[] path, int depth, StringBuilder sb);
+	}
+
+	/** Visits the tree depth first in infix order of the children, without recursion. */
+	private void walk(Visitor visitor, StringBuilder sb) {
+		int[] subtreeStart = expression.getSubtreeStart();
+		int size = rpn.size();
+		int[] path = new int[size];
+		int[] nodes = new int[size];
+		int[] depths = new int[size];
+		int sp = 0;
+		nodes[sp] = size - 1;
+		depths[sp++] = 0;
+		while (sp > 0) {
+			int node = nodes[--sp];
+			int depth = depths[sp];
+			path[depth] = node;
+			visitor.visit(node, path, depth, sb);
+			// push the children right to left, so they are visited left to right
+			switch(rpn.get(node).type) {
+				case UNARY_OPERATOR:
+					nodes[sp] = node - 1;
+					depths[sp++] = depth + 1;
+					break;
+				case OPERATOR:
+					nodes[sp] = node - 1;
+					depths[sp++] = depth + 1;
+					nodes[sp] = subtreeStart[node - 1] - 1;
+					depths[sp++] = depth + 1;
+					break;
+				case FUNCTION:
+					for (int to = node - 1; to > subtreeStart[node]; to = subtreeStart[to] - 1) {
+						nodes[sp] = to;
+						depths[sp++] = depth + 1;
+					}
+					break;
+				default:
+					break;
+			}
+		}
+	}
+
+	private String label(int node) {
+		Token token = rpn.get(node);
+		switch(token.type) {
+			case FUNCTION:
+				return token.surface.toUpperCase(Locale.ROOT) + "()";
+			case STR_LITERAL:
+				return "'" + token.surface + "'";
+			default:
+				return token.surface;
+		}
+	}
+
+	private static String frame(String label) {
+		return label.replace(';', ',').replace(' ', '_').replace('\n', '_');
+	}
+}
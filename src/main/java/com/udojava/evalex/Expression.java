@@ -29,17 +29,34 @@
  */
 package com.udojava.evalex;
 
+import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.math.MathContext;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Stack;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+
+import com.udojava.evalex.jfr.CompileEvent;
+import com.udojava.evalex.jfr.EvalEvent;
+import com.udojava.evalex.jfr.FunctionEvent;
+import com.udojava.evalex.jfr.JfrSupport;
 
 import idv.ethancommitpush.exbuilder.ExpNode;
 import idv.ethancommitpush.exbuilder.ExpNode.ExpNodeType;
+import idv.ethancommitpush.exbuilder.Normalization;
 
 public class Expression {
 
@@ -58,8 +75,32 @@ public class Expression {
 	/** The current infix expression, with optional variable substitutions. */
 	private String expression = null;
 
-	/** The cached RPN (Reverse Polish Notation) of the expression. */
-	private List<Token> rpn = null;
+	/**
+	 * The compiled RPN (Reverse Polish Notation) of the expression, <code>null</code> until it is
+	 * compiled. It is assigned once it is complete, so that a thread seeing it sees all of it.
+	 */
+	private volatile Compiled compiled = null;
+
+	/** The declared types of variables, <code>null</code> if none. */
+	private Map<String, ExpNodeType> variableTypes = null;
+
+	/** The id of the expression for listeners, <code>null</code> to use the expression itself. */
+	private String id = null;
+
+	/** The listener for compilation and evaluation, <code>null</code> if none. */
+	private ExpressionListener listener = null;
+
+	/** The cache of the results of pure functions, <code>null</code> if none. */
+	private FunctionCache functionCache = null;
+
+	/** The limits of each evaluation, <code>null</code> if unlimited. */
+	private EvaluationBudget budget = null;
+
+	/** The normalization of the numbers the expression computes itself, e.g. of its aggregates. */
+	private Normalization normalization = Normalization.CANONICAL_SCALE;
+
+	/** The cache of compiled programs to share with expressions of the same shape, <code>null</code> if none. */
+	private ProgramCache programCache = null;
 
 	/** All defined variables with name and value. */
 	private Map<String, ExpNode> variableMap;
@@ -76,25 +117,104 @@ public class Expression {
 	/** What character to use for minus sign (negative values). */
 	private static final char minusSign = '-';
 
-	/** The BigDecimal representation of the left parenthesis, used for parsing varying numbers of function parameters. */
-	private static final LazyNumber PARAMS_START = new LazyNumber() {
-		public ExpNode eval() {
-			return null;
+	enum TokenType {
+		VARIABLE, FUNCTION, LITERAL, OPERATOR, UNARY_OPERATOR, OPEN_PAREN, COMMA, CLOSE_PAREN, HEX_LITERAL, STR_LITERAL
+	}
+
+	private static final TokenType[] TOKEN_TYPES = TokenType.values();
+	private static final ExpNodeType[] NODE_TYPES = ExpNodeType.values();
+
+	/**
+	 * A compiled RPN without its tokens: the type of the token and a link to another position at
+	 * each position. It is shared by the expressions of the same shape, see {@link ProgramCache}.
+	 */
+	static final class Program {
+		/** The ordinal of the type of the token at each position of the RPN. */
+		final byte[] codes;
+		/**
+		 * For each parameter list start in the RPN, the position of the function closing it, for
+		 * the other positions the position of the first token of the subtree ending there.
+		 */
+		final int[] links;
+		/** The operand stack depth needed to evaluate the RPN. */
+		final int maxDepth;
+		/**
+		 * The inferred type of the subtree ending at each position of the RPN, as the ordinal of
+		 * the type plus one, <code>0</code> if unknown.
+		 */
+		final byte[] types;
+		/**
+		 * The index of the variable at each variable position of the RPN in the variables of the
+		 * expression, if they are an immutable {@link Registry}, else <code>null</code>.
+		 */
+		final int[] variableSlots;
+
+		Program(byte[] codes, int[] links, int maxDepth, ExpNodeType[] types, int[] variableSlots) {
+			this.codes = codes;
+			this.links = links;
+			this.maxDepth = maxDepth;
+			this.types = new byte[types.length];
+			for (int i = 0; i < types.length; i++) {
+				this.types[i] = (byte) (types[i] != null ? types[i].ordinal() + 1 : 0);
+			}
+			this.variableSlots = variableSlots;
 		}
 
-		public String getString() {
-			return null;
+		TokenType type(int i) {
+			return TOKEN_TYPES[codes[i]];
 		}
-	};
 
-	enum TokenType {
-		VARIABLE, FUNCTION, LITERAL, OPERATOR, UNARY_OPERATOR, OPEN_PAREN, COMMA, CLOSE_PAREN, HEX_LITERAL, STR_LITERAL
+		/**
+		 * @param i A position in the RPN.
+		 * @return The position of the first token of the subtree ending there.
+		 */
+		int subtreeStart(int i) {
+			return type(i) == TokenType.OPEN_PAREN ? i : links[i];
+		}
+
+		/**
+		 * @param i A position in the RPN.
+		 * @return The inferred type of the subtree ending there, <code>null</code> if unknown.
+		 */
+		ExpNodeType nodeType(int i) {
+			return types[i] != 0 ? NODE_TYPES[types[i] - 1] : null;
+		}
+	}
+
+	/** The compiled RPN of an expression: the program and the tokens of the expression it runs. */
+	static final class Compiled {
+		final Program program;
+		/** The position of the token at each position of the RPN in the expression. */
+		final int[] offsets;
+		/** The surface of the token at each position of the RPN. */
+		final String[] names;
+		/**
+		 * At each position of the RPN, the value of a literal, parsed once at compile time, the
+		 * implementation of an operator, selected for the types of its operands, or the function
+		 * bound to a call site, see {@link LazyFunction#bind}. As nodes are mutable, each
+		 * evaluation passes copies of the literals to the operators and functions, see
+		 * {@link #constantAt}.
+		 */
+		final Object[] values;
+
+		Compiled(Program program, int[] offsets, String[] names, Object[] values) {
+			this.program = program;
+			this.offsets = offsets;
+			this.names = names;
+			this.values = values;
+		}
+
+		int size() {
+			return program.codes.length;
+		}
 	}
 
-	class Token {
+	static class Token {
 		public String surface = "";
 		public TokenType type;
 		public int pos;
+		/** The pre-parsed value of a numeric or hex literal, <code>null</code> if not parsed yet. */
+		BigDecimal literal;
 
 		public void append(char c) {
 			surface += c;
@@ -122,7 +242,7 @@ public class Expression {
 	 * Expression tokenizer that allows to iterate over a {@link String}
 	 * expression token by token. Blank characters will be skipped.
 	 */
-	private class Tokenizer implements Iterator<Token> {
+	class Tokenizer implements Iterator<Token> {
 
 		/** Actual position in expression string. */
 		private int pos = 0;
@@ -175,46 +295,40 @@ public class Expression {
 			token.pos = pos;
 
 			boolean isHex = false;
-			boolean isStr = false;
-			
 
 			if (ch == '\'' ) {
-				isStr = true;
-				for (int i = 0; isStr; i += 1) {
-					if (i == 0) {
-						pos++;
-						ch = pos == input.length() ? 0 : input.charAt(pos);
-					}
-					if (ch != '\'') {
-						token.append(input.charAt(pos++));
-						ch = pos == input.length() ? 0 : input.charAt(pos);
-					} else {
-						pos++;
-						ch = pos == input.length() ? 0 : input.charAt(pos);
-						break;
-					}
+				int end = input.indexOf('\'', pos + 1);
+				if (end < 0) {
+					throw new ExpressionException("Unterminated string at character position " + pos);
 				}
+				token.surface = input.substring(pos + 1, end);
+				pos = end + 1;
 				token.type = TokenType.STR_LITERAL;
 			} else if (Character.isDigit(ch)) {
 				if(ch == '0' && (peekNextChar() == 'x' || peekNextChar() == 'X')) isHex = true;
+				int start = pos;
 				while ((isHex && isHexDigit(ch)) || (Character.isDigit(ch) || ch == decimalSeparator
                                                 || ch == 'e' || ch == 'E'
-                                                || (ch == minusSign && token.length() > 0 
-                                                    && ('e'==token.charAt(token.length()-1) || 'E'==token.charAt(token.length()-1)))
-                                                || (ch == '+' && token.length() > 0 
-                                                    && ('e'==token.charAt(token.length()-1) || 'E'==token.charAt(token.length()-1)))
+                                                || (ch == minusSign && pos > start 
+                                                    && ('e'==input.charAt(pos-1) || 'E'==input.charAt(pos-1)))
+                                                || (ch == '+' && pos > start 
+                                                    && ('e'==input.charAt(pos-1) || 'E'==input.charAt(pos-1)))
                                                 ) && (pos < input.length())) {
-					token.append(input.charAt(pos++));
+					pos++;
 					ch = pos == input.length() ? 0 : input.charAt(pos);
 				}
+				token.surface = input.substring(start, pos);
 				token.type = isHex ? TokenType.HEX_LITERAL : TokenType.LITERAL;
 			} else if (Character.isLetter(ch) || firstVarChars.indexOf(ch) >= 0) {
+				int start = pos;
 				while ((Character.isLetter(ch) || Character.isDigit(ch)
-						|| varChars.indexOf(ch) >= 0 || token.length() == 0 && firstVarChars.indexOf(ch) >= 0)
+						|| varChars.indexOf(ch) >= 0 || pos == start && firstVarChars.indexOf(ch) >= 0)
 						&& (pos < input.length())) {
-					token.append(input.charAt(pos++));
+					pos++;
 					ch = pos == input.length() ? 0 : input.charAt(pos);
 				}
+				// names are interned, so that expressions share them
+				token.surface = input.substring(start, pos).intern();
 				//Remove optional white spaces after function or variable name
 				if (ch == ' ') {
 					while (ch == ' ' && pos < input.length()) {
@@ -231,7 +345,7 @@ public class Expression {
 				} else {
 					token.type = TokenType.COMMA;
 				}
-				token.append(ch);
+				token.surface = String.valueOf(ch).intern();
 				pos++;
 			} else {
 				String greedyMatch = "";
@@ -258,9 +372,10 @@ public class Expression {
 
 				if(previousToken == null || previousToken.type == TokenType.OPERATOR || previousToken.type == TokenType.OPEN_PAREN 
 						|| previousToken.type == TokenType.COMMA) {
-					token.surface += "u";
+					token.surface = (token.surface + "u").intern();
 					token.type = TokenType.UNARY_OPERATOR;
 				} else {
+					token.surface = token.surface.intern();
 					token.type = TokenType.OPERATOR;
 				}
 			}
@@ -300,17 +415,42 @@ public class Expression {
 
 	}
 
+	/**
+	 * Creates a new expression instance from an already compiled RPN, e.g. one loaded from an
+	 * {@link ExpressionPack}. The RPN is validated against the given operators and functions.
+	 * @param expression The expression the RPN was compiled from.
+	 * @param defaultMathContext The {@link MathContext} to use by default.
+	 * @param variableTypes The declared types of variables, <code>null</code> if none.
+	 * @param rpn The compiled RPN of the expression.
+	 */
+	Expression(String expression, MathContext defaultMathContext
+			, Map<String, ExpNode> variableMap, Map<String, Operator> operatorMap, Map<String, LazyFunction> functionMap
+			, Map<String, ExpNodeType> variableTypes, List<Token> rpn) {
+		this(expression, defaultMathContext, variableMap, operatorMap, functionMap);
+		this.variableTypes = variableTypes;
+		validate(rpn);
+		this.compiled = assemble(rpn);
+	}
+
 	/**
 	 * Implementation of the <i>Shunting Yard</i> algorithm to transform an infix expression to a RPN expression.
 	 * @param expression The input expression in infx.
 	 * @return A RPN representation of the expression, with each token as a list member.
 	 */
-	private List<Token> shuntingYard(String expression) {
+	List<Token> shuntingYard(String expression) {
+		return shuntingYard(new Tokenizer(expression));
+	}
+
+	/**
+	 * Implementation of the <i>Shunting Yard</i> algorithm to transform the tokens of an infix
+	 * expression to a RPN expression.
+	 * @param tokenizer The tokens of the expression.
+	 * @return A RPN representation of the expression, with each token as a list member.
+	 */
+	private List<Token> shuntingYard(Iterator<Token> tokenizer) {
 		List<Token> outputQueue = new ArrayList<Token>();
 		Stack<Token> stack = new Stack<Token>();
 
-		Tokenizer tokenizer = new Tokenizer(expression);
-
 		Token lastFunction = null;
 		Token previousToken = null;
 		while (tokenizer.hasNext()) {
@@ -439,224 +579,1834 @@ public class Expression {
 	
 	/**
 	 * Evaluates the expression.
-	 * @param stripTrailingZeros If set to <code>true</code> trailing zeros in the result are stripped.
 	 * @return The result of the expression.
 	 * @throws Exception 
 	 */
 	public ExpNode eval() throws Exception {
+		return eval(variableMap);
+	}
 
-		Stack<LazyNumber> stack = new Stack<LazyNumber>();
-		List<Token> rpn = getRPN();
-		for (final Token token : rpn) {
-//			String surface = token.surface;
-			switch(token.type) {
-				case UNARY_OPERATOR: {
-					final LazyNumber value = stack.pop();
-					LazyNumber result = new LazyNumber() {
-						public ExpNode eval() throws Exception {
-							return operatorMap.get(token.surface).eval(value.eval(), null);
-						}
+	/**
+	 * Evaluates the expression with other variables than the ones it was created with.
+	 * Evaluations with different variables may run concurrently.
+	 * @param variables All defined variables with name and value.
+	 * @return The result of the expression.
+	 * @throws Exception 
+	 */
+	public ExpNode eval(Map<String, ExpNode> variables) throws Exception {
+		return eval(variables, EvaluationContext.current());
+	}
 
-						@Override
-						public String getString() throws Exception {
-							return String.valueOf(operatorMap.get(token.surface).eval(value.eval(), null));
-						}
-					};
-					stack.push(result);
-					break;
+	/**
+	 * Evaluates the expression with the given variables and scratch space.
+	 * @param variables All defined variables with name and value.
+	 * @param context The scratch space of the current thread.
+	 * @return The result of the expression.
+	 * @throws Exception 
+	 */
+	public ExpNode eval(Map<String, ExpNode> variables, EvaluationContext context) throws Exception {
+		boolean recording = JfrSupport.isEvalEnabled();
+		if (listener == null && !recording) {
+			return evalRange(0, compiled().size() - 1, variables, null, budget != null ? budget.start() : null, context);
+		}
+		EvalEvent event = null;
+		if (recording) {
+			event = new EvalEvent();
+			event.begin();
+		}
+		long start = listener != null ? System.nanoTime() : 0;
+		try {
+			ExpNode result = evalRange(0, compiled().size() - 1, variables, null, budget != null ? budget.start() : null, context);
+			if (listener != null) {
+				listener.evaluated(this, System.nanoTime() - start, result);
+			}
+			if (event != null) {
+				event.end();
+				if (event.shouldCommit()) {
+					event.expression = getId();
+					event.resultType = result == null ? "null" : result.getType().name();
+					event.commit();
 				}
-				case OPERATOR:
-					final LazyNumber v1 = stack.pop();
-					final LazyNumber v2 = stack.pop();
-					LazyNumber result = new LazyNumber() {
-						public ExpNode eval() throws Exception {
-							return operatorMap.get(token.surface).eval(v2.eval(), v1.eval());
-						}
-						
-						public String getString() throws Exception {
-						    return String.valueOf(operatorMap.get(token.surface).eval(v2.eval(), v1.eval()));
+			}
+			return result;
+		} catch (Exception e) {
+			if (listener != null && compiled != null) {
+				listener.failed(this, ExpressionListener.Phase.EVAL, System.nanoTime() - start, e);
+			}
+			if (event != null) {
+				event.end();
+				if (event.shouldCommit()) {
+					event.expression = getId();
+					event.commit();
+				}
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Evaluates the expression for a range of rows of columns, e.g. in off-heap buffers, and writes
+	 * the result of each row to the same row of an output column. The variables with a column are
+	 * read straight from it, the others are taken from the variables of the expression.
+	 * @param columns The columns to bind variables to by name.
+	 * @param from The first row.
+	 * @param to The end of the rows, exclusive.
+	 * @param output The column to write the results to.
+	 * @throws IllegalArgumentException If the rows are not in all columns and the output.
+	 * @throws Exception If a row fails, the rows before it are written.
+	 */
+	public void evalBatch(Map<String, Column> columns, int from, int to, Column output) throws Exception {
+		if (from < 0 || from > to) {
+			throw new IllegalArgumentException("Invalid rows " + from + " to " + to);
+		}
+		for (Map.Entry<String, Column> column : columns.entrySet()) {
+			if (to > column.getValue().getRows()) {
+				throw new IllegalArgumentException("Rows " + from + " to " + to + " exceed column " + column.getKey()
+						+ " of " + column.getValue().getRows() + " rows");
+			}
+		}
+		if (to > output.getRows()) {
+			throw new IllegalArgumentException("Rows " + from + " to " + to + " exceed the output column of "
+					+ output.getRows() + " rows");
+		}
+		Column.Row row = new Column.Row(columns, variableMap, mc);
+		EvaluationContext context = EvaluationContext.current();
+		for (int r = from; r < to; r++) {
+			row.row = r;
+			output.put(r, eval(row, context));
+		}
+	}
+
+	/**
+	 * Creates an aggregate of the values of this expression over a stream of records, see
+	 * {@link Aggregate#add(Map)}.
+	 * @param kind The aggregate function.
+	 * @return The empty aggregate.
+	 */
+	public Aggregate aggregate(Aggregate.Kind kind) {
+		return new Aggregate(kind, this, mc);
+	}
+
+	/**
+	 * Creates an aggregate of the values of this expression over a sliding time window of records,
+	 * see {@link SlidingWindow#add(long, Map)}.
+	 * @param kind The aggregate function.
+	 * @param size The size of the window, in the unit of the times of the records.
+	 * @param panes The number of panes, the window slides by <code>size / panes</code>.
+	 * @return The empty window.
+	 */
+	public SlidingWindow window(Aggregate.Kind kind, long size, int panes) {
+		return new SlidingWindow(kind, this, mc, size, panes);
+	}
+
+	/**
+	 * Evaluates the expression asynchronously, see {@link #evalAsync(Map, Executor)}.
+	 * @return The future result of the expression.
+	 */
+	public CompletableFuture<ExpNode> evalAsync() {
+		return evalAsync(variableMap, AsyncFunction.getDefaultExecutor());
+	}
+
+	/**
+	 * Evaluates the expression asynchronously with other variables than the ones it was created
+	 * with, see {@link #evalAsync(Map, Executor)}.
+	 * @param variables All defined variables with name and value.
+	 * @return The future result of the expression.
+	 */
+	public CompletableFuture<ExpNode> evalAsync(Map<String, ExpNode> variables) {
+		return evalAsync(variables, AsyncFunction.getDefaultExecutor());
+	}
+
+	/**
+	 * Evaluates the expression asynchronously. The parameters of all function calls are
+	 * evaluated first, so independent calls run concurrently: {@link AsyncFunction}s are composed
+	 * with their futures, {@link Function}s are called on the executor once their parameters are
+	 * complete, unless they are {@link Function#isInline() inline}, and other
+	 * {@link LazyFunction}s run on the executor as a whole. Failures, including an exceeded
+	 * {@link EvaluationBudget}, complete the future exceptionally.
+	 * @param variables All defined variables with name and value.
+	 * @param executor The executor to run functions on.
+	 * @return The future result of the expression.
+	 */
+	public CompletableFuture<ExpNode> evalAsync(Map<String, ExpNode> variables, Executor executor) {
+		final long start = listener != null ? System.nanoTime() : 0;
+		CompletableFuture<ExpNode> result;
+		try {
+			result = evalRangeAsync(0, compiled().size() - 1, variables, budget != null ? budget.start(true) : null, executor);
+		} catch (RuntimeException e) {
+			result = new CompletableFuture<ExpNode>();
+			result.completeExceptionally(e);
+		}
+		final ExpressionListener listener = this.listener;
+		if (listener != null && compiled != null) {
+			result.whenComplete(new BiConsumer<ExpNode, Throwable>() {
+				public void accept(ExpNode value, Throwable failure) {
+					if (failure == null) {
+						listener.evaluated(Expression.this, System.nanoTime() - start, value);
+					} else {
+						if (failure instanceof CompletionException && failure.getCause() != null) {
+							failure = failure.getCause();
 						}
-					};
-					stack.push(result);
-					break;
-				case VARIABLE:
-					if (!variableMap.containsKey(token.surface)) {
-						throw new ExpressionException("Unknown operator or function: " + token);
+						listener.failed(Expression.this, ExpressionListener.Phase.EVAL, System.nanoTime() - start,
+								failure instanceof Exception ? (Exception) failure : new ExecutionException(failure));
 					}
+				}
+			});
+		}
+		return result;
+	}
 
-					stack.push(new LazyNumber() {
-						public ExpNode eval() {
-							ExpNode value = variableMap.get(token.surface);
-							if (value == null) {
-								value = null;
-							} else if (value.getType() == ExpNodeType.NUMERIC) {
-									value = value.round(mc);
-							}
-							return value;
-						}
+	/**
+	 * Evaluates the expression, recording the calls and the time of every node in a profile.
+	 * @param variables All defined variables with name and value.
+	 * @param profile The profile of this expression.
+	 * @return The result of the expression.
+	 * @throws Exception 
+	 */
+	ExpNode evalProfiled(Map<String, ExpNode> variables, EvaluationProfile profile) throws Exception {
+		int size = compiled().size();
+		profile.reset();
+		return evalRange(0, size - 1, variables, profile, budget != null ? budget.start() : null,
+				EvaluationContext.current());
+	}
 
-						public String getString() {
-							return token.surface;
-						}
-					});
+	/**
+	 * Parses and validates the expression, if not done yet.
+	 * @return This expression.
+	 * @throws ExpressionException If the expression is invalid.
+	 */
+	public Expression compile() {
+		compiled();
+		return this;
+	}
+
+	/**
+	 * Estimates the heap memory retained by the compiled expression: its text, the arrays of the
+	 * compiled program and of its tokens, literals and the functions bound to its call sites, e.g.
+	 * compiled regular expressions. Names are interned and shared with other expressions, like the
+	 * operators, functions and variables, and are not counted. A program shared with other
+	 * expressions of the same shape (see {@link ProgramCache}) is counted in each of them.
+	 * @return The estimated number of bytes.
+	 * @throws ExpressionException If the expression is invalid.
+	 */
+	public long getRetainedBytes() {
+		Compiled compiled = compiled();
+		Program program = compiled.program;
+		int size = compiled.size();
+		RetainedSize retained = new RetainedSize();
+		retained.add(RetainedSize.shallow(Expression.class));
+		retained.string(expression);
+		retained.string(originalExpression);
+		retained.string(id);
+		for (int i = 0; i < size; i++) {
+			switch(program.type(i)) {
+				case LITERAL:
+				case HEX_LITERAL:
+				case STR_LITERAL:
+					retained.string(compiled.names[i]);
+					retained.node((ExpNode) compiled.values[i]);
 					break;
 				case FUNCTION:
-					LazyFunction f = functionMap.get(token.surface.toUpperCase(Locale.ROOT));
-					ArrayList<LazyNumber> p = new ArrayList<LazyNumber>(
-							!f.numParamsVaries() ? f.getNumParams() : 0);
-					// pop parameters off the stack until we hit the start of
-					// this function's parameter list
-					while (!stack.isEmpty() && stack.peek() != PARAMS_START) {
-						p.add(0, stack.pop());
-					}
-					
-					if (stack.peek() == PARAMS_START) {
-						stack.pop();
+					if (compiled.values[i] != registered(i)) {
+						retained.function((LazyFunction) compiled.values[i]);
 					}
-					
-					LazyNumber fResult = f.lazyEval(p);
-					stack.push(fResult);
 					break;
-				case OPEN_PAREN:
-					stack.push(PARAMS_START);
+				default:
 					break;
-				case LITERAL:
-					stack.push(new LazyNumber() {
-						public ExpNode eval() {
-							if (token.surface.equalsIgnoreCase("NULL")) {
-								return null;
-							}
-
-							ExpNode value = new ExpNode(token.surface, mc);
-							return value;
-						}
+			}
+		}
+		// codes and types, links, offsets and variableSlots, names and values
+		int ints = 2 + (program.variableSlots != null ? 1 : 0);
+		retained.add(RetainedSize.shallow(Compiled.class) + RetainedSize.shallow(Program.class)
+				+ 2 * RetainedSize.array(size, 1) + ints * RetainedSize.array(size, 4)
+				+ 2 * RetainedSize.array(size, RetainedSize.REFERENCE));
+		return retained.getBytes();
+	}
 
-						public String getString() {
-							return String.valueOf(new ExpNode(token.surface, mc));
+	/**
+	 * Partially evaluates the expression for the known values of some variables: substitutes them,
+	 * folds the operators and pure functions whose operands become constant and drops the parameters
+	 * of function calls not taken with the known values, see {@link LazyFunction#select}. The residual
+	 * expression depends only on the other variables and has the same definitions as this one.
+	 * Constant subexpressions which fail to evaluate are kept, as they may never be evaluated.
+	 * <p>
+	 * The residual expression is compiled already and never parses its text, which is for display
+	 * only, see {@link #toString()}: a folded <code>null</code> shows as <code>NULL</code> and a
+	 * folded text is quoted as is, even if it contains a quote, so the text may not be a valid
+	 * expression. Keep the residual expression itself, or store it in an {@link ExpressionPack},
+	 * instead of its text.
+	 * @param knownBindings The known variables with name and value.
+	 * @return The residual expression.
+	 * @throws ExpressionException If this expression is invalid, or the residual expression is ill-typed.
+	 */
+	public Expression specialize(Map<String, ExpNode> knownBindings) {
+		Compiled compiled = compiled();
+		int[] links = compiled.program.links;
+		List<Token> rpn = getRPN();
+		int size = rpn.size();
+		List<Token> residual = new ArrayList<Token>(size);
+		// for each pending operand, its start in the residual RPN and its value if it is known
+		int[] starts = new int[size];
+		boolean[] known = new boolean[size];
+		ExpNode[] values = new ExpNode[size];
+		int sp = 0;
+		for (int i = 0; i < size; i++) {
+			Token token = rpn.get(i);
+			switch(token.type) {
+				case UNARY_OPERATOR:
+					if (known[sp - 1]) {
+						try {
+							values[sp - 1] = ((Operator) compiled.values[i]).eval(values[sp - 1], null);
+							replace(residual, starts[sp - 1], literal(values[sp - 1], token.pos));
+							break;
+						} catch (RuntimeException e) {
+							known[sp - 1] = false;
 						}
-					});
+					}
+					residual.add(token);
 					break;
-				case HEX_LITERAL:
-					stack.push(new LazyNumber() {
-						public ExpNode eval() {
-							return new ExpNode(
-									new BigInteger(token.surface.substring(2), 16)
-									, mc);
+				case OPERATOR:
+					sp--;
+					if (known[sp - 1] && known[sp]) {
+						try {
+							values[sp - 1] = ((Operator) compiled.values[i]).eval(values[sp - 1], values[sp]);
+							replace(residual, starts[sp - 1], literal(values[sp - 1], token.pos));
+							break;
+						} catch (RuntimeException e) {
+							// keep the operator
 						}
-						public String getString() {
-							return new BigInteger(token.surface.substring(2), 16).toString();
-						} 
-					});
+					}
+					known[sp - 1] = false;
+					residual.add(token);
 					break;
-				case STR_LITERAL:
-					stack.push(new LazyNumber() {
-						public ExpNode eval() {
-							ExpNode ret = new ExpNode();
-							ret.setText(token.surface);
-							return ret;
+				case FUNCTION: {
+					int n = 0;
+					for (int to = i - 1; to > links[i]; to = links[to] - 1) {
+						n++;
+					}
+					int first = sp - n;
+					sp = first;
+					int call = first - 1;
+					LazyFunction f = (LazyFunction) compiled.values[i];
+					ExpNode[] constants = new ExpNode[n];
+					boolean constant = true;
+					for (int k = 0; k < n; k++) {
+						constants[k] = known[first + k] ? values[first + k] : null;
+						constant &= known[first + k];
+					}
+					int selected = f.select(constants);
+					if (selected >= 0 && selected < n) {
+						int end = selected + 1 < n ? starts[first + selected + 1] : residual.size();
+						List<Token> param = new ArrayList<Token>(residual.subList(starts[first + selected], end));
+						residual.subList(starts[call], residual.size()).clear();
+						residual.addAll(param);
+						known[call] = known[first + selected];
+						values[call] = values[first + selected];
+						break;
+					}
+					known[call] = false;
+					if (constant && f.isPure()) {
+						List<LazyNumber> params = new ArrayList<LazyNumber>(n);
+						for (ExpNode value : constants) {
+							params.add(new Constant(value));
 						}
-						public String getString() {
-							return token.surface;
-						} 
-					});
+						try {
+							values[call] = f.lazyEval(params).eval();
+							known[call] = true;
+							replace(residual, starts[call], literal(values[call], token.pos));
+							break;
+						} catch (Exception e) {
+							// keep the call
+						}
+					}
+					residual.add(token);
+					break;
+				}
+				case OPEN_PAREN:
+					starts[sp] = residual.size();
+					known[sp++] = false;
+					residual.add(token);
+					break;
+				case VARIABLE:
+					starts[sp] = residual.size();
+					known[sp] = knownBindings.containsKey(token.surface);
+					if (known[sp]) {
+						ExpNode value = knownBindings.get(token.surface);
+						values[sp] = value != null && value.getType() == ExpNodeType.NUMERIC ? value.round(mc) : value;
+						residual.add(literal(values[sp], token.pos));
+					} else {
+						residual.add(token);
+					}
+					sp++;
 					break;
 				default:
+					starts[sp] = residual.size();
+					known[sp] = true;
+					values[sp++] = (ExpNode) compiled.values[i];
+					residual.add(token);
 					break;
 			}
 		}
-		ExpNode result = stack.pop().eval();
-		ExpNode ret = null;
-		if (result == null) {
-			ret = null;
-		} else {
-			ret = result;
-		}
-		return ret;
+		Expression specialized = new Expression(infix(residual), mc, variableMap, operatorMap, functionMap,
+				variableTypes, residual);
+		specialized.firstVarChars = firstVarChars;
+		specialized.varChars = varChars;
+		specialized.normalization = normalization;
+		return specialized.setListener(listener).setFunctionCache(functionCache).setBudget(budget);
 	}
 
 	/**
-	 * Cached access to the RPN notation of this expression, ensures only one
-	 * calculation of the RPN per expression instance. If no cached instance
-	 * exists, a new one will be created and put to the cache.
-	 * @return The cached RPN instance.
+	 * Replaces the tokens of a subtree at the end of an RPN.
+	 * @param rpn The RPN.
+	 * @param start The position of the first token of the subtree.
+	 * @param token The replacement.
 	 */
-	private List<Token> getRPN() {
-		if (rpn == null) {
-			rpn = shuntingYard(this.expression);
-			validate(rpn);
-		}
-		return rpn;
+	private static void replace(List<Token> rpn, int start, Token token) {
+		rpn.subList(start, rpn.size()).clear();
+		rpn.add(token);
 	}
 
 	/**
-	 * Check that the expression has enough numbers and variables to fit the
-	 * requirements of the operators and functions, also check 
-	 * for only 1 result stored at the end of the evaluation.
+	 * @param value A value.
+	 * @param pos The position of the subexpression with the value.
+	 * @return A literal token of the value.
 	 */
-	private void validate(List<Token> rpn) {
-		/*-
-		* Thanks to Norman Ramsey:
-		* http://http://stackoverflow.com/questions/789847/postfix-notation-validation
-		*/
-		// each push on to this stack is a new function scope, with the value of each
-		// layer on the stack being the count of the number of parameters in that scope
-		Stack<Integer> stack = new Stack<Integer>();
-
-		// push the 'global' scope
-		stack.push(0);
+	private static Token literal(ExpNode value, int pos) {
+		Token token = new Token();
+		token.pos = pos;
+		if (value == null) {
+			token.type = TokenType.LITERAL;
+			token.surface = "NULL";
+		} else if (value.getType() == ExpNodeType.NUMERIC) {
+			token.type = TokenType.LITERAL;
+			token.literal = value.getNumeric();
+			token.surface = token.literal.toPlainString();
+		} else {
+			token.type = TokenType.STR_LITERAL;
+			token.surface = value.getText();
+		}
+		return token;
+	}
 
-		for (final Token token : rpn) {
+	/**
+	 * Renders an RPN in infix notation, with parentheses where the precedence of the operators
+	 * requires them.
+	 * @param rpn A valid RPN.
+	 * @return The infix expression.
+	 */
+	private String infix(List<Token> rpn) {
+		// the text of each pending operand and the operator at its root, null for parameter list starts
+		String[] texts = new String[rpn.size()];
+		Operator[] roots = new Operator[rpn.size()];
+		int sp = 0;
+		for (Token token : rpn) {
 			switch(token.type) {
-				case UNARY_OPERATOR:
-					if(stack.peek() < 1) {
-						throw new ExpressionException("Missing parameter(s) for operator " + token);
-					}
+				case UNARY_OPERATOR: {
+					Operator o = operatorMap.get(token.surface);
+					texts[sp - 1] = token.surface.substring(0, token.surface.length() - 1)
+							+ operand(texts[sp - 1], roots[sp - 1], o, false);
+					roots[sp - 1] = o;
 					break;
-				case OPERATOR:
-					if (stack.peek() < 2) {
-						throw new ExpressionException("Missing parameter(s) for operator " + token);
-					}
-					// pop the operator's 2 parameters and add the result
-					stack.set(stack.size() - 1, stack.peek() - 2 + 1);
+				}
+				case OPERATOR: {
+					Operator o = operatorMap.get(token.surface);
+					sp--;
+					texts[sp - 1] = operand(texts[sp - 1], roots[sp - 1], o, false) + " " + token.surface + " "
+							+ operand(texts[sp], roots[sp], o, true);
+					roots[sp - 1] = o;
 					break;
-				case FUNCTION:
-					LazyFunction f = functionMap.get(token.surface.toUpperCase(Locale.ROOT));
-					if(f == null) {
-						throw new ExpressionException("Unknown function '" + token
-								+ "' at position " + (token.pos + 1));
-					}
-
-					int numParams = stack.pop();
-					if (!f.numParamsVaries() && numParams != f.getNumParams()) {
-						throw new ExpressionException("Function " + token + " expected " 
-								+ f.getNumParams() + " parameters, got " + numParams);
+				}
+				case FUNCTION: {
+					int first = sp;
+					while (texts[first - 1] != null) {
+						first--;
 					}
-					if (stack.size() <= 0) {
-						throw new ExpressionException("Too many function calls, maximum scope exceeded");
+					StringBuilder call = new StringBuilder(token.surface).append('(');
+					for (int k = first; k < sp; k++) {
+						call.append(k > first ? ", " : "").append(texts[k]);
 					}
-					// push the result of the function
-					stack.set(stack.size() - 1, stack.peek() + 1);
+					sp = first;
+					texts[sp - 1] = call.append(')').toString();
+					roots[sp - 1] = null;
 					break;
+				}
 				case OPEN_PAREN:
-					stack.push(0);
+					texts[sp] = null;
+					roots[sp++] = null;
+					break;
+				case STR_LITERAL:
+					roots[sp] = null;
+					texts[sp++] = "'" + token.surface + "'";
 					break;
 				default:
-					stack.set(stack.size() - 1, stack.peek() + 1);
+					roots[sp] = null;
+					texts[sp++] = token.surface.startsWith("-") ? "(" + token.surface + ")" : token.surface;
+					break;
 			}
 		}
+		return texts[0];
+	}
 
-		if (stack.size() > 1) {
-			throw new ExpressionException("Too many unhandled function parameter lists");
-		} else if (stack.peek() > 1) {
-			throw new ExpressionException("Too many numbers or variables");
-		} else if (stack.peek() < 1) {
-			throw new ExpressionException("Empty expression");
+	/**
+	 * @param text The text of an operand.
+	 * @param root The operator at the root of the operand, <code>null</code> if none.
+	 * @param o The operator applied to the operand.
+	 * @param right Whether the operand is the right one.
+	 * @return The text, in parentheses if the precedence of the operators requires them.
+	 */
+	private static String operand(String text, Operator root, Operator o, boolean right) {
+		if (root == null || root.getPrecedence() > o.getPrecedence()
+				|| root.getPrecedence() == o.getPrecedence()
+						&& (right ? !o.isLeftAssoc() || root == o && o.isAssociative() : o.isLeftAssoc())) {
+			return text;
 		}
+		return "(" + text + ")";
 	}
 
-	/** The original expression used to construct this expression, without variables substituted. */
-	public String getOriginalExpression() {
-		return this.originalExpression;
+	/** A known parameter value. */
+	private static class Constant implements LazyNumber {
+		private final ExpNode value;
+
+		Constant(ExpNode value) {
+			this.value = value;
+		}
+
+		public ExpNode eval() {
+			return value;
+		}
+
+		public String getString() {
+			return value != null && value.getType() == ExpNodeType.TEXT ? value.getText() : String.valueOf(value);
+		}
+	}
+
+	/**
+	 * Evaluates the subtree of the RPN between <code>from</code> and <code>to</code> (inclusive).
+	 * Operators, variables and literals are reduced iteratively on an operand stack, only function
+	 * parameters are handed out as {@link LazyNumber}s. The call depth therefore grows with the
+	 * nesting of functions, never with the length of operator chains.
+	 * @param from The position of the first token of the subtree.
+	 * @param to The position of the root token of the subtree.
+	 * @param variables The variables to evaluate with.
+	 * @param profile The profile to record the time of every node in, <code>null</code> if not profiling.
+	 * @param usage The usage of the evaluation budget, <code>null</code> if unlimited.
+	 * @param context The scratch space to keep the operand stack in.
+	 * @return The result of the subtree.
+	 * @throws Exception 
+	 */
+	private ExpNode evalRange(int from, int to, Map<String, ExpNode> variables, EvaluationProfile profile,
+			EvaluationBudget.Usage usage, EvaluationContext context) throws Exception {
+		Compiled compiled = this.compiled;
+		byte[] codes = compiled.program.codes;
+		int[] links = compiled.program.links;
+		Object[] values = compiled.values;
+		// the operand stack is a range of the stack of the context, which may be replaced by nested
+		// evaluations growing it, but keeps this range in the array it was in when reserved
+		int base = context.reserve(compiled.program.maxDepth);
+		ExpNode[] stack = context.stack();
+		// when profiling, the time the evaluation of the subtree in each stack slot started
+		long[] started = profile != null ? new long[compiled.program.maxDepth] : null;
+		int sp = base;
+		try {
+			for (int i = from; i <= to; i++) {
+				TokenType type = TOKEN_TYPES[codes[i]];
+				long time = profile != null ? System.nanoTime() : 0;
+				long childTime = 0;
+				switch(type) {
+					case UNARY_OPERATOR:
+						stack[sp - 1] = ((Operator) values[i]).eval(stack[sp - 1], null);
+						break;
+					case OPERATOR:
+						sp--;
+						if (usage != null) {
+							usage.checkOperands(compiled.names[i], stack[sp - 1], stack[sp], mc);
+						}
+						stack[sp - 1] = ((Operator) values[i]).eval(stack[sp - 1], stack[sp]);
+						stack[sp] = null;
+						break;
+					case VARIABLE:
+						stack[sp++] = variable(i, variables);
+						break;
+					case OPEN_PAREN:
+						if (profile != null) {
+							profile.enter();
+						}
+						stack[sp++] = evalFunction(i, links[i], variables, profile, usage, context);
+						if (profile != null) {
+							childTime = profile.exit();
+						}
+						if (usage != null) {
+							usage.checkTime();
+						}
+						i = links[i];
+						break;
+					case LITERAL:
+					case HEX_LITERAL:
+					case STR_LITERAL:
+						stack[sp++] = constantAt(i);
+						break;
+					default:
+						break;
+				}
+				if (usage != null) {
+					usage.step(stack[sp - 1]);
+				}
+				if (profile != null) {
+					if (type != TokenType.OPERATOR && type != TokenType.UNARY_OPERATOR) {
+						started[sp - 1 - base] = time;
+					}
+					long end = System.nanoTime();
+					profile.record(i, end - started[sp - 1 - base], end - time - childTime);
+				}
+			}
+			return stack[sp - 1];
+		} finally {
+			Arrays.fill(stack, base, sp, null);
+			context.release(base);
+		}
+	}
+
+	/**
+	 * @param i The position of a literal in the RPN.
+	 * @return A new node of the value of the literal, <code>null</code> for <code>NULL</code>.
+	 */
+	private ExpNode constantAt(int i) {
+		ExpNode value = (ExpNode) compiled.values[i];
+		return value != null ? value.copy() : null;
+	}
+
+	/**
+	 * Reads a variable, rounding numeric values to the math context of this expression.
+	 * @param i The position of the variable in the RPN.
+	 * @param variables The variables to evaluate with.
+	 * @return The value of the variable.
+	 */
+	private ExpNode variable(int i, Map<String, ExpNode> variables) {
+		Compiled compiled = this.compiled;
+		String name = compiled.names[i];
+		int[] variableSlots = compiled.program.variableSlots;
+		ExpNode value;
+		if (variables == variableMap && variableSlots != null) {
+			if (variableSlots[i] < 0) {
+				throw new ExpressionException("Unknown operator or function: " + name);
+			}
+			value = ((Registry<ExpNode>) variables).valueAt(variableSlots[i]);
+		} else {
+			value = variables.get(name);
+			if (value == null && !variables.containsKey(name)) {
+				throw new ExpressionException("Unknown operator or function: " + name);
+			}
+		}
+		ExpNodeType type = compiled.program.nodeType(i);
+		if (type != null && (value == null || value.getType() != type)) {
+			throw new ExpressionException("Variable " + name + " is declared " + type + ", got "
+					+ (value == null ? "null" : value.getType()));
+		}
+		if (value != null && value.getType() == ExpNodeType.NUMERIC && !(variables instanceof Column.Row)) {
+			// rows round their values themselves
+			value = value.round(mc);
+		}
+		return value;
+	}
+
+	/**
+	 * Evaluates a function call, passing each parameter subtree as a {@link LazyNumber}.
+	 * @param start The position of the parameter list start in the RPN.
+	 * @param end The position of the function token in the RPN.
+	 * @param variables The variables to evaluate with.
+	 * @param profile The profile to record the time of every node in, <code>null</code> if not profiling.
+	 * @param usage The usage of the evaluation budget, <code>null</code> if unlimited.
+	 * @param context The scratch space of the evaluation.
+	 * @return The result of the function.
+	 * @throws Exception 
+	 */
+	private ExpNode evalFunction(int start, int end, Map<String, ExpNode> variables, EvaluationProfile profile,
+			EvaluationBudget.Usage usage, EvaluationContext context) throws Exception {
+		Compiled compiled = this.compiled;
+		int[] links = compiled.program.links;
+		LazyFunction f = (LazyFunction) compiled.values[end];
+		if (profile == null && f instanceof Function && ((Function) f).isEager()) {
+			return evalEager((Function) f, start, end, variables, usage, context);
+		}
+		ArrayList<LazyNumber> p = new ArrayList<LazyNumber>(
+				!f.numParamsVaries() ? f.getNumParams() : 0);
+		for (int to = end - 1; to > start; to = links[to] - 1) {
+			p.add(0, new Subtree(links[to], to, variables, profile, usage, context));
+		}
+		FunctionCache cache = functionCache;
+		FunctionCache.Key key = null;
+		if (cache != null && isCached(f)) {
+			String[] names = new String[p.size()];
+			ExpNode[] values = new ExpNode[p.size()];
+			for (int i = 0; i < values.length; i++) {
+				Subtree param = (Subtree) p.get(i);
+				names[i] = variableName(param.from, param.to);
+				values[i] = param.fix();
+			}
+			key = new FunctionCache.Key(names, values);
+			ExpNode result = cache.get(registered(end), key);
+			if (result != FunctionCache.MISS) {
+				return result;
+			}
+		}
+		ExpNode result;
+		if (JfrSupport.isFunctionEnabled()) {
+			FunctionEvent event = new FunctionEvent();
+			event.begin();
+			result = f.lazyEval(p).eval();
+			event.end();
+			if (event.shouldCommit()) {
+				event.function = f.getName();
+				event.expression = getId();
+				event.commit();
+			}
+		} else {
+			result = f.lazyEval(p).eval();
+		}
+		if (key != null) {
+			cache.put(registered(end), key, result);
+		}
+		return result;
+	}
+
+	/**
+	 * @param f A function.
+	 * @return <code>true</code> if the calls of the function are cached when there is a
+	 *         {@link FunctionCache}: it is pure and evaluates all its parameters anyway.
+	 */
+	private static boolean isCached(LazyFunction f) {
+		return f.isPure() && (f instanceof AsyncFunction || f instanceof Function && ((Function) f).isEager());
+	}
+
+	/**
+	 * @param end The position of a function token in the RPN.
+	 * @return The function registered for the call, which its results are cached for, as the
+	 *         function called may be bound to the call site, see {@link LazyFunction#bind}.
+	 */
+	private LazyFunction registered(int end) {
+		Compiled compiled = this.compiled;
+		LazyFunction f = functionMap.get(compiled.names[end].toUpperCase(Locale.ROOT));
+		return f != null ? f : (LazyFunction) compiled.values[end];
+	}
+
+	/**
+	 * Evaluates a call of a {@link Function} evaluating all its parameters, which are evaluated
+	 * into the stack of the context and passed as a view of it instead of lazy subtrees.
+	 * @param f The function.
+	 * @param start The position of the parameter list start in the RPN.
+	 * @param end The position of the function token in the RPN.
+	 * @param variables The variables to evaluate with.
+	 * @param usage The usage of the evaluation budget, <code>null</code> if unlimited.
+	 * @param context The scratch space of the evaluation.
+	 * @return The result of the function.
+	 * @throws Exception 
+	 */
+	private ExpNode evalEager(Function f, int start, int end, Map<String, ExpNode> variables,
+			EvaluationBudget.Usage usage, EvaluationContext context) throws Exception {
+		int[] links = compiled.program.links;
+		int n = 0;
+		for (int to = end - 1; to > start; to = links[to] - 1) {
+			n++;
+		}
+		int base = context.reserve(n);
+		try {
+			int k = n;
+			for (int to = end - 1; to > start; to = links[to] - 1) {
+				ExpNode value = evalRange(links[to], to, variables, null, usage, context);
+				context.stack()[base + --k] = value;
+			}
+			if (usage != null && n == 2) {
+				usage.checkOperands(f.getName(), context.stack()[base], context.stack()[base + 1], mc);
+			}
+			FunctionCache cache = functionCache;
+			FunctionCache.Key key = null;
+			if (cache != null && f.isPure()) {
+				String[] names = new String[n];
+				k = n;
+				for (int to = end - 1; to > start; to = links[to] - 1) {
+					names[--k] = variableName(links[to], to);
+				}
+				key = new FunctionCache.Key(names, Arrays.copyOfRange(context.stack(), base, base + n));
+				ExpNode result = cache.get(registered(end), key);
+				if (result != FunctionCache.MISS) {
+					return result;
+				}
+			}
+			ExpNode result;
+			List<ExpNode> parameters = context.openCall(base, n);
+			try {
+				if (JfrSupport.isFunctionEnabled()) {
+					FunctionEvent event = new FunctionEvent();
+					event.begin();
+					result = f.eval(parameters);
+					event.end();
+					if (event.shouldCommit()) {
+						event.function = f.getName();
+						event.expression = getId();
+						event.commit();
+					}
+				} else {
+					result = f.eval(parameters);
+				}
+			} finally {
+				context.closeCall();
+			}
+			if (key != null) {
+				cache.put(registered(end), key, result);
+			}
+			return result;
+		} finally {
+			context.release(base);
+		}
+	}
+
+	/**
+	 * @param from The position of the first token of a parameter.
+	 * @param to The position of the last token of a parameter.
+	 * @return The name of the variable if the parameter is a single variable, else <code>null</code>.
+	 */
+	private String variableName(int from, int to) {
+		Compiled compiled = this.compiled;
+		return from == to && compiled.program.type(to) == TokenType.VARIABLE ? compiled.names[to] : null;
+	}
+
+	/**
+	 * Composes the futures of the subtree of the RPN between <code>from</code> and <code>to</code>
+	 * (inclusive), like {@link #evalRange} reduces values.
+	 * @param from The position of the first token of the subtree.
+	 * @param to The position of the root token of the subtree.
+	 * @param variables The variables to evaluate with.
+	 * @param usage The usage of the evaluation budget, <code>null</code> if unlimited.
+	 * @param executor The executor to run functions on.
+	 * @return The future result of the subtree.
+	 */
+	private CompletableFuture<ExpNode> evalRangeAsync(int from, int to, Map<String, ExpNode> variables,
+			final EvaluationBudget.Usage usage, Executor executor) {
+		final Compiled compiled = this.compiled;
+		int[] links = compiled.program.links;
+		List<CompletableFuture<ExpNode>> stack = new ArrayList<CompletableFuture<ExpNode>>(compiled.program.maxDepth);
+		for (int i = from; i <= to; i++) {
+			switch(compiled.program.type(i)) {
+				case UNARY_OPERATOR: {
+					final Operator operator = (Operator) compiled.values[i];
+					int top = stack.size() - 1;
+					stack.set(top, stack.get(top).thenApply(new java.util.function.Function<ExpNode, ExpNode>() {
+						public ExpNode apply(ExpNode v) {
+							return step(usage, operator.eval(v, null));
+						}
+					}));
+					break;
+				}
+				case OPERATOR: {
+					final Operator operator = (Operator) compiled.values[i];
+					final String name = compiled.names[i];
+					CompletableFuture<ExpNode> right = stack.remove(stack.size() - 1);
+					int top = stack.size() - 1;
+					stack.set(top, stack.get(top).thenCombine(right, new BiFunction<ExpNode, ExpNode, ExpNode>() {
+						public ExpNode apply(ExpNode v1, ExpNode v2) {
+							if (usage != null) {
+								usage.checkOperands(name, v1, v2, mc);
+							}
+							return step(usage, operator.eval(v1, v2));
+						}
+					}));
+					break;
+				}
+				case VARIABLE:
+					stack.add(CompletableFuture.completedFuture(step(usage, variable(i, variables))));
+					break;
+				case OPEN_PAREN: {
+					CompletableFuture<ExpNode> result = evalFunctionAsync(i, links[i], variables, usage, executor);
+					stack.add(usage == null ? result : result.thenApply(new java.util.function.Function<ExpNode, ExpNode>() {
+						public ExpNode apply(ExpNode v) {
+							usage.checkTime();
+							return step(usage, v);
+						}
+					}));
+					i = links[i];
+					break;
+				}
+				case LITERAL:
+				case HEX_LITERAL:
+				case STR_LITERAL:
+					stack.add(CompletableFuture.completedFuture(step(usage, constantAt(i))));
+					break;
+				default:
+					break;
+			}
+		}
+		return stack.get(stack.size() - 1);
+	}
+
+	/**
+	 * Composes the future of a function call. The parameters of {@link AsyncFunction}s and
+	 * {@link Function}s are evaluated concurrently, then a {@link Function} is called on the
+	 * executor, or by the thread completing the last of them if it is inline. Other
+	 * {@link LazyFunction}s decide about their parameters themselves and are evaluated as a whole
+	 * on the executor.
+	 * @param start The position of the parameter list start in the RPN.
+	 * @param end The position of the function token in the RPN.
+	 * @param variables The variables to evaluate with.
+	 * @param usage The usage of the evaluation budget, <code>null</code> if unlimited.
+	 * @param executor The executor to run functions on.
+	 * @return The future result of the function.
+	 */
+	private CompletableFuture<ExpNode> evalFunctionAsync(final int start, final int end,
+			final Map<String, ExpNode> variables, final EvaluationBudget.Usage usage, final Executor executor) {
+		int[] links = compiled.program.links;
+		final LazyFunction f = (LazyFunction) compiled.values[end];
+		if (!(f instanceof AsyncFunction) && !(f instanceof Function && ((Function) f).isEager())) {
+			return CompletableFuture.supplyAsync(new Supplier<ExpNode>() {
+				public ExpNode get() {
+					try {
+						return evalFunction(start, end, variables, null, usage, EvaluationContext.current());
+					} catch (RuntimeException e) {
+						throw e;
+					} catch (Exception e) {
+						throw new CompletionException(e);
+					}
+				}
+			}, executor);
+		}
+		final List<CompletableFuture<ExpNode>> params = new ArrayList<CompletableFuture<ExpNode>>();
+		List<String> n = new ArrayList<String>();
+		for (int to = end - 1; to > start; to = links[to] - 1) {
+			params.add(0, evalRangeAsync(links[to], to, variables, usage, executor));
+			n.add(0, variableName(links[to], to));
+		}
+		CompletableFuture<Void> all = CompletableFuture.allOf(params.toArray(new CompletableFuture<?>[params.size()]));
+		final String[] names = n.toArray(new String[n.size()]);
+		final FunctionCache cache = f.isPure() ? functionCache : null;
+		final LazyFunction registered = cache != null ? registered(end) : null;
+		if (f instanceof AsyncFunction) {
+			return all.thenCompose(new java.util.function.Function<Void, CompletableFuture<ExpNode>>() {
+				public CompletableFuture<ExpNode> apply(Void v) {
+					final ExpNode[] values = values(params);
+					if (cache == null) {
+						return ((AsyncFunction) f).evalAsync(Arrays.asList(values));
+					}
+					final FunctionCache.Key key = new FunctionCache.Key(names, values);
+					ExpNode cached = cache.get(registered, key);
+					if (cached != FunctionCache.MISS) {
+						return CompletableFuture.completedFuture(cached);
+					}
+					return ((AsyncFunction) f).evalAsync(Arrays.asList(values)).thenApply(new java.util.function.Function<ExpNode, ExpNode>() {
+						public ExpNode apply(ExpNode result) {
+							cache.put(registered, key, result);
+							return result;
+						}
+					});
+				}
+			});
+		}
+		java.util.function.Function<Void, ExpNode> call = new java.util.function.Function<Void, ExpNode>() {
+			public ExpNode apply(Void v) {
+				ExpNode[] values = values(params);
+				FunctionCache.Key key = null;
+				if (cache != null) {
+					key = new FunctionCache.Key(names, values);
+					ExpNode cached = cache.get(registered, key);
+					if (cached != FunctionCache.MISS) {
+						return cached;
+					}
+				}
+				try {
+					ExpNode result = ((Function) f).eval(Arrays.asList(values));
+					if (key != null) {
+						cache.put(registered, key, result);
+					}
+					return result;
+				} catch (RuntimeException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new CompletionException(e);
+				}
+			}
+		};
+		return ((Function) f).isInline() ? all.thenApply(call) : all.thenApplyAsync(call, executor);
+	}
+
+	/**
+	 * Counts an evaluated node in the budget.
+	 * @param usage The usage of the evaluation budget, <code>null</code> if unlimited.
+	 * @param value The value of the node.
+	 * @return The value.
+	 */
+	private static ExpNode step(EvaluationBudget.Usage usage, ExpNode value) {
+		if (usage != null) {
+			usage.step(value);
+		}
+		return value;
+	}
+
+	/**
+	 * @param futures Completed futures.
+	 * @return The values of the futures.
+	 */
+	private static ExpNode[] values(List<CompletableFuture<ExpNode>> futures) {
+		ExpNode[] values = new ExpNode[futures.size()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = futures.get(i).join();
+		}
+		return values;
+	}
+
+	/** A lazily evaluated subtree of the RPN, used as a function parameter. */
+	private class Subtree implements LazyNumber {
+		private final int from;
+		private final int to;
+		private final Map<String, ExpNode> variables;
+		private final EvaluationProfile profile;
+		private final EvaluationBudget.Usage usage;
+		private final EvaluationContext context;
+		/** The value, if evaluated once for all by {@link #fix()}. */
+		private ExpNode value;
+		private boolean fixed;
+
+		Subtree(int from, int to, Map<String, ExpNode> variables, EvaluationProfile profile,
+				EvaluationBudget.Usage usage, EvaluationContext context) {
+			this.from = from;
+			this.to = to;
+			this.variables = variables;
+			this.profile = profile;
+			this.usage = usage;
+			this.context = context;
+		}
+
+		/**
+		 * Evaluates the subtree once, further evaluations return the same value.
+		 * @return The value of the subtree.
+		 * @throws Exception 
+		 */
+		ExpNode fix() throws Exception {
+			value = eval();
+			fixed = true;
+			return value;
+		}
+
+		public ExpNode eval() throws Exception {
+			if (fixed) {
+				return value;
+			}
+			if (profile == null) {
+				return evalRange(from, to, variables, null, usage, context);
+			}
+			long start = System.nanoTime();
+			try {
+				return evalRange(from, to, variables, profile, usage, context);
+			} finally {
+				profile.addChildTime(System.nanoTime() - start);
+			}
+		}
+
+		public String getString() throws Exception {
+			Compiled compiled = Expression.this.compiled;
+			TokenType type = compiled.program.type(to);
+			if (from == to && (type == TokenType.VARIABLE || type == TokenType.STR_LITERAL)) {
+				return compiled.names[to];
+			}
+			return String.valueOf(eval());
+		}
+	}
+
+	/**
+	 * Cached access to the compiled RPN of this expression, compiling it if not done yet. Threads
+	 * compiling the expression at the same time may each compile it, the last one is kept.
+	 * @return The compiled RPN.
+	 */
+	private Compiled compiled() {
+		Compiled compiled = this.compiled;
+		if (compiled != null) {
+			return compiled;
+		}
+		CompileEvent event = null;
+		if (JfrSupport.isCompileEnabled()) {
+			event = new CompileEvent();
+			event.begin();
+		}
+		long start = listener != null ? System.nanoTime() : 0;
+		try {
+			if (programCache == null) {
+				compiled = assemble(compileRPN(new Tokenizer(expression)));
+			} else {
+				List<Token> tokens = tokenize();
+				String shape = shape(tokens);
+				ProgramCache.Entry cached = programCache.get(shape, this);
+				if (cached != null && declaresSameTypes(cached, tokens)) {
+					compiled = share(cached, tokens);
+				} else {
+					List<Token> rpn = compileRPN(tokens.iterator());
+					compiled = assemble(rpn);
+					programCache.put(shape, this, compiled, sources(tokens, rpn));
+				}
+			}
+		} catch (RuntimeException e) {
+			if (listener != null) {
+				listener.failed(this, ExpressionListener.Phase.COMPILE, System.nanoTime() - start, e);
+			}
+			if (event != null) {
+				event.end();
+				if (event.shouldCommit()) {
+					event.expression = getId();
+					event.commit();
+				}
+			}
+			throw e;
+		}
+		this.compiled = compiled;
+		if (listener != null) {
+			listener.compiled(this, System.nanoTime() - start);
+		}
+		if (event != null) {
+			event.end();
+			if (event.shouldCommit()) {
+				event.expression = getId();
+				event.tokens = compiled.size();
+				event.commit();
+			}
+		}
+		return compiled;
+	}
+
+	/**
+	 * The RPN of this expression as tokens, e.g. to store it in an {@link ExpressionPack}.
+	 * @return New tokens of the compiled RPN.
+	 */
+	List<Token> getRPN() {
+		Compiled compiled = compiled();
+		List<Token> rpn = new ArrayList<Token>(compiled.size());
+		for (int i = 0; i < compiled.size(); i++) {
+			Token token = new Token();
+			token.type = compiled.program.type(i);
+			token.surface = compiled.names[i];
+			token.pos = compiled.offsets[i];
+			rpn.add(token);
+		}
+		return rpn;
+	}
+
+	/**
+	 * Parses, validates and rebalances the expression.
+	 * @param tokenizer The tokens of the expression.
+	 * @return The RPN.
+	 */
+	private List<Token> compileRPN(Iterator<Token> tokenizer) {
+		List<Token> tokens = shuntingYard(tokenizer);
+		validate(tokens);
+		return rebalance(tokens);
+	}
+
+	/**
+	 * Indexes and types a validated RPN.
+	 * @param rpn The RPN.
+	 * @return The compiled RPN.
+	 * @throws ExpressionException If the expression is ill-typed.
+	 */
+	private Compiled assemble(List<Token> rpn) {
+		int size = rpn.size();
+		byte[] codes = new byte[size];
+		int[] offsets = new int[size];
+		String[] names = new String[size];
+		for (int i = 0; i < size; i++) {
+			Token token = rpn.get(i);
+			codes[i] = (byte) token.type.ordinal();
+			offsets[i] = token.pos;
+			names[i] = token.surface;
+		}
+		int[] links = new int[size];
+		Object[] values = new Object[size];
+		int maxDepth = index(rpn, links, values);
+		ExpNodeType[] types = new ExpNodeType[size];
+		int[] variableSlots = variableMap instanceof Registry ? new int[size] : null;
+		infer(rpn, links, values, types, variableSlots);
+		return new Compiled(new Program(codes, links, maxDepth, types, variableSlots), offsets, names, values);
+	}
+
+	/**
+	 * The shape of the expression: its tokens without whitespace, with names and operators in upper
+	 * case, as they are looked up ignoring case, and literals replaced by <code>?</code>, or <code>'?'</code> for strings. Expressions of
+	 * the same shape differ only in their literals and compile to the same program, see
+	 * {@link ProgramCache}.
+	 * @return The shape, e.g. <code>SCORE &gt; ?</code> for <code>score&gt;0.75</code>.
+	 */
+	public String getShape() {
+		return shape(tokenize());
+	}
+
+	/**
+	 * @return The tokens of the expression.
+	 */
+	private List<Token> tokenize() {
+		List<Token> tokens = new ArrayList<Token>();
+		Tokenizer tokenizer = new Tokenizer(expression);
+		while (tokenizer.hasNext()) {
+			tokens.add(tokenizer.next());
+		}
+		return tokens;
+	}
+
+	/**
+	 * @param tokens The tokens of the expression.
+	 * @return The shape of the expression.
+	 */
+	private String shape(List<Token> tokens) {
+		StringBuilder shape = new StringBuilder();
+		for (Token token : tokens) {
+			if (shape.length() > 0) {
+				shape.append(' ');
+			}
+			switch(token.type) {
+				case LITERAL:
+				case HEX_LITERAL:
+					shape.append('?');
+					break;
+				case STR_LITERAL:
+					shape.append("'?'");
+					break;
+				case FUNCTION:
+				case VARIABLE:
+				case OPERATOR:
+				case UNARY_OPERATOR:
+					shape.append(token.surface.toUpperCase(Locale.ROOT));
+					break;
+				default:
+					shape.append(token.surface);
+					break;
+			}
+		}
+		return shape.toString();
+	}
+
+	/**
+	 * @param tokens The tokens the RPN was compiled from.
+	 * @param rpn The RPN.
+	 * @return The index of the token at each position of the RPN in the tokens, <code>-1</code>
+	 *         for tokens added by the parser.
+	 */
+	private static int[] sources(List<Token> tokens, List<Token> rpn) {
+		Map<Token, Integer> indexes = new IdentityHashMap<Token, Integer>();
+		for (int k = 0; k < tokens.size(); k++) {
+			indexes.put(tokens.get(k), k);
+		}
+		int[] sources = new int[rpn.size()];
+		for (int i = 0; i < sources.length; i++) {
+			Integer k = indexes.get(rpn.get(i));
+			sources[i] = k != null ? k : -1;
+		}
+		return sources;
+	}
+
+	private static boolean isLiteral(Token token) {
+		return token.type == TokenType.LITERAL || token.type == TokenType.HEX_LITERAL
+				|| token.type == TokenType.STR_LITERAL;
+	}
+
+	/**
+	 * @return A hash code of the definitions compared by {@link #hasDefinitionsOf}.
+	 */
+	int definitionsHashCode() {
+		return (System.identityHashCode(variableMap) * 31 + System.identityHashCode(operatorMap)) * 31
+				+ System.identityHashCode(functionMap);
+	}
+
+	/**
+	 * @param expression An expression.
+	 * @return Whether the expression is compiled with the same operators, functions, variables
+	 * and settings as this one, so that it can share the program of this one.
+	 */
+	boolean hasDefinitionsOf(Expression expression) {
+		return mc == expression.mc && variableMap == expression.variableMap && operatorMap == expression.operatorMap
+				&& functionMap == expression.functionMap && variableTypes == expression.variableTypes
+				&& firstVarChars.equals(expression.firstVarChars) && varChars.equals(expression.varChars);
+	}
+
+	/**
+	 * Variable names are folded in shapes, but a case sensitive map of variable types may declare
+	 * different types for names that differ only in case.
+	 * @param cached The program of the same shape.
+	 * @param source The tokens of this expression.
+	 * @return Whether the variables of this expression are declared the types the program was
+	 *         compiled with.
+	 */
+	private boolean declaresSameTypes(ProgramCache.Entry cached, List<Token> source) {
+		if (variableTypes == null) {
+			return true;
+		}
+		for (int i = 0; i < cached.sources.length; i++) {
+			int k = cached.sources[i];
+			if (k >= 0 && source.get(k).type == TokenType.VARIABLE
+					&& variableTypes.get(source.get(k).surface) != cached.compiled.program.nodeType(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Takes over the compiled program of an expression of the same shape, with the tokens of
+	 * this expression. The program, i.e. the subtree boundaries and types, and the operator
+	 * implementations are shared, only the token positions and surfaces, literal values and the
+	 * function calls bound to them are kept per expression, so that positions and names in errors
+	 * refer to the text of this expression.
+	 * @param cached The program of the same shape.
+	 * @param source The tokens of this expression.
+	 * @return The compiled RPN, with the tokens of this expression.
+	 * @throws ExpressionException If a function does not accept one of the literals.
+	 */
+	private Compiled share(ProgramCache.Entry cached, List<Token> source) {
+		Program program = cached.compiled.program;
+		int size = cached.compiled.size();
+		int[] offsets = new int[size];
+		String[] names = new String[size];
+		Object[] values = new Object[size];
+		for (int i = 0; i < size; i++) {
+			int k = cached.sources[i];
+			if (k < 0) {
+				offsets[i] = cached.compiled.offsets[i];
+				names[i] = cached.compiled.names[i];
+				values[i] = cached.compiled.values[i];
+				continue;
+			}
+			Token token = source.get(k);
+			offsets[i] = token.pos;
+			names[i] = token.surface;
+			if (isLiteral(token)) {
+				values[i] = constant(token);
+			} else if (token.type == TokenType.OPERATOR || token.type == TokenType.UNARY_OPERATOR) {
+				values[i] = cached.compiled.values[i];
+			}
+		}
+		for (int i = 0; i < size; i++) {
+			if (program.type(i) == TokenType.FUNCTION) {
+				values[i] = bind(functionMap.get(names[i].toUpperCase(Locale.ROOT)), i, program.links, values);
+			}
+		}
+		return new Compiled(program, offsets, names, values);
+	}
+
+	/**
+	 * @param f A function.
+	 * @param i The position of a call of the function in the indexed RPN.
+	 * @param links The links of the RPN, see {@link Program#links}.
+	 * @param values The literal values of the RPN.
+	 * @return The function bound to the literal parameters of the call, see {@link LazyFunction#bind}.
+	 */
+	private static LazyFunction bind(LazyFunction f, int i, int[] links, Object[] values) {
+		int n = 0;
+		for (int to = i - 1; to > links[i]; to = links[to] - 1) {
+			n++;
+		}
+		ExpNode[] literals = new ExpNode[n];
+		for (int to = i - 1; to > links[i]; to = links[to] - 1) {
+			literals[--n] = links[to] == to ? (ExpNode) values[to] : null;
+		}
+		return f.bind(literals);
+	}
+
+	/**
+	 * Infers the type of every subtree of an indexed RPN from its literals, the declared types of
+	 * variables and the signatures of operators and functions. Selects the implementation of each
+	 * operator for the types of its operands, binds each function call to its literal parameters
+	 * and rejects operators and functions applied to operands of types they do not accept.
+	 * @param rpn The indexed RPN.
+	 * @param links The links of the RPN, see {@link Program#links}.
+	 * @param values The literal values of the RPN, the operators and functions are stored with them.
+	 * @param types The inferred type of the subtree ending at each position of the RPN.
+	 * @param variableSlots The index of each variable in the variables, <code>null</code> if not a {@link Registry}.
+	 * @throws ExpressionException If the expression is ill-typed.
+	 */
+	private void infer(List<Token> rpn, int[] links, Object[] values, ExpNodeType[] types, int[] variableSlots) {
+		int size = rpn.size();
+		for (int i = 0; i < size; i++) {
+			Token token = rpn.get(i);
+			switch(token.type) {
+				case UNARY_OPERATOR:
+					values[i] = resolve(token, i, types[i - 1], null, types);
+					break;
+				case OPERATOR:
+					values[i] = resolve(token, i, types[links[i - 1] - 1], types[i - 1], types);
+					break;
+				case FUNCTION:
+					LazyFunction f = functionMap.get(token.surface.toUpperCase(Locale.ROOT));
+					List<Integer> params = new ArrayList<Integer>();
+					for (int to = i - 1; to > links[i]; to = links[to] - 1) {
+						params.add(0, to);
+					}
+					values[i] = bind(f, i, links, values);
+					ExpNodeType[] paramTypes = f.getParamTypes();
+					if (paramTypes != null && paramTypes.length > 0) {
+						for (int k = 0; k < params.size(); k++) {
+							ExpNodeType expected = paramTypes[Math.min(k, paramTypes.length - 1)];
+							ExpNodeType actual = types[params.get(k)];
+							if (expected != null && actual != null && expected != actual) {
+								throw new ExpressionException("Function " + token + " expected " + expected
+										+ " for parameter " + (k + 1) + ", got " + actual + " at position " + (token.pos + 1));
+							}
+						}
+					}
+					types[i] = f.getResultType();
+					break;
+				case VARIABLE:
+					types[i] = variableTypes != null ? variableTypes.get(token.surface) : null;
+					if (variableSlots != null) {
+						variableSlots[i] = ((Registry<ExpNode>) variableMap).indexOf(token.surface);
+					}
+					break;
+				case LITERAL:
+					types[i] = values[i] != null ? ExpNodeType.NUMERIC : null;
+					break;
+				case HEX_LITERAL:
+					types[i] = ExpNodeType.NUMERIC;
+					break;
+				case STR_LITERAL:
+					types[i] = ExpNodeType.TEXT;
+					break;
+				default:
+					break;
+			}
+		}
+	}
+
+	/**
+	 * Selects the implementation of an operator for the types of its operands, and records the
+	 * type of its result.
+	 * @param token The operator token.
+	 * @param i The position of the operator in the RPN.
+	 * @param left The type of the left operand, <code>null</code> if unknown.
+	 * @param right The type of the right operand, <code>null</code> if unknown or unary.
+	 * @param types The inferred types of the RPN.
+	 * @return The implementation.
+	 * @throws ExpressionException If the operator accepts no operands of these types.
+	 */
+	private Operator resolve(Token token, int i, ExpNodeType left, ExpNodeType right, ExpNodeType[] types) {
+		Operator operator = operatorMap.get(token.surface);
+		boolean unary = token.type == TokenType.UNARY_OPERATOR;
+		Operator.Signature match = null;
+		int candidates = 0;
+		for (Operator.Signature signature : operator.getSignatures()) {
+			if (accepts(signature.getLeft(), left) && (unary || accepts(signature.getRight(), right))) {
+				types[i] = candidates++ == 0 || types[i] == signature.getResult() ? signature.getResult() : null;
+				match = signature;
+			}
+		}
+		if (match == null) {
+			if (!operator.getSignatures().isEmpty()) {
+				throw new ExpressionException("Operator " + token + " is not defined for "
+						+ (unary ? left : left + " and " + right) + " at position " + (token.pos + 1));
+			}
+			return operator;
+		}
+		// the implementation for the signature may only be used if it surely applies at runtime
+		boolean known = (match.getLeft() == null || left != null) && (unary || match.getRight() == null || right != null);
+		return candidates == 1 && known ? match.getImplementation() : operator;
+	}
+
+	/**
+	 * @param declared The declared type of an operand, <code>null</code> for either.
+	 * @param actual The inferred type of an operand, <code>null</code> if unknown.
+	 * @return <code>false</code> if the operand surely has another type than the declared one.
+	 */
+	private static boolean accepts(ExpNodeType declared, ExpNodeType actual) {
+		return declared == null || actual == null || declared == actual;
+	}
+
+	/**
+	 * Records the subtree boundaries of a validated RPN, so that the evaluation can skip over
+	 * function parameters, and parses its literals.
+	 * @param rpn The validated RPN.
+	 * @param links The links to record, see {@link Program#links}.
+	 * @param values The values of the literals to record.
+	 * @return The operand stack depth needed to evaluate the RPN.
+	 */
+	private int index(List<Token> rpn, int[] links, Object[] values) {
+		int size = rpn.size();
+		int maxDepth = 0;
+		// start positions of the pending operands, parameter list starts are stored as -(pos + 1)
+		int[] starts = new int[size];
+		// the values of the literals so far, so that equal literals share one value
+		Map<String, ExpNode> literals = null;
+		int sp = 0;
+		for (int i = 0; i < size; i++) {
+			Token token = rpn.get(i);
+			switch(token.type) {
+				case UNARY_OPERATOR:
+					links[i] = starts[sp - 1];
+					break;
+				case OPERATOR:
+					sp--;
+					links[i] = starts[sp - 1];
+					break;
+				case OPEN_PAREN:
+					starts[sp++] = -(i + 1);
+					break;
+				case FUNCTION:
+					while (starts[sp - 1] >= 0) {
+						sp--;
+					}
+					int start = -starts[sp - 1] - 1;
+					links[i] = start;
+					links[start] = i;
+					starts[sp - 1] = start;
+					break;
+				default:
+					links[i] = i;
+					starts[sp++] = i;
+					if (isLiteral(token)) {
+						String key = token.type == TokenType.STR_LITERAL ? "'" + token.surface : token.surface;
+						if (literals == null) {
+							literals = new HashMap<String, ExpNode>();
+						}
+						values[i] = literals.get(key);
+						if (values[i] == null) {
+							values[i] = constant(token);
+							literals.put(key, (ExpNode) values[i]);
+						}
+					}
+			}
+			maxDepth = Math.max(maxDepth, sp);
+		}
+		return maxDepth;
+	}
+
+	/**
+	 * Parses the value of a literal token.
+	 * @return The value, or <code>null</code> if the token is no literal or the <code>NULL</code> literal.
+	 */
+	private ExpNode constant(Token token) {
+		switch(token.type) {
+			case LITERAL:
+				if (token.surface.equalsIgnoreCase("NULL")) {
+					return null;
+				}
+				if (token.literal == null) {
+					token.literal = new BigDecimal(token.surface);
+				}
+				return ExpNode.valueOf(mc != null ? token.literal.round(mc) : token.literal);
+			case HEX_LITERAL:
+				if (token.literal == null) {
+					token.literal = new BigDecimal(new BigInteger(token.surface.substring(2), 16));
+				}
+				return ExpNode.valueOf(mc != null ? token.literal.round(mc) : token.literal);
+			case STR_LITERAL:
+				return ExpNode.genTextExpNode(token.surface);
+			default:
+				return null;
+		}
+	}
+
+	/**
+	 * Rebalances chains of the same associative operator, e.g. <code>a+b+c+d</code>, into
+	 * balanced trees, e.g. <code>(a+b)+(c+d)</code>. The order of the operands is kept, so the
+	 * result is only the same for operators which declare themselves associative.
+	 * @param rpn The validated RPN.
+	 * @return The rebalanced RPN, or the given one if it contains no associative operators.
+	 */
+	private List<Token> rebalance(List<Token> rpn) {
+		boolean associative = false;
+		for (Token token : rpn) {
+			if (token.type == TokenType.OPERATOR && operatorMap.get(token.surface).isAssociative()) {
+				associative = true;
+				break;
+			}
+		}
+		if (!associative) {
+			return rpn;
+		}
+
+		Stack<Segment> stack = new Stack<Segment>();
+		for (Token token : rpn) {
+			switch(token.type) {
+				case UNARY_OPERATOR:
+					stack.push(stack.pop().close().append(new Segment(token)));
+					break;
+				case OPERATOR: {
+					Segment right = stack.pop();
+					Segment left = stack.pop();
+					if (operatorMap.get(token.surface).isAssociative()) {
+						Segment chain = new Segment(token, new ArrayList<Segment>());
+						chain.addOperand(left);
+						chain.addOperand(right);
+						stack.push(chain);
+					} else {
+						stack.push(left.close().append(right.close()).append(new Segment(token)));
+					}
+					break;
+				}
+				case FUNCTION: {
+					Segment params = null;
+					while (!stack.peek().isParamsStart()) {
+						Segment param = stack.pop().close();
+						params = params == null ? param : param.append(params);
+					}
+					Segment function = stack.pop();
+					if (params != null) {
+						function.append(params);
+					}
+					stack.push(function.append(new Segment(token)));
+					break;
+				}
+				default:
+					stack.push(new Segment(token));
+			}
+		}
+
+		List<Token> balanced = new ArrayList<Token>(rpn.size());
+		for (Link link = stack.pop().close().head; link != null; link = link.next) {
+			balanced.add(link.token);
+		}
+		return balanced;
+	}
+
+	/** A node of a singly linked list of RPN tokens. */
+	private static class Link {
+		private final Token token;
+		private Link next;
+
+		Link(Token token) {
+			this.token = token;
+		}
+	}
+
+	/**
+	 * A sequence of RPN tokens forming one or more subtrees, which can be concatenated in constant
+	 * time. A segment may also be an open chain of an associative operator, whose operands are
+	 * collected until the chain is closed and emitted as a balanced tree.
+	 */
+	private static class Segment {
+		private Link head;
+		private Link tail;
+		/** The associative operator of an open chain, <code>null</code> if the segment is closed. */
+		private Token operator;
+		/** The operands of an open chain, in order. */
+		private List<Segment> operands;
+
+		Segment(Token token) {
+			head = tail = new Link(token);
+		}
+
+		Segment(Token operator, List<Segment> operands) {
+			this.operator = operator;
+			this.operands = operands;
+		}
+
+		boolean isParamsStart() {
+			return head != null && head == tail && head.token.type == TokenType.OPEN_PAREN;
+		}
+
+		void addOperand(Segment operand) {
+			if (operand.operator != null && operand.operator.surface.equals(operator.surface)) {
+				operands.addAll(operand.operands);
+			} else {
+				operands.add(operand.close());
+			}
+		}
+
+		Segment append(Segment other) {
+			tail.next = other.head;
+			tail = other.tail;
+			return this;
+		}
+
+		Segment close() {
+			if (operator == null) {
+				return this;
+			}
+			Segment closed = balance(0, operands.size() - 1);
+			head = closed.head;
+			tail = closed.tail;
+			operator = null;
+			operands = null;
+			return this;
+		}
+
+		private Segment balance(int from, int to) {
+			if (from == to) {
+				return operands.get(from);
+			}
+			int mid = (from + to) >>> 1;
+			return balance(from, mid).append(balance(mid + 1, to)).append(new Segment(operator));
+		}
+	}
+
+	/**
+	 * Check that the expression has enough numbers and variables to fit the
+	 * requirements of the operators and functions, also check 
+	 * for only 1 result stored at the end of the evaluation.
+	 */
+	private void validate(List<Token> rpn) {
+		/*-
+		* Thanks to Norman Ramsey:
+		* http://http://stackoverflow.com/questions/789847/postfix-notation-validation
+		*/
+		// each push on to this stack is a new function scope, with the value of each
+		// layer on the stack being the count of the number of parameters in that scope
+		Stack<Integer> stack = new Stack<Integer>();
+
+		// push the 'global' scope
+		stack.push(0);
+
+		for (final Token token : rpn) {
+			switch(token.type) {
+				case UNARY_OPERATOR:
+					if(stack.peek() < 1) {
+						throw new ExpressionException("Missing parameter(s) for operator " + token);
+					}
+					break;
+				case OPERATOR:
+					if (stack.peek() < 2) {
+						throw new ExpressionException("Missing parameter(s) for operator " + token);
+					}
+					// pop the operator's 2 parameters and add the result
+					stack.set(stack.size() - 1, stack.peek() - 2 + 1);
+					break;
+				case FUNCTION:
+					LazyFunction f = functionMap.get(token.surface.toUpperCase(Locale.ROOT));
+					if(f == null) {
+						throw new ExpressionException("Unknown function '" + token
+								+ "' at position " + (token.pos + 1));
+					}
+
+					int numParams = stack.pop();
+					if (!f.numParamsVaries() && numParams != f.getNumParams()) {
+						throw new ExpressionException("Function " + token + " expected " 
+								+ f.getNumParams() + " parameters, got " + numParams);
+					}
+					if (stack.size() <= 0) {
+						throw new ExpressionException("Too many function calls, maximum scope exceeded");
+					}
+					// push the result of the function
+					stack.set(stack.size() - 1, stack.peek() + 1);
+					break;
+				case OPEN_PAREN:
+					stack.push(0);
+					break;
+				default:
+					stack.set(stack.size() - 1, stack.peek() + 1);
+			}
+		}
+
+		if (stack.size() > 1) {
+			throw new ExpressionException("Too many unhandled function parameter lists");
+		} else if (stack.peek() > 1) {
+			throw new ExpressionException("Too many numbers or variables");
+		} else if (stack.peek() < 1) {
+			throw new ExpressionException("Empty expression");
+		}
+	}
+
+	/** The original expression used to construct this expression, without variables substituted. */
+	public String getOriginalExpression() {
+		return this.originalExpression;
+	}
+
+	/** The id of this expression, e.g. a rule id, defaults to the expression itself. */
+	public String getId() {
+		return id != null ? id : originalExpression;
+	}
+
+	public Expression setId(String id) {
+		this.id = id;
+		return this;
+	}
+
+	public ExpressionListener getListener() {
+		return listener;
+	}
+
+	/** Sets the listener for the compilation and the evaluations of this expression, <code>null</code> for none. */
+	public Expression setListener(ExpressionListener listener) {
+		this.listener = listener;
+		return this;
+	}
+
+	public FunctionCache getFunctionCache() {
+		return functionCache;
+	}
+
+	/** Sets the cache of the results of pure functions, <code>null</code> for none. */
+	public Expression setFunctionCache(FunctionCache functionCache) {
+		this.functionCache = functionCache;
+		return this;
+	}
+
+	public ProgramCache getProgramCache() {
+		return programCache;
+	}
+
+	/**
+	 * Sets the cache of compiled programs, to compile the expression only if no expression of the
+	 * same shape was compiled before. Must be set before the expression is compiled.
+	 * @param programCache The cache, <code>null</code> for none.
+	 * @return This expression.
+	 */
+	public Expression setProgramCache(ProgramCache programCache) {
+		this.programCache = programCache;
+		return this;
+	}
+
+	public Map<String, ExpNodeType> getVariableTypes() {
+		return variableTypes;
+	}
+
+	/**
+	 * Declares the types of variables, checked when the expression is compiled and whenever the
+	 * variables are read. Must be set before the expression is compiled.
+	 * @param variableTypes The types of variables by name, <code>null</code> for none.
+	 * @return This expression.
+	 */
+	public Expression setVariableTypes(Map<String, ExpNodeType> variableTypes) {
+		this.variableTypes = variableTypes;
+		return this;
+	}
+
+	public EvaluationBudget getBudget() {
+		return budget;
+	}
+
+	/** Sets the limits of the synchronous evaluations of this expression, <code>null</code> for unlimited. */
+	public Expression setBudget(EvaluationBudget budget) {
+		this.budget = budget;
+		return this;
+	}
+
+	public Normalization getNormalization() {
+		return normalization;
+	}
+
+	/**
+	 * Sets the normalization of the numbers the expression computes itself, e.g. the results of
+	 * its aggregates and windows. Operators and functions do their own arithmetic and pick a
+	 * normalization per call, see {@link ExpNode#add(ExpNode, MathContext, Normalization)}.
+	 * @param normalization The normalization, {@link Normalization#CANONICAL_SCALE} by default.
+	 * @return This expression.
+	 */
+	public Expression setNormalization(Normalization normalization) {
+		this.normalization = normalization;
+		return this;
+	}
+
+	Map<String, ExpNode> getVariableMap() {
+		return variableMap;
+	}
+
+	/**
+	 * @return The position of the first token of the subtree ending at each position of the RPN.
+	 */
+	int[] getSubtreeStart() {
+		Program program = compiled().program;
+		int[] subtreeStart = new int[program.codes.length];
+		for (int i = 0; i < subtreeStart.length; i++) {
+			subtreeStart[i] = program.subtreeStart(i);
+		}
+		return subtreeStart;
+	}
+
+	Map<String, Operator> getOperatorMap() {
+		return operatorMap;
+	}
+
+	Map<String, LazyFunction> getFunctionMap() {
+		return functionMap;
 	}
 
 	/** {@inheritDoc} */
@@ -680,7 +2430,10 @@ public class Expression {
 		return this.expression == null ? 0 : this.expression.hashCode();
 	}
 
-	/** {@inheritDoc} */
+	/**
+	 * @return The text of the expression, for display only if it is a residual expression of
+	 *         {@link #specialize}.
+	 */
 	@Override
 	public String toString() {
 		return this.expression;
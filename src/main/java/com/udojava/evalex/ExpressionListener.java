@@ -0,0 +1,67 @@
+/*
+ * Copyright 2018 Yisin Lin
+ * 
+ * https://github.com/ethancommitpush
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package com.udojava.evalex;
+
+import idv.ethancommitpush.exbuilder.ExpNode;
+
+/**
+ * Listener for the compilation and evaluation of expressions, e.g. to record metrics.
+ * Listeners are called on the thread doing the work and must be thread-safe. Without a
+ * listener, expressions do not measure anything.
+ */
+public interface ExpressionListener {
+
+	enum Phase {
+		/** Tokenizing, parsing and validating the expression. */
+		COMPILE,
+		/** Evaluating the compiled expression. */
+		EVAL
+	}
+
+	/**
+	 * Called after an expression was compiled.
+	 * @param expression The expression, see {@link Expression#getId()} for a key.
+	 * @param nanos The compile time in nanoseconds.
+	 */
+	void compiled(Expression expression, long nanos);
+
+	/**
+	 * Called after an expression was evaluated.
+	 * @param expression The expression, see {@link Expression#getId()} for a key.
+	 * @param nanos The evaluation time in nanoseconds, including a compilation on first use.
+	 * @param result The result, may be <code>null</code>.
+	 */
+	void evaluated(Expression expression, long nanos, ExpNode result);
+
+	/**
+	 * Called when compiling or evaluating an expression failed.
+	 * @param expression The expression, see {@link Expression#getId()} for a key.
+	 * @param phase The phase that failed.
+	 * @param nanos The time until the failure in nanoseconds.
+	 * @param error The failure, rethrown to the caller after the listener returned.
+	 */
+	void failed(Expression expression, Phase phase, long nanos, Exception error);
+}
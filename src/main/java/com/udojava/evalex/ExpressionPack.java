@@ -0,0 +1,457 @@
+/*
+ * Copyright 2018 Yisin Lin
+ * 
+ * https://github.com/ethancommitpush
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package com.udojava.evalex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.udojava.evalex.Expression.Token;
+import com.udojava.evalex.Expression.TokenType;
+
+import idv.ethancommitpush.exbuilder.ExpNode;
+import idv.ethancommitpush.exbuilder.ExpNode.ExpNodeType;
+import idv.ethancommitpush.exbuilder.Normalization;
+
+/**
+ * A pack of compiled expressions in a versioned binary format, so that a whole rule set can be
+ * loaded without tokenizing and parsing every expression again.
+ * <p>
+ * A pack is written from compiled {@link Expression}s and loaded from a memory-mapped file.
+ * The operators and functions referenced by the pack are validated against the given
+ * definitions on load, each expression is decoded lazily on its first access.
+ * <pre>
+ * int magic, int version, int expression count, int symbol count
+ * symbols: byte kind, string name, int detail (associativity of operators, parameter count of functions)
+ * int[expression count] absolute offsets of the expressions
+ * expressions: string text, int token count, tokens: byte type, int position, payload
+ * </pre>
+ */
+public class ExpressionPack {
+
+	/** The magic number at the start of every pack, "EXPK". */
+	private static final int MAGIC = 0x4558504B;
+
+	/** The version of the binary format. */
+	public static final int VERSION = 1;
+
+	private static final byte SYMBOL_OPERATOR = 0;
+	private static final byte SYMBOL_FUNCTION = 1;
+	private static final byte SYMBOL_VARIABLE = 2;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final TokenType[] TOKEN_TYPES = TokenType.values();
+
+	private final ByteBuffer buffer;
+	private final int count;
+	private final String[] symbols;
+	private final int offsetsStart;
+	private final AtomicReferenceArray<Expression> expressions;
+	private volatile ExpressionListener listener;
+	private volatile FunctionCache functionCache;
+	private volatile EvaluationBudget budget;
+	private volatile Map<String, ExpNodeType> variableTypes;
+	private volatile Normalization normalization = Normalization.CANONICAL_SCALE;
+
+	private final MathContext mc;
+	private final Map<String, ExpNode> variableMap;
+	private final Map<String, Operator> operatorMap;
+	private final Map<String, LazyFunction> functionMap;
+
+	private ExpressionPack(ByteBuffer buffer, MathContext mc, Map<String, ExpNode> variableMap
+			, Map<String, Operator> operatorMap, Map<String, LazyFunction> functionMap) throws IOException {
+		this.buffer = buffer;
+		this.mc = mc;
+		this.variableMap = variableMap;
+		this.operatorMap = operatorMap;
+		this.functionMap = functionMap;
+
+		if (buffer.remaining() < 16 || buffer.getInt() != MAGIC) {
+			throw new IOException("Not an expression pack");
+		}
+		int version = buffer.getInt();
+		if (version != VERSION) {
+			throw new IOException("Unsupported expression pack version " + version + ", expected " + VERSION);
+		}
+		count = buffer.getInt();
+		int symbolCount = buffer.getInt();
+		if (count < 0 || symbolCount < 0 || symbolCount > buffer.remaining() / 9) {
+			throw corrupt(buffer, "invalid expression count " + count + " or symbol count " + symbolCount);
+		}
+		symbols = new String[symbolCount];
+		for (int i = 0; i < symbols.length; i++) {
+			byte kind = readByte(buffer);
+			symbols[i] = readString(buffer);
+			validateSymbol(kind, symbols[i], readInt(buffer));
+		}
+		offsetsStart = buffer.position();
+		if (count > buffer.remaining() / 4) {
+			throw corrupt(buffer, "offsets of " + count + " expressions expected");
+		}
+		expressions = new AtomicReferenceArray<Expression>(count);
+	}
+
+	/**
+	 * Loads a pack from a file. The file is memory-mapped, only the symbol table is read
+	 * and validated up front.
+	 * @param file The pack file.
+	 * @param mc The {@link MathContext} of the loaded expressions.
+	 * @param variableMap The variables of the loaded expressions.
+	 * @param operatorMap The operators the pack is validated against.
+	 * @param functionMap The functions the pack is validated against.
+	 * @return The loaded pack.
+	 * @throws IOException If the file cannot be read or is no pack of the supported version.
+	 * @throws ExpressionException If the pack references an undefined or incompatible operator or function.
+	 */
+	public static ExpressionPack load(File file, MathContext mc, Map<String, ExpNode> variableMap
+			, Map<String, Operator> operatorMap, Map<String, LazyFunction> functionMap) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return new ExpressionPack(buffer, mc, variableMap, operatorMap, functionMap);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Writes compiled expressions to a pack file. Expressions not compiled yet are compiled first.
+	 * @param expressions The expressions, in the order of their index in the pack.
+	 * @param file The pack file.
+	 * @throws IOException If the file cannot be written.
+	 */
+	public static void write(Collection<Expression> expressions, File file) throws IOException {
+		Map<String, Integer> symbolIndex = new HashMap<String, Integer>();
+		ByteArrayOutputStream symbolBytes = new ByteArrayOutputStream();
+		DataOutputStream symbolOut = new DataOutputStream(symbolBytes);
+		ByteArrayOutputStream blockBytes = new ByteArrayOutputStream();
+		DataOutputStream blockOut = new DataOutputStream(blockBytes);
+		int[] offsets = new int[expressions.size()];
+
+		int e = 0;
+		for (Expression expression : expressions) {
+			List<Token> rpn = expression.getRPN();
+			offsets[e++] = blockOut.size();
+			writeString(blockOut, expression.toString());
+			blockOut.writeInt(rpn.size());
+			for (Token token : rpn) {
+				blockOut.writeByte(token.type.ordinal());
+				blockOut.writeInt(token.pos);
+				switch(token.type) {
+					case OPERATOR:
+					case UNARY_OPERATOR: {
+						Operator operator = expression.getOperatorMap().get(token.surface);
+						blockOut.writeInt(symbol(symbolIndex, symbolOut, SYMBOL_OPERATOR, token.surface
+								, operator.isAssociative() ? 1 : 0));
+						break;
+					}
+					case FUNCTION: {
+						LazyFunction function = expression.getFunctionMap().get(token.surface.toUpperCase(Locale.ROOT));
+						blockOut.writeInt(symbol(symbolIndex, symbolOut, SYMBOL_FUNCTION, function.getName()
+								, function.getNumParams()));
+						break;
+					}
+					case VARIABLE:
+						blockOut.writeInt(symbol(symbolIndex, symbolOut, SYMBOL_VARIABLE, token.surface, 0));
+						break;
+					case LITERAL:
+					case HEX_LITERAL:
+						if (token.surface.equalsIgnoreCase("NULL")) {
+							blockOut.writeInt(-1);
+						} else {
+							BigDecimal value = token.literal;
+							if (value == null) {
+								value = token.type == TokenType.LITERAL ? new BigDecimal(token.surface)
+										: new BigDecimal(new BigInteger(token.surface.substring(2), 16));
+							}
+							byte[] unscaled = value.unscaledValue().toByteArray();
+							blockOut.writeInt(unscaled.length);
+							blockOut.write(unscaled);
+							blockOut.writeInt(value.scale());
+						}
+						break;
+					case STR_LITERAL:
+						writeString(blockOut, token.surface);
+						break;
+					default:
+						break;
+				}
+			}
+		}
+
+		int headerSize = 16 + symbolOut.size() + 4 * offsets.length;
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(offsets.length);
+			out.writeInt(symbolIndex.size());
+			symbolBytes.writeTo(out);
+			for (int offset : offsets) {
+				out.writeInt(headerSize + offset);
+			}
+			blockBytes.writeTo(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Sets the listener of the expressions decoded from now on.
+	 * @param listener The listener, <code>null</code> for none.
+	 */
+	public void setListener(ExpressionListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Sets the cache of pure function results of the expressions decoded from now on.
+	 * @param functionCache The cache, <code>null</code> for none.
+	 */
+	public void setFunctionCache(FunctionCache functionCache) {
+		this.functionCache = functionCache;
+	}
+
+	/**
+	 * Sets the evaluation limits of the expressions decoded from now on.
+	 * @param budget The limits, <code>null</code> for unlimited.
+	 */
+	public void setBudget(EvaluationBudget budget) {
+		this.budget = budget;
+	}
+
+	/**
+	 * Sets the declared types of variables of the expressions decoded from now on.
+	 * @param variableTypes The types of variables by name, <code>null</code> for none.
+	 */
+	public void setVariableTypes(Map<String, ExpNodeType> variableTypes) {
+		this.variableTypes = variableTypes;
+	}
+
+	/**
+	 * Sets the normalization of the expressions decoded from now on, see {@link Expression#setNormalization}.
+	 * @param normalization The normalization.
+	 */
+	public void setNormalization(Normalization normalization) {
+		this.normalization = normalization;
+	}
+
+	/** @return The number of expressions in this pack. */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Returns an expression of this pack, decoding it on the first access.
+	 * @param index The index of the expression.
+	 * @return The compiled expression.
+	 * @throws UncheckedIOException If the expression is truncated or corrupt in the pack.
+	 */
+	public Expression get(int index) {
+		Expression expression = expressions.get(index);
+		if (expression == null) {
+			try {
+				expressions.compareAndSet(index, null, decode(index));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			expression = expressions.get(index);
+		}
+		return expression;
+	}
+
+	/** @return All expressions of this pack, decoding the ones not accessed yet. */
+	public List<Expression> getAll() {
+		List<Expression> all = new ArrayList<Expression>(count);
+		for (int i = 0; i < count; i++) {
+			all.add(get(i));
+		}
+		return all;
+	}
+
+	private Expression decode(int index) throws IOException {
+		if (index < 0 || index >= count) {
+			throw new IndexOutOfBoundsException("Expression " + index + " of " + count);
+		}
+		ByteBuffer in = buffer.duplicate();
+		int offset = buffer.getInt(offsetsStart + 4 * index);
+		if (offset < offsetsStart || offset > buffer.limit()) {
+			throw new IOException("Corrupt expression pack, expression " + index + " at invalid offset " + offset);
+		}
+		in.position(offset);
+		String text = readString(in);
+		int size = readInt(in);
+		// each token takes at least a type and a position
+		if (size < 0 || size > in.remaining() / 5) {
+			throw corrupt(in, "invalid token count " + size);
+		}
+		List<Token> rpn = new ArrayList<Token>(size);
+		for (int i = 0; i < size; i++) {
+			Token token = new Token();
+			int type = readByte(in);
+			if (type < 0 || type >= TOKEN_TYPES.length) {
+				throw corrupt(in, "invalid token type " + type);
+			}
+			token.type = TOKEN_TYPES[type];
+			token.pos = readInt(in);
+			switch(token.type) {
+				case OPERATOR:
+				case UNARY_OPERATOR:
+				case FUNCTION:
+				case VARIABLE: {
+					int symbol = readInt(in);
+					if (symbol < 0 || symbol >= symbols.length) {
+						throw corrupt(in, "invalid symbol " + symbol);
+					}
+					token.surface = symbols[symbol];
+					break;
+				}
+				case LITERAL:
+				case HEX_LITERAL: {
+					int length = readInt(in);
+					if (length < 0) {
+						token.surface = "NULL";
+						break;
+					}
+					if (length == 0 || length > in.remaining()) {
+						throw corrupt(in, "invalid literal length " + length);
+					}
+					byte[] unscaled = new byte[length];
+					in.get(unscaled);
+					token.literal = new BigDecimal(new BigInteger(unscaled), readInt(in));
+					token.surface = token.type == TokenType.LITERAL ? token.literal.toString()
+							: "0x" + token.literal.toBigInteger().toString(16);
+					break;
+				}
+				case STR_LITERAL:
+					token.surface = readString(in);
+					break;
+				case OPEN_PAREN:
+					token.surface = "(";
+					break;
+				default:
+					break;
+			}
+			rpn.add(token);
+		}
+		return new Expression(text, mc, variableMap, operatorMap, functionMap, variableTypes, rpn).setListener(listener)
+				.setFunctionCache(functionCache).setBudget(budget).setNormalization(normalization);
+	}
+
+	private void validateSymbol(byte kind, String name, int detail) {
+		if (kind == SYMBOL_OPERATOR) {
+			Operator operator = operatorMap.get(name);
+			if (operator == null) {
+				throw new ExpressionException("Unknown operator '" + name + "' in expression pack");
+			}
+			if (operator.isAssociative() != (detail != 0)) {
+				throw new ExpressionException("Associativity of operator '" + name + "' changed since the expression pack was written");
+			}
+		} else if (kind == SYMBOL_FUNCTION) {
+			LazyFunction function = functionMap.get(name);
+			if (function == null) {
+				throw new ExpressionException("Unknown function '" + name + "' in expression pack");
+			}
+			if (function.getNumParams() != detail) {
+				throw new ExpressionException("Function " + name + " expects " + function.getNumParams()
+						+ " parameters, expression pack was written for " + detail);
+			}
+		}
+	}
+
+	private static int symbol(Map<String, Integer> symbolIndex, DataOutputStream out, byte kind, String name
+			, int detail) throws IOException {
+		String key = kind + name;
+		Integer index = symbolIndex.get(key);
+		if (index == null) {
+			index = symbolIndex.size();
+			symbolIndex.put(key, index);
+			out.writeByte(kind);
+			writeString(out, name);
+			out.writeInt(detail);
+		}
+		return index;
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer in) throws IOException {
+		int length = readInt(in);
+		if (length < 0 || length > in.remaining()) {
+			throw corrupt(in, "invalid string length " + length);
+		}
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	private static int readInt(ByteBuffer in) throws IOException {
+		if (in.remaining() < 4) {
+			throw corrupt(in, "unexpected end");
+		}
+		return in.getInt();
+	}
+
+	private static byte readByte(ByteBuffer in) throws IOException {
+		if (!in.hasRemaining()) {
+			throw corrupt(in, "unexpected end");
+		}
+		return in.get();
+	}
+
+	/**
+	 * @param in The buffer of the pack, positioned where the corruption was detected.
+	 * @param problem The problem found.
+	 * @return The exception to throw.
+	 */
+	private static IOException corrupt(ByteBuffer in, String problem) {
+		return new IOException("Corrupt expression pack at offset " + in.position() + ": " + problem);
+	}
+}
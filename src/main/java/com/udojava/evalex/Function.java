@@ -37,9 +37,33 @@ import idv.ethancommitpush.exbuilder.ExpNode;
 
 
 public abstract class Function extends LazyFunction {
+
+	/** The function evaluates all parameters before the call, it does not override {@link #lazyEval}. */
+	private final boolean eager;
 	
 	public Function(String name, int numParams) {
 		super(name, numParams);
+		boolean eager;
+		try {
+			eager = getClass().getMethod("lazyEval", List.class).getDeclaringClass() == Function.class;
+		} catch (NoSuchMethodException e) {
+			eager = false;
+		}
+		this.eager = eager;
+	}
+
+	boolean isEager() {
+		return eager;
+	}
+
+	/**
+	 * An inline function is cheap and never blocks, so {@link Expression#evalAsync} calls it on
+	 * the thread completing its parameters instead of passing it to the executor. Functions are
+	 * not inline by default.
+	 * @return <code>true</code> if the function may run on the thread completing its parameters.
+	 */
+	public boolean isInline() {
+		return false;
 	}
 
 	public LazyNumber lazyEval(final List<LazyNumber> lazyParams) {
@@ -57,7 +81,7 @@ public abstract class Function extends LazyFunction {
 			
 			private List<ExpNode> getParams() throws Exception {
                 if (params == null) {
-                    params = new ArrayList<ExpNode>();
+                    params = new ArrayList<ExpNode>(lazyParams.size());
                     for (LazyNumber lazyParam : lazyParams) {
                         params.add(lazyParam.eval());
                     }
@@ -70,7 +94,8 @@ public abstract class Function extends LazyFunction {
 	/**
 	 * Implementation for this function.
 	 * @param parameters Parameters will be passed by the expression evaluator 
-	 * as a {@link List} of {@link BigDecimal} values.
+	 * as a {@link List} of {@link BigDecimal} values. The list is read only and may be reused
+	 * by the evaluator after the call, it must be copied to be kept.
 	 * @return The function must return a new {@link BigDecimal} value as a computing result.
 	 * @throws Exception 
 	 */
@@ -0,0 +1,334 @@
+/*
+ * Copyright 2018 Yisin Lin
+ * 
+ * https://github.com/ethancommitpush
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package com.udojava.evalex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import idv.ethancommitpush.exbuilder.ExpNode;
+
+/**
+ * Bounded caches of the results of pure functions (see {@link LazyFunction#isPure()}), one per
+ * function instance, keyed by the parameter values. Each cache keeps the most recently used
+ * results up to a maximum size, results expire a fixed time after they were computed. Results are
+ * copied in and out, as {@link ExpNode}s are mutable. A function cache can be shared by all
+ * expressions and threads.
+ */
+public class FunctionCache {
+
+	/** Returned by {@link #get} if there is no result cached, results may be <code>null</code>. */
+	static final ExpNode MISS = new ExpNode();
+
+	/** The number of independently locked stripes of each cache. */
+	private static final int STRIPES = 16;
+
+	private final int maximumSize;
+	private final long expireNanos;
+	private final ConcurrentMap<LazyFunction, Cache> caches = new ConcurrentHashMap<LazyFunction, Cache>();
+
+	/**
+	 * Creates caches of at most <code>maximumSize</code> results per function, which never expire.
+	 * @param maximumSize The maximum number of results per function.
+	 */
+	public FunctionCache(int maximumSize) {
+		this(maximumSize, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Creates caches of at most <code>maximumSize</code> results per function.
+	 * @param maximumSize The maximum number of results per function.
+	 * @param expireAfterWrite The time a result is cached.
+	 * @param unit The unit of <code>expireAfterWrite</code>.
+	 */
+	public FunctionCache(int maximumSize, long expireAfterWrite, TimeUnit unit) {
+		if (maximumSize <= 0 || expireAfterWrite <= 0) {
+			throw new IllegalArgumentException("Cache size and expiry must be positive");
+		}
+		this.maximumSize = maximumSize;
+		this.expireNanos = unit.toNanos(expireAfterWrite);
+	}
+
+	/**
+	 * @param function The function.
+	 * @param key The parameters.
+	 * @return A copy of the cached result, {@link #MISS} if there is none.
+	 */
+	ExpNode get(LazyFunction function, Key key) {
+		ExpNode result = cache(function).get(key);
+		return result != MISS ? copy(result) : MISS;
+	}
+
+	/**
+	 * @param function The function.
+	 * @param key The parameters.
+	 * @param result The result of the function for the parameters.
+	 */
+	void put(LazyFunction function, Key key, ExpNode result) {
+		cache(function).put(key, copy(result));
+	}
+
+	private Cache cache(LazyFunction function) {
+		Cache cache = caches.get(function);
+		if (cache == null) {
+			Cache created = new Cache(function.getName());
+			cache = caches.putIfAbsent(function, created);
+			if (cache == null) {
+				cache = created;
+			}
+		}
+		return cache;
+	}
+
+	/**
+	 * @param result A result, may be <code>null</code>.
+	 * @return A copy of the result.
+	 */
+	private static ExpNode copy(ExpNode result) {
+		return result != null ? result.copy() : null;
+	}
+
+	/**
+	 * @param function The name of a function.
+	 * @return The statistics of the caches of all functions of the name, <code>null</code> if none
+	 *         was called.
+	 */
+	public Stats getStats(String function) {
+		Stats stats = null;
+		for (Cache cache : caches.values()) {
+			if (cache.function.equalsIgnoreCase(function)) {
+				Stats s = cache.stats();
+				stats = stats == null ? s : new Stats(s.function, stats.hits + s.hits, stats.misses + s.misses,
+						stats.evictions + s.evictions, stats.size + s.size);
+			}
+		}
+		return stats;
+	}
+
+	/**
+	 * @return The statistics of the caches of all function instances called so far.
+	 */
+	public List<Stats> getAll() {
+		List<Stats> all = new ArrayList<Stats>();
+		for (Cache cache : caches.values()) {
+			all.add(cache.stats());
+		}
+		return all;
+	}
+
+	/** Removes all cached results, the statistics are kept. */
+	public void clear() {
+		for (Cache cache : caches.values()) {
+			cache.clear();
+		}
+	}
+
+	/** A snapshot of the statistics of the cache of one function. */
+	public static class Stats {
+		private final String function;
+		private final long hits;
+		private final long misses;
+		private final long evictions;
+		private final int size;
+
+		Stats(String function, long hits, long misses, long evictions, int size) {
+			this.function = function;
+			this.hits = hits;
+			this.misses = misses;
+			this.evictions = evictions;
+			this.size = size;
+		}
+
+		public String getFunction() {
+			return function;
+		}
+
+		public long getHits() {
+			return hits;
+		}
+
+		public long getMisses() {
+			return misses;
+		}
+
+		/** @return The number of results removed because the cache was full or they expired. */
+		public long getEvictions() {
+			return evictions;
+		}
+
+		public int getSize() {
+			return size;
+		}
+
+		/** @return The ratio of calls answered from the cache, <code>0</code> if there were none. */
+		public double getHitRatio() {
+			long calls = hits + misses;
+			return calls == 0 ? 0 : (double) hits / calls;
+		}
+
+		@Override
+		public String toString() {
+			return function + " hits=" + hits + " misses=" + misses + " evictions=" + evictions + " size=" + size;
+		}
+	}
+
+	/**
+	 * The parameters of a function call. The values are copied, as {@link ExpNode}s are mutable.
+	 * Parameters that are a single variable include its name, as functions may read it with
+	 * {@link LazyNumber#getString()}.
+	 */
+	static final class Key {
+		private final Object[] parts;
+		private final int hash;
+
+		Key(String[] names, ExpNode[] values) {
+			parts = new Object[values.length * 4];
+			for (int i = 0; i < values.length; i++) {
+				ExpNode value = values[i];
+				parts[i * 4] = names[i];
+				if (value != null) {
+					parts[i * 4 + 1] = value.getType();
+					parts[i * 4 + 2] = value.getNumeric();
+					parts[i * 4 + 3] = value.getText();
+				}
+			}
+			hash = Arrays.hashCode(parts);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Key && hash == ((Key) obj).hash && Arrays.equals(parts, ((Key) obj).parts);
+		}
+	}
+
+	/** A cached result. */
+	private static final class Entry {
+		final ExpNode result;
+		final long written;
+
+		Entry(ExpNode result, long written) {
+			this.result = result;
+			this.written = written;
+		}
+	}
+
+	/** The cache of one function, striped least recently used maps. */
+	private final class Cache {
+		private final String function;
+		private final Stripe[] stripes = new Stripe[STRIPES];
+		private final LongAdder hits = new LongAdder();
+		private final LongAdder misses = new LongAdder();
+		private final LongAdder evictions = new LongAdder();
+
+		Cache(String function) {
+			this.function = function;
+			int stripeSize = Math.max(1, (maximumSize + STRIPES - 1) / STRIPES);
+			for (int i = 0; i < STRIPES; i++) {
+				stripes[i] = new Stripe(stripeSize);
+			}
+		}
+
+		private Stripe stripe(Key key) {
+			int h = key.hash ^ (key.hash >>> 16);
+			return stripes[h & (STRIPES - 1)];
+		}
+
+		ExpNode get(Key key) {
+			Stripe stripe = stripe(key);
+			Entry entry;
+			synchronized (stripe) {
+				entry = stripe.get(key);
+				if (entry != null && System.nanoTime() - entry.written >= expireNanos) {
+					stripe.remove(key);
+					evictions.increment();
+					entry = null;
+				}
+			}
+			if (entry == null) {
+				misses.increment();
+				return MISS;
+			}
+			hits.increment();
+			return entry.result;
+		}
+
+		void put(Key key, ExpNode result) {
+			Stripe stripe = stripe(key);
+			synchronized (stripe) {
+				stripe.put(key, new Entry(result, System.nanoTime()));
+			}
+		}
+
+		void clear() {
+			for (Stripe stripe : stripes) {
+				synchronized (stripe) {
+					stripe.clear();
+				}
+			}
+		}
+
+		Stats stats() {
+			int size = 0;
+			for (Stripe stripe : stripes) {
+				synchronized (stripe) {
+					size += stripe.size();
+				}
+			}
+			return new Stats(function, hits.sum(), misses.sum(), evictions.sum(), size);
+		}
+
+		/** A map in access order, removing the least recently used entry when full. */
+		@SuppressWarnings("serial")
+		private final class Stripe extends LinkedHashMap<Key, FunctionCache.Entry> {
+			private final int capacity;
+
+			Stripe(int capacity) {
+				super(16, 0.75f, true);
+				this.capacity = capacity;
+			}
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, FunctionCache.Entry> eldest) {
+				if (size() > capacity) {
+					evictions.increment();
+					return true;
+				}
+				return false;
+			}
+		}
+	}
+}
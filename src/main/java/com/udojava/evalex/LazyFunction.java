@@ -32,11 +32,18 @@ package com.udojava.evalex;
 import java.util.List;
 import java.util.Locale;
 
+import idv.ethancommitpush.exbuilder.ExpNode;
+import idv.ethancommitpush.exbuilder.ExpNode.ExpNodeType;
+
 public abstract class LazyFunction {
 	/** Name of this function. */
 	private String name;
 	/** Number of parameters expected for this function.<code>-1</code> denotes a variable number of parameters. */
 	private int numParams;
+	/** The type of the result, <code>null</code> if not declared. */
+	private ExpNodeType resultType;
+	/** The types of the parameters, the last one repeats for variable parameters, <code>null</code> if not declared. */
+	private ExpNodeType[] paramTypes;
 
 	/**
 	 * Creates a new function with given name and parameter count.
@@ -59,6 +66,63 @@ public abstract class LazyFunction {
 	public boolean numParamsVaries() {
 		return numParams < 0;
 	}
+
+	public ExpNodeType getResultType() {
+		return resultType;
+	}
+
+	public ExpNodeType[] getParamTypes() {
+		return paramTypes;
+	}
+
+	/**
+	 * Declares the types of the result and the parameters of this function. Expressions passing
+	 * parameters of other types are rejected at compile time, where the types are known. The
+	 * function must not return values of another type, nor null, if the result type is declared.
+	 * @param resultType The type of the result, <code>null</code> if it may be either or null.
+	 * @param paramTypes The types of the parameters, <code>null</code> elements accept either.
+	 * The last type applies to all further parameters of a function with variable parameters.
+	 * @return This function.
+	 */
+	public LazyFunction setSignature(ExpNodeType resultType, ExpNodeType... paramTypes) {
+		this.resultType = resultType;
+		this.paramTypes = paramTypes;
+		return this;
+	}
 	
+	/**
+	 * A pure function always returns the same result for the same parameters and has no side
+	 * effects, so its results may be cached, see {@link FunctionCache}. Only functions evaluating
+	 * all their parameters are cached, a function overriding {@link #lazyEval} is never cached and
+	 * still evaluates only the parameters it needs. Functions are not pure by default.
+	 * @return <code>true</code> if the function is pure.
+	 */
+	public boolean isPure() {
+		return false;
+	}
+
+	/**
+	 * Binds the function to a call site when an expression is compiled, e.g. to prepare its
+	 * literal parameters once instead of on every call. The returned function must accept the
+	 * same parameters with the same result.
+	 * @param literals The value of each parameter which is a literal, <code>null</code> for the others.
+	 * @return The function to call at the call site, this function by default.
+	 * @throws ExpressionException If a literal parameter is invalid.
+	 */
+	public LazyFunction bind(ExpNode[] literals) {
+		return this;
+	}
+
+	/**
+	 * Selects the parameter a call evaluates to when some of its parameters are known, e.g. the
+	 * branch taken by a conditional function, so that {@link Expression#specialize} can drop the
+	 * other parameters. Must only select a parameter the call returns unchanged.
+	 * @param constants The value of each parameter which is known, <code>null</code> for the others.
+	 * @return The index of the parameter the call evaluates to, <code>-1</code> if unknown (by default).
+	 */
+	public int select(ExpNode[] constants) {
+		return -1;
+	}
+
 	public abstract LazyNumber lazyEval(List<LazyNumber> lazyParams);
 }
\ No newline at end of file
@@ -29,7 +29,11 @@
  */
 package com.udojava.evalex;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import idv.ethancommitpush.exbuilder.ExpNode;
+import idv.ethancommitpush.exbuilder.ExpNode.ExpNodeType;
 
 /**
  * Abstract definition of a supported operator. An operator is defined by
@@ -43,6 +47,10 @@ public abstract class Operator {
 	private int precedence;
 	/** Operator is left associative. */
 	private boolean leftAssoc;
+	/** Operator is associative, <code>(a op b) op c</code> always equals <code>a op (b op c)</code>. */
+	private boolean associative;
+	/** The operand types the operator accepts, empty if not declared. */
+	private List<Signature> signatures = new ArrayList<Signature>();
 	
 	/**
 	 * Creates a new operator.
@@ -51,9 +59,22 @@ public abstract class Operator {
 	 * @param leftAssoc <code>true</code> if the operator is left associative, else <code>false</code>.
 	 */
 	public Operator(String oper, int precedence, boolean leftAssoc) {
+		this(oper, precedence, leftAssoc, false);
+	}
+
+	/**
+	 * Creates a new operator.
+	 * @param oper The operator name (pattern).
+	 * @param precedence The operators precedence.
+	 * @param leftAssoc <code>true</code> if the operator is left associative, else <code>false</code>.
+	 * @param associative <code>true</code> if the operator is associative for all operands it accepts,
+	 * which allows chains of it to be rebalanced into trees of logarithmic depth at compile time.
+	 */
+	public Operator(String oper, int precedence, boolean leftAssoc, boolean associative) {
 		this.oper = oper;
 		this.precedence = precedence;
 		this.leftAssoc = leftAssoc;
+		this.associative = associative;
 	}
 
 	public String getOper() {
@@ -68,6 +89,62 @@ public abstract class Operator {
 		return leftAssoc;
 	}
 
+	public boolean isAssociative() {
+		return associative;
+	}
+
+	/**
+	 * Declares operand types the operator accepts, and optionally an implementation for them
+	 * which may omit all type checks. Expressions applying an operator with declared signatures
+	 * to operands of other types are rejected at compile time, where the types are known.
+	 * Signatures should be declared before the operator is used.
+	 * @param left The type of the left operand, or the operand of a unary operator.
+	 * @param right The type of the right operand, <code>null</code> for a unary operator.
+	 * @param result The type of the result, <code>null</code> if it may be either or null.
+	 * @param implementation The operator whose {@link #eval} implements these types,
+	 * <code>null</code> to use this operator.
+	 * @return This operator.
+	 */
+	public Operator addSignature(ExpNodeType left, ExpNodeType right, ExpNodeType result, Operator implementation) {
+		signatures.add(new Signature(left, right, result, implementation != null ? implementation : this));
+		return this;
+	}
+
+	public List<Signature> getSignatures() {
+		return signatures;
+	}
+
+	/** Operand and result types of an operator, with the implementation for them. */
+	public static final class Signature {
+		private final ExpNodeType left;
+		private final ExpNodeType right;
+		private final ExpNodeType result;
+		private final Operator implementation;
+
+		Signature(ExpNodeType left, ExpNodeType right, ExpNodeType result, Operator implementation) {
+			this.left = left;
+			this.right = right;
+			this.result = result;
+			this.implementation = implementation;
+		}
+
+		public ExpNodeType getLeft() {
+			return left;
+		}
+
+		public ExpNodeType getRight() {
+			return right;
+		}
+
+		public ExpNodeType getResult() {
+			return result;
+		}
+
+		public Operator getImplementation() {
+			return implementation;
+		}
+	}
+
 	/**
 	 * Implementation for this operator.
 	 * @param v1 Operand 1.
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2018 Yisin Lin
+ * 
+ * https://github.com/ethancommitpush
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package com.udojava.evalex;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of compiled programs keyed by the shape of expressions (see
+ * {@link Expression#getShape()}) and their definitions, so that expressions differing only in
+ * their literals, e.g. <code>score &gt; 0.75</code> and <code>score &gt; 0.8</code>, are parsed,
+ * validated and typed once and share the compiled program. Each expression keeps its own tokens
+ * and literals. A program cache can be shared by expressions of any operators, functions and
+ * variables, and by all threads.
+ */
+public class ProgramCache {
+
+	private final Map<Key, Entry> programs;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * Creates a cache of the <code>maximumSize</code> most recently used programs.
+	 * @param maximumSize The maximum number of programs.
+	 */
+	@SuppressWarnings("serial")
+	public ProgramCache(final int maximumSize) {
+		if (maximumSize <= 0) {
+			throw new IllegalArgumentException("Cache size must be positive");
+		}
+		programs = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, ProgramCache.Entry> eldest) {
+				return size() > maximumSize;
+			}
+		};
+	}
+
+	/**
+	 * @param shape The shape of an expression.
+	 * @param expression The expression.
+	 * @return The program of the shape with the same definitions as the expression,
+	 * <code>null</code> if there is none.
+	 */
+	Entry get(String shape, Expression expression) {
+		Entry program;
+		synchronized (programs) {
+			program = programs.get(new Key(shape, expression));
+		}
+		if (program == null) {
+			misses.increment();
+		} else {
+			hits.increment();
+		}
+		return program;
+	}
+
+	/**
+	 * @param shape The shape of an expression.
+	 * @param expression The expression.
+	 * @param compiled The compiled RPN of the expression.
+	 * @param sources The index of the token at each position of the RPN in the tokens of the
+	 * expression, <code>-1</code> for tokens added by the parser.
+	 */
+	void put(String shape, Expression expression, Expression.Compiled compiled, int[] sources) {
+		synchronized (programs) {
+			programs.put(new Key(shape, expression), new Entry(compiled, sources));
+		}
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/** @return The ratio of compilations answered from the cache, <code>0</code> if there were none. */
+	public double getHitRatio() {
+		long hits = getHits();
+		long calls = hits + getMisses();
+		return calls == 0 ? 0 : (double) hits / calls;
+	}
+
+	public int getSize() {
+		synchronized (programs) {
+			return programs.size();
+		}
+	}
+
+	/** Removes all programs, the statistics are kept. */
+	public void clear() {
+		synchronized (programs) {
+			programs.clear();
+		}
+	}
+
+	/**
+	 * A compiled RPN and where its tokens come from, so that expressions of the same shape can
+	 * take it over with their own tokens. Only the cache keeps the sources.
+	 */
+	static final class Entry {
+		final Expression.Compiled compiled;
+		final int[] sources;
+
+		Entry(Expression.Compiled compiled, int[] sources) {
+			this.compiled = compiled;
+			this.sources = sources;
+		}
+	}
+
+	/** The shape and the definitions of an expression, see {@link Expression#hasDefinitionsOf}. */
+	private static final class Key {
+		private final String shape;
+		private final Expression expression;
+		private final int hash;
+
+		Key(String shape, Expression expression) {
+			this.shape = shape;
+			this.expression = expression;
+			this.hash = shape.hashCode() * 31 + expression.definitionsHashCode();
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return hash == other.hash && shape.equals(other.shape) && expression.hasDefinitionsOf(other.expression);
+		}
+	}
+}
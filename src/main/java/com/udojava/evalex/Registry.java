@@ -0,0 +1,231 @@
+/*
+ * Copyright 2018 Yisin Lin
+ * 
+ * https://github.com/ethancommitpush
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package com.udojava.evalex;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable map of operators, functions or variables by case-insensitive name. The names are
+ * hashed once into an open addressing table, so lookups neither allocate nor compare more than a
+ * few names, and a registry can be shared by any number of expressions and threads. Expressions
+ * whose variables are a registry resolve each variable once when compiled. Registries are derived
+ * copy-on-write, e.g. a tenant's functions from the common ones with {@link #with(String, Object)}.
+ * @param <V> The type of the operators, functions or variables.
+ */
+public final class Registry<V> extends AbstractMap<String, V> {
+
+	private static final Registry<Object> EMPTY = new Registry<Object>(new String[0], new Object[0]);
+
+	/** The names, in the order they were added. */
+	private final String[] names;
+	/** The value of each name. */
+	private final Object[] values;
+	/** The index of the name hashed to each slot plus one, <code>0</code> for empty slots. */
+	private final int[] slots;
+	private Set<Map.Entry<String, V>> entrySet;
+
+	private Registry(String[] names, Object[] values) {
+		this.names = names;
+		this.values = values;
+		int capacity = Integer.highestOneBit(Math.max(2, names.length * 2 - 1)) << 1;
+		this.slots = new int[capacity];
+		for (int i = 0; i < names.length; i++) {
+			int slot = hash(names[i]) & (capacity - 1);
+			while (slots[slot] != 0) {
+				slot = (slot + 1) & (capacity - 1);
+			}
+			slots[slot] = i + 1;
+		}
+	}
+
+	/** @return The registry without entries. */
+	@SuppressWarnings("unchecked")
+	public static <V> Registry<V> empty() {
+		return (Registry<V>) EMPTY;
+	}
+
+	/**
+	 * @param entries The entries, the last one wins of names differing only in case.
+	 * @return A registry of the entries.
+	 */
+	public static <V> Registry<V> of(Map<String, ? extends V> entries) {
+		return Registry.<V>empty().withAll(entries);
+	}
+
+	/**
+	 * @param name The name to add or replace.
+	 * @param value The value of the name.
+	 * @return A registry with the entries of this one and the given entry.
+	 */
+	public Registry<V> with(String name, V value) {
+		return withAll(Collections.singletonMap(name, value));
+	}
+
+	/**
+	 * @param entries The entries to add or replace.
+	 * @return A registry with the entries of this one and the given ones.
+	 */
+	public Registry<V> withAll(Map<String, ? extends V> entries) {
+		String[] names = Arrays.copyOf(this.names, this.names.length + entries.size());
+		Object[] values = Arrays.copyOf(this.values, names.length);
+		int size = this.names.length;
+		// the indexes of names added to the copy, by folded name
+		Map<String, Integer> added = new LinkedHashMap<String, Integer>();
+		for (Map.Entry<String, ? extends V> entry : entries.entrySet()) {
+			int index = indexOf(entry.getKey());
+			if (index < 0) {
+				Integer previous = added.get(fold(entry.getKey()));
+				index = previous != null ? previous : -1;
+			}
+			if (index < 0) {
+				index = size++;
+				added.put(fold(entry.getKey()), index);
+			}
+			names[index] = entry.getKey();
+			values[index] = entry.getValue();
+		}
+		return new Registry<V>(Arrays.copyOf(names, size), Arrays.copyOf(values, size));
+	}
+
+	/**
+	 * @param name The name to remove.
+	 * @return A registry with the entries of this one but the given name.
+	 */
+	public Registry<V> without(String name) {
+		int index = indexOf(name);
+		if (index < 0) {
+			return this;
+		}
+		String[] names = new String[this.names.length - 1];
+		Object[] values = new Object[names.length];
+		System.arraycopy(this.names, 0, names, 0, index);
+		System.arraycopy(this.names, index + 1, names, index, names.length - index);
+		System.arraycopy(this.values, 0, values, 0, index);
+		System.arraycopy(this.values, index + 1, values, index, values.length - index);
+		return new Registry<V>(names, values);
+	}
+
+	/**
+	 * @param name A name.
+	 * @return The index of the name, <code>-1</code> if not registered.
+	 */
+	int indexOf(String name) {
+		int mask = slots.length - 1;
+		for (int slot = hash(name) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+			if (names[slots[slot] - 1].equalsIgnoreCase(name)) {
+				return slots[slot] - 1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param index The index of a name.
+	 * @return The value of the name.
+	 */
+	@SuppressWarnings("unchecked")
+	V valueAt(int index) {
+		return (V) values[index];
+	}
+
+	@Override
+	public V get(Object key) {
+		int index = key instanceof String ? indexOf((String) key) : -1;
+		return index >= 0 ? valueAt(index) : null;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return key instanceof String && indexOf((String) key) >= 0;
+	}
+
+	@Override
+	public int size() {
+		return names.length;
+	}
+
+	@Override
+	public Set<Map.Entry<String, V>> entrySet() {
+		if (entrySet == null) {
+			entrySet = new AbstractSet<Map.Entry<String, V>>() {
+				@Override
+				public Iterator<Map.Entry<String, V>> iterator() {
+					return new Iterator<Map.Entry<String, V>>() {
+						private int next = 0;
+
+						public boolean hasNext() {
+							return next < names.length;
+						}
+
+						public Map.Entry<String, V> next() {
+							if (next >= names.length) {
+								throw new NoSuchElementException();
+							}
+							Map.Entry<String, V> entry = new SimpleImmutableEntry<String, V>(names[next], valueAt(next));
+							next++;
+							return entry;
+						}
+
+						public void remove() {
+							throw new UnsupportedOperationException();
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					return names.length;
+				}
+			};
+		}
+		return entrySet;
+	}
+
+	/** Hashes a name consistently with {@link String#equalsIgnoreCase(String)}. */
+	private static int hash(String name) {
+		int h = 0;
+		for (int i = 0; i < name.length(); i++) {
+			h = 31 * h + Character.toLowerCase(Character.toUpperCase(name.charAt(i)));
+		}
+		return h ^ (h >>> 16);
+	}
+
+	private static String fold(String name) {
+		StringBuilder sb = new StringBuilder(name.length());
+		for (int i = 0; i < name.length(); i++) {
+			sb.append(Character.toLowerCase(Character.toUpperCase(name.charAt(i))));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2018 Yisin Lin
+ * 
+ * https://github.com/ethancommitpush
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package com.udojava.evalex;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import idv.ethancommitpush.exbuilder.ExpNode;
+
+/**
+ * Estimates of the heap memory of objects, for a 64 bit JVM with compressed references: 12 byte
+ * object headers, 16 byte array headers, 4 byte references, objects aligned to 8 bytes and
+ * strings of one byte characters. An estimate counts each object once, however often it is
+ * referenced.
+ */
+final class RetainedSize {
+
+	static final int REFERENCE = 4;
+	private static final int HEADER = 12;
+	private static final int ARRAY_HEADER = 16;
+	/** The estimated size of the nodes a compiled regular expression keeps per character. */
+	private static final int PATTERN_NODE = 24;
+	private static final Map<Class<?>, Long> SHALLOW = new ConcurrentHashMap<Class<?>, Long>();
+	private static final Field NUMERIC = field("numeric");
+	private static final Field TEXT = field("text");
+
+	private final Map<Object, Boolean> counted = new IdentityHashMap<Object, Boolean>();
+	private long bytes;
+
+	/** @return The bytes counted so far. */
+	long getBytes() {
+		return bytes;
+	}
+
+	/** @param bytes The size of objects which are not shared, e.g. arrays. */
+	void add(long bytes) {
+		this.bytes += bytes;
+	}
+
+	/** @param s A string and its characters, may be <code>null</code>. */
+	void string(String s) {
+		if (s != null && counted.put(s, Boolean.TRUE) == null) {
+			bytes += shallow(String.class) + array(s.length(), 1);
+		}
+	}
+
+	/** @param number A number and its digits, may be <code>null</code>. */
+	void number(BigDecimal number) {
+		if (number != null && counted.put(number, Boolean.TRUE) == null) {
+			bytes += shallow(BigDecimal.class);
+			if (number.precision() > 18) {
+				// the unscaled value does not fit into a long and is kept as BigInteger
+				bytes += shallow(BigInteger.class) + array((number.unscaledValue().bitLength() + 31) / 32, 4);
+			}
+		}
+	}
+
+	/**
+	 * @param node A node with the number and text it holds, the number and text of fixed point
+	 * nodes only if they were computed already.
+	 */
+	void node(ExpNode node) {
+		if (node != null && counted.put(node, Boolean.TRUE) == null) {
+			bytes += shallow(ExpNode.class);
+			try {
+				number((BigDecimal) NUMERIC.get(node));
+				string((String) TEXT.get(node));
+			} catch (IllegalAccessException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	/**
+	 * @param function A function bound to a call site, see {@link LazyFunction#bind}, with the
+	 * strings, nodes and compiled regular expressions it holds. Other objects it references are
+	 * counted without the objects they reference, other functions are not counted.
+	 */
+	void function(LazyFunction function) {
+		if (counted.put(function, Boolean.TRUE) != null) {
+			return;
+		}
+		bytes += shallow(function.getClass());
+		for (Class<?> c = function.getClass(); c != LazyFunction.class; c = c.getSuperclass()) {
+			for (Field field : c.getDeclaredFields()) {
+				if (Modifier.isStatic(field.getModifiers()) || field.getType().isPrimitive()) {
+					continue;
+				}
+				Object value;
+				try {
+					field.setAccessible(true);
+					value = field.get(function);
+				} catch (Exception e) {
+					continue;
+				}
+				if (value instanceof String) {
+					string((String) value);
+				} else if (value instanceof ExpNode) {
+					node((ExpNode) value);
+				} else if (value instanceof Pattern) {
+					pattern((Pattern) value);
+				} else if (value != null && !(value instanceof LazyFunction) && counted.put(value, Boolean.TRUE) == null) {
+					bytes += shallow(value.getClass());
+				}
+			}
+		}
+	}
+
+	private void pattern(Pattern pattern) {
+		if (counted.put(pattern, Boolean.TRUE) == null) {
+			bytes += shallow(Pattern.class) + (long) pattern.pattern().length() * PATTERN_NODE;
+			string(pattern.pattern());
+		}
+	}
+
+	/**
+	 * @param type A class.
+	 * @return The size of an instance of the class, without the objects it references.
+	 */
+	static long shallow(Class<?> type) {
+		Long size = SHALLOW.get(type);
+		if (size == null) {
+			long bytes = HEADER;
+			for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+				for (Field field : c.getDeclaredFields()) {
+					if (!Modifier.isStatic(field.getModifiers())) {
+						bytes += fieldSize(field.getType());
+					}
+				}
+			}
+			size = align(bytes);
+			SHALLOW.put(type, size);
+		}
+		return size;
+	}
+
+	private static int fieldSize(Class<?> type) {
+		if (type == long.class || type == double.class) {
+			return 8;
+		}
+		if (type == int.class || type == float.class) {
+			return 4;
+		}
+		if (type == short.class || type == char.class) {
+			return 2;
+		}
+		if (type == byte.class || type == boolean.class) {
+			return 1;
+		}
+		return REFERENCE;
+	}
+
+	/**
+	 * @param length The length of an array.
+	 * @param elementSize The size of an element in bytes.
+	 * @return The size of the array.
+	 */
+	static long array(int length, int elementSize) {
+		return align(ARRAY_HEADER + (long) length * elementSize);
+	}
+
+	private static long align(long bytes) {
+		return (bytes + 7) & ~7L;
+	}
+
+	private static Field field(String name) {
+		try {
+			Field field = ExpNode.class.getDeclaredField(name);
+			field.setAccessible(true);
+			return field;
+		} catch (NoSuchFieldException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2018 Yisin Lin
+ * 
+ * https://github.com/ethancommitpush
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package com.udojava.evalex;
+
+import java.math.MathContext;
+import java.util.Arrays;
+import java.util.Map;
+
+import idv.ethancommitpush.exbuilder.ExpNode;
+
+/**
+ * An aggregate over a sliding time window, see {@link Expression#window}. The window is divided
+ * into a fixed number of panes, each holding an {@link Aggregate} of the values with a time in
+ * it. Values expire pane by pane as the window slides, and the result merges the panes instead
+ * of rescanning values, so the memory of a window is constant. Values older than the window
+ * when added are dropped. Windows are not thread safe, windows of the same size can be merged.
+ */
+public class SlidingWindow {
+
+	private final Aggregate.Kind kind;
+	private final Expression expression;
+	private final MathContext mc;
+	private final long paneSize;
+	private final Aggregate[] panes;
+	/** The number of the pane of time held in each slot, <code>Long.MIN_VALUE</code> if empty. */
+	private final long[] paneNumbers;
+
+	/**
+	 * Creates a window of values added with {@link #add(long, ExpNode)}.
+	 * @param kind The aggregate function.
+	 * @param mc The {@link MathContext} to round the result with, may be <code>null</code>, see
+	 *        {@link Aggregate#Aggregate(Aggregate.Kind, MathContext)}.
+	 * @param size The size of the window, in the unit of the times of the values.
+	 * @param panes The number of panes, the window slides by <code>size / panes</code>.
+	 */
+	public SlidingWindow(Aggregate.Kind kind, MathContext mc, long size, int panes) {
+		this(kind, null, mc, size, panes);
+	}
+
+	SlidingWindow(Aggregate.Kind kind, Expression expression, MathContext mc, long size, int panes) {
+		if (panes <= 0 || size < panes || size % panes != 0) {
+			throw new IllegalArgumentException("The size " + size + " of a window must be a positive multiple of its " + panes + " panes");
+		}
+		this.kind = kind;
+		this.expression = expression;
+		this.mc = mc;
+		this.paneSize = size / panes;
+		this.panes = new Aggregate[panes];
+		this.paneNumbers = new long[panes];
+		for (int i = 0; i < panes; i++) {
+			this.panes[i] = new Aggregate(kind, mc);
+		}
+		Arrays.fill(paneNumbers, Long.MIN_VALUE);
+	}
+
+	/**
+	 * Evaluates the expression of the window for a record and adds the result.
+	 * @param time The time of the record.
+	 * @param record The variables of the record.
+	 * @return This window.
+	 * @throws Exception If the evaluation fails.
+	 * @throws IllegalStateException If the window has no expression.
+	 */
+	public SlidingWindow add(long time, Map<String, ExpNode> record) throws Exception {
+		if (expression == null) {
+			throw new IllegalStateException("The window has no expression to evaluate for records");
+		}
+		return add(time, expression.eval(record, EvaluationContext.current()));
+	}
+
+	/**
+	 * Adds a value.
+	 * @param time The time of the value.
+	 * @param value The value, skipped if <code>null</code>.
+	 * @return This window.
+	 */
+	public SlidingWindow add(long time, ExpNode value) {
+		Aggregate pane = pane(Math.floorDiv(time, paneSize));
+		if (pane != null) {
+			pane.add(value);
+		}
+		return this;
+	}
+
+	/**
+	 * @param number The number of a pane of time.
+	 * @return The aggregate of the pane, <code>null</code> if it expired.
+	 */
+	private Aggregate pane(long number) {
+		int slot = (int) Math.floorMod(number, (long) panes.length);
+		if (paneNumbers[slot] != number) {
+			if (paneNumbers[slot] > number) {
+				return null;
+			}
+			panes[slot].reset();
+			paneNumbers[slot] = number;
+		}
+		return panes[slot];
+	}
+
+	/**
+	 * Adds the values of another window of the same function and size, e.g. of another thread.
+	 * @param other The other window, which is not changed.
+	 * @return This window.
+	 */
+	public SlidingWindow merge(SlidingWindow other) {
+		if (other.kind != kind || other.paneSize != paneSize || other.panes.length != panes.length) {
+			throw new IllegalArgumentException("Cannot merge windows of different functions or sizes");
+		}
+		for (int i = 0; i < panes.length; i++) {
+			if (other.paneNumbers[i] != Long.MIN_VALUE) {
+				Aggregate pane = pane(other.paneNumbers[i]);
+				if (pane != null) {
+					pane.merge(other.panes[i]);
+				}
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * @param now The current time.
+	 * @return The result of the aggregate function over the values of the window ending at <code>now</code>.
+	 */
+	public ExpNode getResult(long now) {
+		long current = Math.floorDiv(now, paneSize);
+		Aggregate total = new Aggregate(kind, expression, mc);
+		for (int i = 0; i < panes.length; i++) {
+			if (paneNumbers[i] <= current && paneNumbers[i] > current - panes.length) {
+				total.merge(panes[i]);
+			}
+		}
+		return total.getResult();
+	}
+}
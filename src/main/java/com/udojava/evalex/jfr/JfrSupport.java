@@ -0,0 +1,114 @@
+/*
+ * Copyright 2018 Yisin Lin
+ * 
+ * https://github.com/ethancommitpush
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package com.udojava.evalex.jfr;
+
+/**
+ * JDK Flight Recorder support. Expressions emit a {@link CompileEvent} for tokenizing, parsing
+ * and validating, an {@link EvalEvent} for each evaluation and a {@link FunctionEvent} for each
+ * function call. All events are disabled by default and have a threshold of 1 ms, enable them
+ * in the recording settings, e.g.
+ * <pre>
+ * jcmd &lt;pid&gt; JFR.start settings=evalex.jfc
+ * </pre>
+ * with a copy of <code>default.jfc</code> containing
+ * <pre>
+ * &lt;event name="com.udojava.evalex.Eval"&gt;
+ *   &lt;setting name="enabled"&gt;true&lt;/setting&gt;
+ *   &lt;setting name="threshold"&gt;100 us&lt;/setting&gt;
+ *   &lt;setting name="stackTrace"&gt;true&lt;/setting&gt;
+ * &lt;/event&gt;
+ * </pre>
+ * Expressions only create events while a recording enabling them is running, which is checked
+ * whenever a recording starts or stops, so settings changed while a recording is running apply
+ * once a recording starts or stops.
+ */
+public final class JfrSupport {
+
+	/** <code>true</code> if the running JVM provides the flight recorder and it is not disabled. */
+	public static final boolean AVAILABLE = isAvailable();
+
+	private static volatile boolean compileEnabled;
+	private static volatile boolean evalEnabled;
+	private static volatile boolean functionEnabled;
+
+	static {
+		if (AVAILABLE) {
+			Listener.register();
+		}
+	}
+
+	private JfrSupport() {
+	}
+
+	/** @return <code>true</code> if a running recording enables the {@link CompileEvent}. */
+	public static boolean isCompileEnabled() {
+		return compileEnabled;
+	}
+
+	/** @return <code>true</code> if a running recording enables the {@link EvalEvent}. */
+	public static boolean isEvalEnabled() {
+		return evalEnabled;
+	}
+
+	/** @return <code>true</code> if a running recording enables the {@link FunctionEvent}. */
+	public static boolean isFunctionEnabled() {
+		return functionEnabled;
+	}
+
+	private static boolean isAvailable() {
+		try {
+			Class.forName("jdk.jfr.FlightRecorder");
+			return jdk.jfr.FlightRecorder.isAvailable();
+		} catch (ClassNotFoundException e) {
+			return false;
+		} catch (LinkageError e) {
+			return false;
+		}
+	}
+
+	/** Updates the enabled flags when a recording changes its state, only loaded with the flight recorder API. */
+	private static final class Listener implements jdk.jfr.FlightRecorderListener {
+
+		static void register() {
+			Listener listener = new Listener();
+			jdk.jfr.FlightRecorder.addListener(listener);
+			if (jdk.jfr.FlightRecorder.isInitialized()) {
+				listener.update();
+			}
+		}
+
+		@Override
+		public void recordingStateChanged(jdk.jfr.Recording recording) {
+			update();
+		}
+
+		private void update() {
+			compileEnabled = jdk.jfr.EventType.getEventType(CompileEvent.class).isEnabled();
+			evalEnabled = jdk.jfr.EventType.getEventType(EvalEvent.class).isEnabled();
+			functionEnabled = jdk.jfr.EventType.getEventType(FunctionEvent.class).isEnabled();
+		}
+	}
+}
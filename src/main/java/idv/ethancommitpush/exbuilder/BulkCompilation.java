@@ -0,0 +1,200 @@
+/*
+ * Copyright 2018 Yisin Lin
+ * 
+ * https://github.com/ethancommitpush
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package idv.ethancommitpush.exbuilder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.udojava.evalex.Expression;
+
+/** The result of compiling a collection of expressions in parallel, see {@link ExpressionBuilder#compileAll}.
+ *  A failing expression does not stop the batch, its error is kept at its index instead */
+public class BulkCompilation {
+
+	private final List<String> sources;
+	private final Expression[] expressions;
+	private final RuntimeException[] errors;
+	private final int threads;
+
+	BulkCompilation(List<String> sources, Expression[] expressions, RuntimeException[] errors, int threads) {
+		this.sources = sources;
+		this.expressions = expressions;
+		this.errors = errors;
+		this.threads = threads;
+	}
+
+	/** Compile all expressions built by the factory on the given number of threads */
+	static BulkCompilation compile(List<String> sources, final ExpressionFactory factory, int threads) 
+			throws InterruptedException {
+		final List<String> input = Collections.unmodifiableList(new ArrayList<String>(sources));
+		final Expression[] expressions = new Expression[input.size()];
+		final RuntimeException[] errors = new RuntimeException[input.size()];
+		forEachSlice(input.size(), threads, new Slice() {
+			@Override
+			public void run(int from, int to) {
+				for (int i = from; i < to; i += 1) {
+					try {
+						expressions[i] = factory.create(input.get(i)).compile();
+					} catch (RuntimeException e) {
+						errors[i] = e;
+					}
+				}
+			}
+		});
+		return new BulkCompilation(input, expressions, errors, threads);
+	}
+
+	public int size() {
+		return sources.size();
+	}
+
+	public String getSource(int index) {
+		return sources.get(index);
+	}
+
+	/** @return The compiled expression, or <code>null</code> if the expression failed to compile */
+	public Expression getExpression(int index) {
+		return expressions[index];
+	}
+
+	/** @return The compile error of the expression, or <code>null</code> if it compiled */
+	public RuntimeException getError(int index) {
+		return errors[index];
+	}
+
+	/** @return All successfully compiled expressions, in the order of their sources */
+	public List<Expression> getExpressions() {
+		List<Expression> ret = new ArrayList<Expression>(expressions.length);
+		for (Expression exp : expressions) {
+			if (exp != null) {
+				ret.add(exp);
+			}
+		}
+		return ret;
+	}
+
+	/** @return The compile errors keyed by the source of the failed expression */
+	public Map<String, RuntimeException> getErrors() {
+		Map<String, RuntimeException> ret = new LinkedHashMap<String, RuntimeException>();
+		for (int i = 0; i < errors.length; i += 1) {
+			if (errors[i] != null) {
+				ret.put(sources.get(i), errors[i]);
+			}
+		}
+		return ret;
+	}
+
+	public boolean hasErrors() {
+		for (RuntimeException e : errors) {
+			if (e != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Evaluate every compiled expression against every sample binding for the given number of rounds,
+	 * so that the JIT compiles the evaluation paths before real traffic arrives. Failed evaluations
+	 * (e.g. a sample lacking a variable) do not stop the warm-up.
+	 * @return The number of failed evaluations
+	 */
+	public int warmUp(final List<Map<String, ExpNode>> sampleBindings, final int rounds) throws InterruptedException {
+		final AtomicInteger failures = new AtomicInteger();
+		forEachSlice(expressions.length, threads, new Slice() {
+			@Override
+			public void run(int from, int to) {
+				for (int round = 0; round < rounds; round += 1) {
+					for (int i = from; i < to; i += 1) {
+						if (expressions[i] == null) {
+							continue;
+						}
+						for (Map<String, ExpNode> binding : sampleBindings) {
+							try {
+								expressions[i].eval(binding);
+							} catch (Exception e) {
+								failures.incrementAndGet();
+							}
+						}
+					}
+				}
+			}
+		});
+		return failures.get();
+	}
+
+	/** Creates the expression of a source, with the definitions of the builder */
+	interface ExpressionFactory {
+		Expression create(String source);
+	}
+
+	private interface Slice {
+		void run(int from, int to);
+	}
+
+	/** Split the indexes into about four slices per thread and run them on a pool of the given size */
+	private static void forEachSlice(int size, int threads, final Slice slice) throws InterruptedException {
+		if (threads <= 1 || size <= 1) {
+			slice.run(0, size);
+			return;
+		}
+		int sliceSize = Math.max(1, (size + threads * 4 - 1) / (threads * 4));
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, size));
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int from = 0; from < size; from += sliceSize) {
+				final int start = from;
+				final int end = Math.min(size, from + sliceSize);
+				futures.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						slice.run(start, end);
+						return null;
+					}
+				}));
+			}
+			for (Future<?> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					throw new IllegalStateException(e.getCause());
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+}
@@ -28,6 +28,8 @@ package idv.ethancommitpush.exbuilder;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.math.MathContext;
+import java.util.ArrayDeque;
+import java.util.Deque;
 
 /** The object to keep both numeric and string type operands */
 public class ExpNode extends Object {
@@ -35,7 +37,27 @@ public class ExpNode extends Object {
 	public enum ExpNodeType {NUMERIC, TEXT}
 	private BigDecimal numeric;
 	private String text;
+	/** The pending concatenation of the text, if built by {@link #append(ExpNode)} */
+	private Rope rope;
 	private ExpNodeType type = ExpNodeType.TEXT;
+	/** The result of the last {@link #round(MathContext)}, reset whenever the value changes */
+	private Rounded rounded;
+	/** The value as unscaled * 10^-scale if it is a fixed point number, see {@link #fixed(long, int)} */
+	private long unscaled;
+	/** The scale of a fixed point number, -1 if the value is not one */
+	private int scale = -1;
+	/** Whether the text is built from the numeric value when first read, see {@link #valueOf(BigDecimal)} */
+	private boolean lazyText;
+
+	/** The largest scale of a fixed point number */
+	public static final int MAX_FIXED_SCALE = 18;
+	private static final long[] POWERS_OF_TEN = new long[MAX_FIXED_SCALE + 1];
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+		}
+	}
 	
 	public static ExpNode genTextExpNode(String text) {
 		ExpNode tmp = new ExpNode();
@@ -46,6 +68,44 @@ public class ExpNode extends Object {
 	public ExpNode() {
 	}
 
+	/** A fixed point number of unscaled * 10^-scale, e.g. a price, added, subtracted and multiplied
+	 *  exactly in longs as long as the results fit, else as {@link BigDecimal} */
+	public static ExpNode fixed(long unscaled, int scale) {
+		return new ExpNode().setFixed(unscaled, scale);
+	}
+
+	/** Make this node the fixed point number unscaled * 10^-scale, see {@link #fixed(long, int)}, e.g. to
+	 *  read a stream of numbers into one node without allocating */
+	public ExpNode setFixed(long unscaled, int scale) {
+		if (scale < 0 || scale > MAX_FIXED_SCALE) {
+			throw new IllegalArgumentException("The scale of a fixed point number must be 0 to " + MAX_FIXED_SCALE + ", got " + scale);
+		}
+		this.numeric = null;
+		this.text = null;
+		this.rope = null;
+		this.type = ExpNodeType.NUMERIC;
+		this.rounded = null;
+		this.unscaled = unscaled;
+		this.scale = scale;
+		this.lazyText = true;
+		return this;
+	}
+
+	/** A numeric node of the value, a {@link #fixed(long, int)} point number if it fits into one,
+	 *  the text is only built when it is read */
+	public static ExpNode valueOf(BigDecimal value) {
+		if (value.scale() >= 0 && value.scale() <= MAX_FIXED_SCALE && value.unscaledValue().bitLength() < 64) {
+			ExpNode tmp = fixed(value.unscaledValue().longValue(), value.scale());
+			tmp.numeric = value;
+			return tmp;
+		}
+		ExpNode tmp = new ExpNode();
+		tmp.type = ExpNodeType.NUMERIC;
+		tmp.numeric = value;
+		tmp.lazyText = true;
+		return tmp;
+	}
+
 	public ExpNode(int val) {
 		this(val, null);
 	}
@@ -94,19 +154,79 @@ public class ExpNode extends Object {
 	}
 
 	public BigDecimal getNumeric() {
+		BigDecimal numeric = this.numeric;
+		if (numeric == null && scale >= 0) {
+			numeric = BigDecimal.valueOf(unscaled, scale);
+			this.numeric = numeric;
+		}
 		return numeric;
 	}
 
 	public void setNumeric(BigDecimal numeric) {
+		if (scale >= 0 || lazyText) {
+			// keep the text of the previous value, as for other numbers
+			this.text = getText();
+			this.scale = -1;
+			this.lazyText = false;
+		}
 		this.numeric = numeric;
+		this.rounded = null;
 	}
 
 	public String getText() {
+		Rope rope = this.rope;
+		if (rope != null) {
+			return rope.toString();
+		}
+		String text = this.text;
+		if (text == null && lazyText) {
+			text = getNumeric().toPlainString();
+			this.text = text;
+		}
 		return text;
 	}
 
+	/** Whether the value is a {@link #fixed(long, int)} point number */
+	public boolean isFixed() {
+		return scale >= 0;
+	}
+
+	/** The number of digits of the numeric value, <code>0</code> if there is none. Read from the scaled
+	 *  long of fixed point numbers without creating their BigDecimal */
+	public int getPrecision() {
+		if (scale >= 0) {
+			return digits(unscaled);
+		}
+		return numeric != null ? numeric.precision() : 0;
+	}
+
+	/** The scale of the numeric value, <code>0</code> if there is none, see {@link #getPrecision()} */
+	public int getScale() {
+		if (scale >= 0) {
+			return scale;
+		}
+		return numeric != null ? numeric.scale() : 0;
+	}
+
 	public void setText(String text) {
 		this.text = text;
+		this.rope = null;
+		this.rounded = null;
+		this.lazyText = false;
+	}
+
+	/** A new node of the same value, sharing the immutable numeric value and text of this one */
+	public ExpNode copy() {
+		ExpNode tmp = new ExpNode();
+		tmp.numeric = this.numeric;
+		tmp.text = this.text;
+		tmp.rope = this.rope;
+		tmp.type = this.type;
+		tmp.rounded = this.rounded;
+		tmp.unscaled = this.unscaled;
+		tmp.scale = this.scale;
+		tmp.lazyText = this.lazyText;
+		return tmp;
 	}
 
 	public ExpNodeType getType() {
@@ -115,6 +235,7 @@ public class ExpNode extends Object {
 
 	public void setType(ExpNodeType type) {
 		this.type = type;
+		this.rounded = null;
 	}
 
 	public ExpNode add(ExpNode augend) {
@@ -122,11 +243,19 @@ public class ExpNode extends Object {
 	}
 
 	public ExpNode add(ExpNode augend, MathContext mc) {
-		BigDecimal ret = mc != null ? 
-				this.numeric.add(augend.getNumeric(), mc) : this.numeric.add(augend.getNumeric());
-		if (ret.remainder(BigDecimal.ONE).compareTo(BigDecimal.ZERO) == 0) {
-			ret = new BigDecimal(ret.intValue());
+		return add(augend, mc, Normalization.CANONICAL_SCALE);
+	}
+
+	public ExpNode add(ExpNode augend, MathContext mc, Normalization normalization) {
+		if (this.scale >= 0 && augend.scale >= 0) {
+			ExpNode tmp = addFixed(augend.unscaled, augend.scale, mc, normalization);
+			if (tmp != null) {
+				return tmp;
+			}
 		}
+		BigDecimal ret = mc != null ? 
+				this.getNumeric().add(augend.getNumeric(), mc) : this.getNumeric().add(augend.getNumeric());
+		ret = normalization.normalize(ret);
 		
 		ExpNode tmp = new ExpNode(ret);
 		return tmp;
@@ -137,12 +266,20 @@ public class ExpNode extends Object {
 	}
 
 	public ExpNode subtract(ExpNode subtrahend, MathContext mc) {
-		BigDecimal ret = mc != null ? 
-				this.numeric.subtract(subtrahend.getNumeric(), mc) : this.numeric.subtract(subtrahend.getNumeric());
-		if (ret.remainder(BigDecimal.ONE).compareTo(BigDecimal.ZERO) == 0) {
-			ret = new BigDecimal(ret.intValue());
+		return subtract(subtrahend, mc, Normalization.CANONICAL_SCALE);
+	}
+
+	public ExpNode subtract(ExpNode subtrahend, MathContext mc, Normalization normalization) {
+		if (this.scale >= 0 && subtrahend.scale >= 0 && subtrahend.unscaled != Long.MIN_VALUE) {
+			ExpNode tmp = addFixed(-subtrahend.unscaled, subtrahend.scale, mc, normalization);
+			if (tmp != null) {
+				return tmp;
+			}
 		}
-				
+		BigDecimal ret = mc != null ? 
+				this.getNumeric().subtract(subtrahend.getNumeric(), mc) : this.getNumeric().subtract(subtrahend.getNumeric());
+		ret = normalization.normalize(ret);
+		
 		ExpNode tmp = new ExpNode(ret);
 		return tmp;
 	}
@@ -152,11 +289,24 @@ public class ExpNode extends Object {
 	}
 
 	public ExpNode multiply(ExpNode multiplicand, MathContext mc) {
-		BigDecimal ret = mc != null ? 
-				this.numeric.multiply(multiplicand.getNumeric(), mc) : this.numeric.multiply(multiplicand.getNumeric());
-		if (ret.remainder(BigDecimal.ONE).compareTo(BigDecimal.ZERO) == 0) {
-			ret = new BigDecimal(ret.intValue());
+		return multiply(multiplicand, mc, Normalization.CANONICAL_SCALE);
+	}
+
+	public ExpNode multiply(ExpNode multiplicand, MathContext mc, Normalization normalization) {
+		if (this.scale >= 0 && multiplicand.scale >= 0 && this.scale + multiplicand.scale <= MAX_FIXED_SCALE) {
+			try {
+				ExpNode tmp = fixedResult(Math.multiplyExact(this.unscaled, multiplicand.unscaled),
+						this.scale + multiplicand.scale, mc, normalization);
+				if (tmp != null) {
+					return tmp;
+				}
+			} catch (ArithmeticException e) {
+				// overflow, multiply as BigDecimal
+			}
 		}
+		BigDecimal ret = mc != null ? 
+				this.getNumeric().multiply(multiplicand.getNumeric(), mc) : this.getNumeric().multiply(multiplicand.getNumeric());
+		ret = normalization.normalize(ret);
 		
 		ExpNode tmp = new ExpNode(ret);
 		return tmp;
@@ -167,20 +317,22 @@ public class ExpNode extends Object {
 	}
 
 	public ExpNode divide(ExpNode divisor, MathContext mc) {
+		return divide(divisor, mc, Normalization.CANONICAL_SCALE);
+	}
+
+	public ExpNode divide(ExpNode divisor, MathContext mc, Normalization normalization) {
 		BigDecimal ret = mc != null ? 
-				this.numeric.divide(divisor.getNumeric(), mc) : this.numeric.divide(divisor.getNumeric());
-		if (ret.remainder(BigDecimal.ONE).compareTo(BigDecimal.ZERO) == 0) {
-			ret = new BigDecimal(ret.intValue());
-		}
+				this.getNumeric().divide(divisor.getNumeric(), mc) : this.getNumeric().divide(divisor.getNumeric());
+		ret = normalization.normalize(ret);
 		
 		ExpNode tmp = new ExpNode(ret);
 		return tmp;
 	}
 
 	public ExpNode leftShift(int n) {
-		BigDecimal ret = this.numeric;
-		if (this.numeric.remainder(BigDecimal.ONE).compareTo(BigDecimal.ZERO) == 0) {
-			ret = new BigDecimal(this.numeric.intValue() << n);
+		BigDecimal ret = this.getNumeric();
+		if (Normalization.isInteger(ret)) {
+			ret = new BigDecimal(ret.toBigIntegerExact().shiftLeft(n));
 		}
 		
 		ExpNode tmp = new ExpNode(ret);
@@ -188,28 +340,161 @@ public class ExpNode extends Object {
 	}
 
 	public ExpNode rightShift(int n) {
-		BigDecimal ret = this.numeric;
-		if (this.numeric.remainder(BigDecimal.ONE).compareTo(BigDecimal.ZERO) == 0) {
-			ret = new BigDecimal(this.numeric.intValue() >> n);
+		BigDecimal ret = this.getNumeric();
+		if (Normalization.isInteger(ret)) {
+			ret = new BigDecimal(ret.toBigIntegerExact().shiftRight(n));
 		}
 		
 		ExpNode tmp = new ExpNode(ret);
 		return tmp;
 	}
 
+	/** Round the value into a new node, the rounded value is cached per node until the value changes,
+	 *  the text of the result is only built when it is read */
 	public ExpNode round(MathContext mc) {
-		BigDecimal ret = this.numeric.round(mc);
-		
-		ExpNode tmp = new ExpNode(ret);
-		return tmp;
+		if (this.scale >= 0 && (mc.getPrecision() == 0 || digits(this.unscaled) <= mc.getPrecision())) {
+			return fixed(this.unscaled, this.scale);
+		}
+		Rounded last = this.rounded;
+		if (last != null && last.mc.equals(mc)) {
+			return last.value.copy();
+		}
+		ExpNode value = valueOf(this.getNumeric().round(mc));
+		this.rounded = new Rounded(mc, value);
+		return value.copy();
+	}
+
+	/** Add a fixed point number to this one, <code>null</code> if the result does not fit into a fixed point number */
+	private ExpNode addFixed(long augend, int augendScale, MathContext mc, Normalization normalization) {
+		long u1 = this.unscaled;
+		long u2 = augend;
+		try {
+			if (this.scale < augendScale) {
+				u1 = Math.multiplyExact(u1, POWERS_OF_TEN[augendScale - this.scale]);
+			} else if (augendScale < this.scale) {
+				u2 = Math.multiplyExact(u2, POWERS_OF_TEN[this.scale - augendScale]);
+			}
+			return fixedResult(Math.addExact(u1, u2), Math.max(this.scale, augendScale), mc, normalization);
+		} catch (ArithmeticException e) {
+			return null;
+		}
+	}
+
+	/** The exact result of fixed point arithmetic, rounded and normalized like the BigDecimal result would be,
+	 *  <code>null</code> if it needs rounding or does not fit into a fixed point number */
+	private static ExpNode fixedResult(long unscaled, int scale, MathContext mc, Normalization normalization) {
+		if (unscaled == Long.MIN_VALUE || mc != null && mc.getPrecision() != 0 && digits(unscaled) > mc.getPrecision()) {
+			return null;
+		}
+		switch (normalization) {
+			case NONE:
+				return fixed(unscaled, scale);
+			case CANONICAL_SCALE:
+				if (scale > 0 && unscaled % POWERS_OF_TEN[scale] == 0) {
+					return fixed(unscaled / POWERS_OF_TEN[scale], 0);
+				}
+				return fixed(unscaled, scale);
+			case STRIP_TRAILING_ZEROS:
+				if (unscaled == 0) {
+					return fixed(0, 0);
+				}
+				while (scale > 0 && unscaled % 10 == 0) {
+					unscaled /= 10;
+					scale--;
+				}
+				// a negative scale, e.g. 1E+2, needs a BigDecimal
+				return unscaled % 10 != 0 ? fixed(unscaled, scale) : null;
+			default:
+				return null;
+		}
 	}
 
+	/** The number of decimal digits of a long, the precision of a BigDecimal of it */
+	private static int digits(long value) {
+		if (value == Long.MIN_VALUE) {
+			// its absolute value does not fit into a long
+			return 19;
+		}
+		long abs = Math.abs(value);
+		int digits = 1;
+		while (digits < POWERS_OF_TEN.length && abs >= POWERS_OF_TEN[digits]) {
+			digits++;
+		}
+		return digits;
+	}
+
+	/** Concatenate the texts, long texts are joined only once the text of the result is read */
 	public ExpNode append(ExpNode augend) {
+		Object left = this.rope != null ? this.rope : String.valueOf(this.getText());
+		Object right = augend.rope != null ? augend.rope : String.valueOf(augend.getText());
+		int length = Rope.length(left) + Rope.length(right);
+		if (length <= Rope.MIN_LENGTH && left instanceof String && right instanceof String) {
+			return genTextExpNode((String) left + right);
+		}
 		
-		ExpNode tmp = genTextExpNode(this.text + augend.getText());
+		ExpNode tmp = new ExpNode();
+		tmp.rope = new Rope(left, right, length);
 		return tmp;
 	}
 	
+	/** A rounded value with its math context, the node is never handed out but copied,
+	 *  so that it can be safely shared between threads */
+	private static final class Rounded {
+		private final MathContext mc;
+		private final ExpNode value;
+
+		Rounded(MathContext mc, ExpNode value) {
+			this.mc = mc;
+			this.value = value;
+		}
+	}
+
+	/** An immutable concatenation of two texts, each a String or a Rope, joined once when first read */
+	private static final class Rope {
+		/** Shorter texts are concatenated right away */
+		static final int MIN_LENGTH = 64;
+
+		private final Object left;
+		private final Object right;
+		private final int length;
+		private String joined;
+
+		Rope(Object left, Object right, int length) {
+			this.left = left;
+			this.right = right;
+			this.length = length;
+		}
+
+		static int length(Object text) {
+			return text instanceof Rope ? ((Rope) text).length : ((String) text).length();
+		}
+
+		/** Join all parts iteratively, so that long chains of concatenations cannot overflow the stack */
+		@Override
+		public String toString() {
+			String joined = this.joined;
+			if (joined == null) {
+				StringBuilder sb = new StringBuilder(length);
+				Deque<Object> parts = new ArrayDeque<Object>();
+				parts.push(this);
+				while (!parts.isEmpty()) {
+					Object part = parts.pop();
+					if (part instanceof String) {
+						sb.append((String) part);
+					} else if (((Rope) part).joined != null) {
+						sb.append(((Rope) part).joined);
+					} else {
+						parts.push(((Rope) part).right);
+						parts.push(((Rope) part).left);
+					}
+				}
+				joined = sb.toString();
+				this.joined = joined;
+			}
+			return joined;
+		}
+	}
+
 	public static ExpNode random(MathContext mc) {
 		double d = Math.random();
 		ExpNode tmp = new ExpNode(d, mc);
@@ -25,13 +25,24 @@
  */
 package idv.ethancommitpush.exbuilder;
 
+import java.io.File;
+import java.io.IOException;
 import java.math.MathContext;
 import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Map;
 
+import com.udojava.evalex.EvaluationBudget;
 import com.udojava.evalex.Expression;
+import com.udojava.evalex.ExpressionListener;
+import com.udojava.evalex.ExpressionPack;
+import com.udojava.evalex.FunctionCache;
 import com.udojava.evalex.LazyFunction;
 import com.udojava.evalex.Operator;
+import com.udojava.evalex.ProgramCache;
+
+import idv.ethancommitpush.exbuilder.ExpNode.ExpNodeType;
 
 /** The builder to keep definition of all variables, operators, and functions, 
  *  for create customized Expression without adding the definition after it was created */
@@ -42,6 +53,12 @@ public class ExpressionBuilder {
 	private Map<String, ExpNode> variableMap;
 	private Map<String, Operator> operatorMap;
 	private Map<String, LazyFunction> functionMap;
+	private ExpressionListener listener;
+	private FunctionCache functionCache;
+	private ProgramCache programCache;
+	private EvaluationBudget budget;
+	private Map<String, ExpNodeType> variableTypes;
+	private Normalization normalization = Normalization.CANONICAL_SCALE;
 	
 	public ExpressionBuilder setExpression(String strExp) {
 		this.strExp = strExp;
@@ -68,12 +85,125 @@ public class ExpressionBuilder {
 		return this;
 	}
 	
+	/** Set the listener to report compilation and evaluation of the built expressions to, e.g. an {@link ExpressionMetrics} */
+	public ExpressionBuilder setListener(ExpressionListener listener) {
+		this.listener = listener;
+		return this;
+	}
+
+	/** Set the cache for the results of pure functions, shared by all built expressions */
+	public ExpressionBuilder setFunctionCache(FunctionCache functionCache) {
+		this.functionCache = functionCache;
+		return this;
+	}
+
+	/** Set the cache of compiled programs, shared by all built expressions of the same shape */
+	public ExpressionBuilder setProgramCache(ProgramCache programCache) {
+		this.programCache = programCache;
+		return this;
+	}
+
+	/** Add the {@link StandardFunctions}, functions of the same name already set are kept */
+	public ExpressionBuilder addStandardFunctions() {
+		if (mc == null) {
+			mc = new MathContext(10, RoundingMode.HALF_EVEN);
+		}
+		Map<String, LazyFunction> functions = StandardFunctions.create(mc);
+		if (functionMap != null) {
+			functions.putAll(functionMap);
+		}
+		this.functionMap = functions;
+		return this;
+	}
+
+	/** Declare the types of variables, to check operators and functions applied to them when compiling */
+	public ExpressionBuilder setVariableTypes(Map<String, ExpNodeType> variableTypes) {
+		this.variableTypes = variableTypes;
+		return this;
+	}
+
+	/** Set the limits of each evaluation of the built expressions, e.g. for user supplied rules */
+	public ExpressionBuilder setBudget(EvaluationBudget budget) {
+		this.budget = budget;
+		return this;
+	}
+	
+	/** Set the normalization of the numbers the built expressions compute themselves, e.g. their aggregates,
+	 *  operators pick it for their own arithmetic, see {@link ExpNode#add(ExpNode, MathContext, Normalization)} */
+	public ExpressionBuilder setNormalization(Normalization normalization) {
+		this.normalization = normalization;
+		return this;
+	}
+
+	public Normalization getNormalization() {
+		return normalization;
+	}
+
+	/** @return The definitions built expressions are compiled with, compared by identity to tell whether
+	 *  expressions built before are still compiled alike */
+	Object[] getDefinitions() {
+		return new Object[] { mc, variableMap, operatorMap, functionMap, listener, functionCache, programCache, budget,
+				variableTypes, normalization };
+	}
+	
 	public Expression build() {
 		if (mc == null) {
 			mc = new MathContext(10, RoundingMode.HALF_EVEN);
 		}
 		Expression exp = new Expression(strExp, mc, variableMap, operatorMap, functionMap);
+		exp.setListener(listener);
+		exp.setFunctionCache(functionCache);
+		exp.setProgramCache(programCache);
+		exp.setBudget(budget);
+		exp.setVariableTypes(variableTypes);
+		exp.setNormalization(normalization);
 		return exp;
 	}
 
+	/** Parse and validate all expressions in parallel on one thread per available processor,
+	 *  see {@link #compileAll(Collection, int)} */
+	public BulkCompilation compileAll(Collection<String> expressions) throws InterruptedException {
+		return compileAll(expressions, Runtime.getRuntime().availableProcessors());
+	}
+
+	/** Parse and validate all expressions in parallel with the definitions of this builder. 
+	 *  Errors are reported per expression and do not stop the batch */
+	public BulkCompilation compileAll(Collection<String> expressions, int threads) throws InterruptedException {
+		if (mc == null) {
+			mc = new MathContext(10, RoundingMode.HALF_EVEN);
+		}
+		final MathContext mc = this.mc;
+		final Map<String, ExpNode> variableMap = this.variableMap;
+		final Map<String, Operator> operatorMap = this.operatorMap;
+		final Map<String, LazyFunction> functionMap = this.functionMap;
+		final ExpressionListener listener = this.listener;
+		final FunctionCache functionCache = this.functionCache;
+		final ProgramCache programCache = this.programCache;
+		final EvaluationBudget budget = this.budget;
+		final Map<String, ExpNodeType> variableTypes = this.variableTypes;
+		final Normalization normalization = this.normalization;
+		return BulkCompilation.compile(new ArrayList<String>(expressions), new BulkCompilation.ExpressionFactory() {
+			@Override
+			public Expression create(String source) {
+				return new Expression(source, mc, variableMap, operatorMap, functionMap).setListener(listener)
+						.setFunctionCache(functionCache).setProgramCache(programCache).setBudget(budget)
+						.setVariableTypes(variableTypes).setNormalization(normalization);
+			}
+		}, threads);
+	}
+
+	/** Load a pack of precompiled expressions, validated against the operators and functions of this builder */
+	public ExpressionPack loadPack(File file) throws IOException {
+		if (mc == null) {
+			mc = new MathContext(10, RoundingMode.HALF_EVEN);
+		}
+		ExpressionPack pack = ExpressionPack.load(file, mc, variableMap, operatorMap, functionMap);
+		pack.setListener(listener);
+		pack.setFunctionCache(functionCache);
+		pack.setBudget(budget);
+		pack.setVariableTypes(variableTypes);
+		pack.setNormalization(normalization);
+		return pack;
+	}
+
 }
\ No newline at end of file
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2018 Yisin Lin
+ * 
+ * https://github.com/ethancommitpush
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package idv.ethancommitpush.exbuilder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.udojava.evalex.Expression;
+import com.udojava.evalex.ExpressionListener;
+
+import idv.ethancommitpush.exbuilder.ExpNode.ExpNodeType;
+
+/** An in-process {@link ExpressionListener} keeping latency histograms, result types and failures 
+ *  per expression id, to find the slowest expressions. Expressions beyond the tracked maximum are 
+ *  aggregated under {@link #OTHER} */
+public class ExpressionMetrics implements ExpressionListener {
+
+	public static final String OTHER = "<other>";
+
+	private final int maxExpressions;
+	private final ConcurrentMap<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+
+	/** Track up to 256 expressions, each takes about 8KB for its histograms */
+	public ExpressionMetrics() {
+		this(256);
+	}
+
+	public ExpressionMetrics(int maxExpressions) {
+		this.maxExpressions = maxExpressions;
+	}
+
+	@Override
+	public void compiled(Expression expression, long nanos) {
+		stats(expression).compileLatency.record(nanos);
+	}
+
+	@Override
+	public void evaluated(Expression expression, long nanos, ExpNode result) {
+		Stats s = stats(expression);
+		s.evalLatency.record(nanos);
+		if (result == null) {
+			s.nullResults.increment();
+		} else if (result.getType() == ExpNodeType.NUMERIC) {
+			s.numericResults.increment();
+		} else {
+			s.textResults.increment();
+		}
+	}
+
+	@Override
+	public void failed(Expression expression, Phase phase, long nanos, Exception error) {
+		Stats s = stats(expression);
+		if (phase == Phase.COMPILE) {
+			s.compileFailures.increment();
+		} else {
+			s.evalLatency.record(nanos);
+			s.evalFailures.increment();
+		}
+	}
+
+	private Stats stats(Expression expression) {
+		String id = expression.getId();
+		Stats s = stats.get(id);
+		if (s == null) {
+			if (stats.size() >= maxExpressions) {
+				id = OTHER;
+			}
+			s = new Stats(id);
+			Stats existing = stats.putIfAbsent(id, s);
+			if (existing != null) {
+				s = existing;
+			}
+		}
+		return s;
+	}
+
+	/** @return The statistics of an expression id, <code>null</code> if nothing was recorded for it */
+	public Stats getStats(String id) {
+		return stats.get(id);
+	}
+
+	public Collection<Stats> getAll() {
+		return Collections.unmodifiableCollection(stats.values());
+	}
+
+	/** @return The n expressions with the highest 99th percentile of the evaluation time, slowest first */
+	public List<Stats> getSlowest(int n) {
+		List<Stats> all = new ArrayList<Stats>();
+		for (Stats s : stats.values()) {
+			all.add(new Stats(s, s.evalLatency.getPercentile(99)));
+		}
+		Collections.sort(all, new Comparator<Stats>() {
+			@Override
+			public int compare(Stats s1, Stats s2) {
+				return s1.p99 < s2.p99 ? 1 : s1.p99 > s2.p99 ? -1 : 0;
+			}
+		});
+		return all.subList(0, Math.min(n, all.size()));
+	}
+
+	public void reset() {
+		stats.clear();
+	}
+
+	/** The metrics of one expression id */
+	public static class Stats {
+		private final String id;
+		private final LatencyHistogram compileLatency;
+		private final LatencyHistogram evalLatency;
+		private final LongAdder compileFailures;
+		private final LongAdder evalFailures;
+		private final LongAdder numericResults;
+		private final LongAdder textResults;
+		private final LongAdder nullResults;
+		/** The 99th percentile of the evaluation time, captured for sorting */
+		private final long p99;
+
+		Stats(String id) {
+			this.id = id;
+			this.compileLatency = new LatencyHistogram();
+			this.evalLatency = new LatencyHistogram();
+			this.compileFailures = new LongAdder();
+			this.evalFailures = new LongAdder();
+			this.numericResults = new LongAdder();
+			this.textResults = new LongAdder();
+			this.nullResults = new LongAdder();
+			this.p99 = 0;
+		}
+
+		Stats(Stats s, long p99) {
+			this.id = s.id;
+			this.compileLatency = s.compileLatency;
+			this.evalLatency = s.evalLatency;
+			this.compileFailures = s.compileFailures;
+			this.evalFailures = s.evalFailures;
+			this.numericResults = s.numericResults;
+			this.textResults = s.textResults;
+			this.nullResults = s.nullResults;
+			this.p99 = p99;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public LatencyHistogram getCompileLatency() {
+			return compileLatency;
+		}
+
+		/** The evaluation times in nanoseconds, including failed evaluations */
+		public LatencyHistogram getEvalLatency() {
+			return evalLatency;
+		}
+
+		public long getCompileFailures() {
+			return compileFailures.sum();
+		}
+
+		public long getEvalFailures() {
+			return evalFailures.sum();
+		}
+
+		public long getResults(ExpNodeType type) {
+			return type == ExpNodeType.NUMERIC ? numericResults.sum() : textResults.sum();
+		}
+
+		public long getNullResults() {
+			return nullResults.sum();
+		}
+
+		@Override
+		public String toString() {
+			return id + ": evals=" + evalLatency.getCount() + " mean=" + evalLatency.getMean() 
+					+ "ns p99=" + evalLatency.getPercentile(99) + "ns max=" + evalLatency.getMax() 
+					+ "ns failures=" + (getCompileFailures() + getEvalFailures());
+		}
+	}
+
+}
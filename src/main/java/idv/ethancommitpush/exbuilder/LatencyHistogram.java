@@ -0,0 +1,135 @@
+/*
+ * Copyright 2018 Yisin Lin
+ * 
+ * https://github.com/ethancommitpush
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package idv.ethancommitpush.exbuilder;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/** A lock-free histogram of latencies in nanoseconds, in the manner of HdrHistogram: 
+ *  every power of two is split into 2^precisionBits linear sub-buckets, so recorded values 
+ *  are accurate to 2^-precisionBits over the whole range of long */
+public class LatencyHistogram {
+
+	private final int precisionBits;
+	private final int subBuckets;
+	private final AtomicLongArray counts;
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/** Create a histogram accurate to 12.5% in about 4KB */
+	public LatencyHistogram() {
+		this(3);
+	}
+
+	public LatencyHistogram(int precisionBits) {
+		if (precisionBits < 1 || precisionBits > 10) {
+			throw new IllegalArgumentException("precisionBits must be between 1 and 10");
+		}
+		this.precisionBits = precisionBits;
+		this.subBuckets = 1 << precisionBits;
+		this.counts = new AtomicLongArray((64 - precisionBits) * subBuckets);
+	}
+
+	public void record(long nanos) {
+		long value = Math.max(0, nanos);
+		counts.incrementAndGet(index(value));
+		count.increment();
+		sum.add(value);
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+
+	/** Add the values recorded by another histogram of the same precision, e.g. of another thread */
+	public void add(LatencyHistogram other) {
+		if (other.precisionBits != precisionBits) {
+			throw new IllegalArgumentException("Histograms of different precision cannot be added");
+		}
+		for (int i = 0; i < counts.length(); i += 1) {
+			counts.addAndGet(i, other.counts.get(i));
+		}
+		count.add(other.count.sum());
+		sum.add(other.sum.sum());
+		long value = other.max.get();
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public long getMean() {
+		long n = count.sum();
+		return n == 0 ? 0 : sum.sum() / n;
+	}
+
+	/** @return The highest value equivalent to the given percentile (0 to 100) of the recorded values */
+	public long getPercentile(double percentile) {
+		long n = 0;
+		long[] snapshot = new long[counts.length()];
+		for (int i = 0; i < snapshot.length; i += 1) {
+			snapshot[i] = counts.get(i);
+			n += snapshot[i];
+		}
+		long rank = Math.max(1, (long) Math.ceil(n * percentile / 100));
+		long seen = 0;
+		for (int i = 0; i < snapshot.length; i += 1) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(max.get(), upperBound(i));
+			}
+		}
+		return max.get();
+	}
+
+	private int index(long value) {
+		if (value < subBuckets) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - precisionBits;
+		return (shift + 1) * subBuckets + (int) ((value >>> shift) - subBuckets);
+	}
+
+	private long upperBound(int index) {
+		if (index < subBuckets) {
+			return index;
+		}
+		int shift = index / subBuckets - 1;
+		long base = (index % subBuckets) + subBuckets;
+		return ((base + 1) << shift) - 1;
+	}
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2018 Yisin Lin
+ * 
+ * https://github.com/ethancommitpush
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package idv.ethancommitpush.exbuilder;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+/** The policies to normalize the scale of the results of {@link ExpNode} arithmetic */
+public enum Normalization {
+
+	/** Keep the scale the arithmetic produced, e.g. 1.50 + 1.50 = 3.00 */
+	NONE {
+		@Override
+		public BigDecimal normalize(BigDecimal value) {
+			return value;
+		}
+	},
+
+	/** Remove all trailing zeros, e.g. 1.50 + 1.00 = 2.5 and 10 * 10 = 1E+2 */
+	STRIP_TRAILING_ZEROS {
+		@Override
+		public BigDecimal normalize(BigDecimal value) {
+			return value.signum() == 0 ? BigDecimal.ZERO : value.stripTrailingZeros();
+		}
+	},
+
+	/** Give integers scale 0 and keep the scale of other values, e.g. 1.50 + 1.50 = 3 and 1.50 + 1 = 2.50 */
+	CANONICAL_SCALE {
+		@Override
+		public BigDecimal normalize(BigDecimal value) {
+			return value.scale() != 0 && isInteger(value) ? value.setScale(0) : value;
+		}
+	};
+
+	private static final long[] POWERS_OF_TEN = new long[19];
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+		}
+	}
+
+	/** Normalize a value, without changing it numerically */
+	public abstract BigDecimal normalize(BigDecimal value);
+
+	/** Whether a value is an integer, judged from its scale and precision, and if its unscaled value
+	 *  fits into a long from a long remainder, only larger values are divided by stripping their zeros */
+	public static boolean isInteger(BigDecimal value) {
+		int scale = value.scale();
+		if (scale <= 0 || value.signum() == 0) {
+			return true;
+		}
+		if (scale >= value.precision()) {
+			// a fraction between -1 and 1
+			return false;
+		}
+		BigInteger unscaled = value.unscaledValue();
+		if (unscaled.bitLength() < 64) {
+			// the scale is less than the precision of at most 19 digits
+			return unscaled.longValue() % POWERS_OF_TEN[scale] == 0;
+		}
+		return value.stripTrailingZeros().scale() <= 0;
+	}
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2018 Yisin Lin
+ * 
+ * https://github.com/ethancommitpush
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package idv.ethancommitpush.exbuilder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.udojava.evalex.Expression;
+import com.udojava.evalex.ExpressionException;
+
+/** Keeps the current version of a catalog of rules, compiled with the definitions of a builder.
+ *  An update compiles only the added and changed rules, reuses the compiled expressions of the
+ *  unchanged ones, and publishes the new version with one atomic swap. Evaluations holding the
+ *  previous version finish on it, without locks or pauses. Once the math context, maps or any other
+ *  setting of the builder is replaced, the next update recompiles all rules. The definitions are
+ *  compared by identity, changes made inside a map the builder already holds are not detected */
+public class RuleSetManager {
+
+	private final ExpressionBuilder builder;
+	private final int threads;
+	/** The definitions of the builder the current version was compiled with, guarded by update */
+	private Object[] definitions;
+	private final AtomicReference<RuleSet> current = new AtomicReference<RuleSet>(
+			new RuleSet(0, Collections.<String, Expression>emptyMap(), 0, 0, 0));
+
+	/** Compile updates on one thread per available processor */
+	public RuleSetManager(ExpressionBuilder builder) {
+		this(builder, Runtime.getRuntime().availableProcessors());
+	}
+
+	/** Compile updates with the definitions of the builder on the given number of threads.
+	 *  The builder must not be changed while an update runs */
+	public RuleSetManager(ExpressionBuilder builder, int threads) {
+		this.builder = builder;
+		this.threads = threads;
+	}
+
+	/** @return The current version, an empty version 0 before the first update */
+	public RuleSet getCurrent() {
+		return current.get();
+	}
+
+	/**
+	 * Publish a new version of the catalog. Rules whose text did not change keep their compiled expression,
+	 * unless the definitions of the builder changed, the others are compiled in parallel. Updates are
+	 * applied one at a time.
+	 * @param catalog The text of every rule keyed by its id, the id of the compiled expression
+	 * @return The published version
+	 * @throws ExpressionException If a rule fails to compile, the current version is kept then
+	 */
+	public synchronized RuleSet update(Map<String, String> catalog) throws InterruptedException {
+		RuleSet previous = current.get();
+		Map<String, Expression> rules = new LinkedHashMap<String, Expression>();
+		List<String> ids = new ArrayList<String>();
+		List<String> sources = new ArrayList<String>();
+		int kept = 0;
+		boolean redefined = !sameDefinitions(builder.getDefinitions(), definitions);
+		for (Map.Entry<String, String> rule : catalog.entrySet()) {
+			Expression expression = previous.get(rule.getKey());
+			if (expression != null && !redefined && expression.getOriginalExpression().equals(rule.getValue())) {
+				kept++;
+			} else {
+				expression = null;
+				ids.add(rule.getKey());
+				sources.add(rule.getValue());
+			}
+			// keep the order of the catalog, compiled rules are filled in below
+			rules.put(rule.getKey(), expression);
+		}
+		BulkCompilation compilation = builder.compileAll(sources, threads);
+		if (compilation.hasErrors()) {
+			StringBuilder message = new StringBuilder("Rule set not published, rules failed to compile:");
+			for (int i = 0; i < compilation.size(); i += 1) {
+				if (compilation.getError(i) != null) {
+					message.append(' ').append(ids.get(i)).append(": ").append(compilation.getError(i).getMessage()).append(';');
+				}
+			}
+			throw new ExpressionException(message.substring(0, message.length() - 1));
+		}
+		for (int i = 0; i < compilation.size(); i += 1) {
+			rules.put(ids.get(i), compilation.getExpression(i).setId(ids.get(i)));
+		}
+		RuleSet next = new RuleSet(previous.getVersion() + 1, Collections.unmodifiableMap(rules),
+				kept, ids.size(), previous.size() - kept - changed(previous, ids));
+		definitions = builder.getDefinitions();
+		current.set(next);
+		return next;
+	}
+
+	/** @return Whether both are the same definitions, <code>false</code> if there were none before */
+	private static boolean sameDefinitions(Object[] definitions, Object[] previous) {
+		if (previous == null) {
+			return false;
+		}
+		for (int i = 0; i < definitions.length; i += 1) {
+			if (definitions[i] != previous[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** @return The number of the compiled rules which are in the previous version, i.e. changed */
+	private static int changed(RuleSet previous, List<String> ids) {
+		int changed = 0;
+		for (String id : ids) {
+			if (previous.get(id) != null) {
+				changed += 1;
+			}
+		}
+		return changed;
+	}
+
+	/** An immutable version of a catalog of compiled rules */
+	public static final class RuleSet {
+		private final long version;
+		private final Map<String, Expression> rules;
+		private final int kept;
+		private final int compiled;
+		private final int removed;
+
+		RuleSet(long version, Map<String, Expression> rules, int kept, int compiled, int removed) {
+			this.version = version;
+			this.rules = rules;
+			this.kept = kept;
+			this.compiled = compiled;
+			this.removed = removed;
+		}
+
+		public long getVersion() {
+			return version;
+		}
+
+		/** @return The compiled rule with the id, <code>null</code> if there is none */
+		public Expression get(String id) {
+			return rules.get(id);
+		}
+
+		/** @return All compiled rules keyed by id, in the order of the catalog */
+		public Map<String, Expression> getRules() {
+			return rules;
+		}
+
+		public int size() {
+			return rules.size();
+		}
+
+		/** Evaluate a rule of this version */
+		public ExpNode eval(String id, Map<String, ExpNode> variables) throws Exception {
+			Expression expression = rules.get(id);
+			if (expression == null) {
+				throw new ExpressionException("Unknown rule " + id + " in version " + version);
+			}
+			return expression.eval(variables);
+		}
+
+		/** @return The number of rules reused unchanged from the previous version */
+		public int getKept() {
+			return kept;
+		}
+
+		/** @return The number of rules added or changed since the previous version */
+		public int getCompiled() {
+			return compiled;
+		}
+
+		/** @return The number of rules of the previous version which are no longer in this one */
+		public int getRemoved() {
+			return removed;
+		}
+
+		@Override
+		public String toString() {
+			return "version " + version + ": " + rules.size() + " rules, " + kept + " kept, " + compiled + " compiled, "
+					+ removed + " removed";
+		}
+	}
+}
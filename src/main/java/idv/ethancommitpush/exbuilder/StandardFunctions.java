@@ -0,0 +1,435 @@
+/*
+ * Copyright 2018 Yisin Lin
+ * 
+ * https://github.com/ethancommitpush
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package idv.ethancommitpush.exbuilder;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import com.udojava.evalex.ExpressionException;
+import com.udojava.evalex.Function;
+import com.udojava.evalex.LazyFunction;
+import com.udojava.evalex.LazyNumber;
+
+import idv.ethancommitpush.exbuilder.ExpNode.ExpNodeType;
+
+/** The standard library of math, text, regular expression, conditional and date functions.
+ *  Conditions are true if numeric and not zero, or the text <code>true</code>; conditional
+ *  functions return numeric <code>1</code> or <code>0</code>. Regular expressions and date
+ *  patterns given as literals are compiled once with the expression, others are cached */
+public final class StandardFunctions {
+
+	/** The maximum number of cached regular expressions and date patterns */
+	private static final int CACHE_SIZE = 256;
+
+	private static final Map<String, Pattern> PATTERNS = cache();
+	private static final Map<String, DateTimeFormatter> FORMATTERS = cache();
+
+	private StandardFunctions() {
+	}
+
+	/** Create all standard functions by name, using <code>mc</code> for numeric results */
+	public static Map<String, LazyFunction> create(final MathContext mc) {
+		Map<String, LazyFunction> functions = new TreeMap<String, LazyFunction>(String.CASE_INSENSITIVE_ORDER);
+
+		// math
+		add(functions, new PureFunction("ABS", 1) {
+			@Override
+			public ExpNode eval(List<ExpNode> parameters) {
+				ExpNode v = numeric(this, parameters.get(0));
+				return v.getNumeric().signum() >= 0 ? ExpNode.valueOf(v.getNumeric()) : new ExpNode(v.getNumeric().negate(mc));
+			}
+		}.setSignature(ExpNodeType.NUMERIC, ExpNodeType.NUMERIC));
+		add(functions, new PureFunction("ROUND", 2) {
+			@Override
+			public ExpNode eval(List<ExpNode> parameters) {
+				BigDecimal v = numeric(this, parameters.get(0)).getNumeric();
+				int scale = numeric(this, parameters.get(1)).getNumeric().intValue();
+				return new ExpNode(v.setScale(scale, mc.getRoundingMode()));
+			}
+		}.setSignature(ExpNodeType.NUMERIC, ExpNodeType.NUMERIC, ExpNodeType.NUMERIC));
+		add(functions, new PureFunction("FLOOR", 1) {
+			@Override
+			public ExpNode eval(List<ExpNode> parameters) {
+				return new ExpNode(numeric(this, parameters.get(0)).getNumeric().setScale(0, RoundingMode.FLOOR));
+			}
+		}.setSignature(ExpNodeType.NUMERIC, ExpNodeType.NUMERIC));
+		add(functions, new PureFunction("CEILING", 1) {
+			@Override
+			public ExpNode eval(List<ExpNode> parameters) {
+				return new ExpNode(numeric(this, parameters.get(0)).getNumeric().setScale(0, RoundingMode.CEILING));
+			}
+		}.setSignature(ExpNodeType.NUMERIC, ExpNodeType.NUMERIC));
+		add(functions, new PureFunction("MIN", -1) {
+			@Override
+			public ExpNode eval(List<ExpNode> parameters) {
+				return extreme(this, parameters, -1);
+			}
+		}.setSignature(ExpNodeType.NUMERIC, ExpNodeType.NUMERIC));
+		add(functions, new PureFunction("MAX", -1) {
+			@Override
+			public ExpNode eval(List<ExpNode> parameters) {
+				return extreme(this, parameters, 1);
+			}
+		}.setSignature(ExpNodeType.NUMERIC, ExpNodeType.NUMERIC));
+		add(functions, new PureFunction("POW", 2) {
+			@Override
+			public ExpNode eval(List<ExpNode> parameters) {
+				BigDecimal v = numeric(this, parameters.get(0)).getNumeric();
+				return new ExpNode(v.pow(numeric(this, parameters.get(1)).getNumeric().intValueExact(), mc));
+			}
+		}.setSignature(ExpNodeType.NUMERIC, ExpNodeType.NUMERIC, ExpNodeType.NUMERIC));
+		add(functions, new PureFunction("MOD", 2) {
+			@Override
+			public ExpNode eval(List<ExpNode> parameters) {
+				BigDecimal v = numeric(this, parameters.get(0)).getNumeric();
+				return new ExpNode(v.remainder(numeric(this, parameters.get(1)).getNumeric(), mc));
+			}
+		}.setSignature(ExpNodeType.NUMERIC, ExpNodeType.NUMERIC, ExpNodeType.NUMERIC));
+
+		// text
+		add(functions, new PureFunction("LEN", 1) {
+			@Override
+			public ExpNode eval(List<ExpNode> parameters) {
+				return new ExpNode(text(this, parameters.get(0)).length());
+			}
+		}.setSignature(ExpNodeType.NUMERIC, (ExpNodeType) null));
+		add(functions, new PureFunction("UPPER", 1) {
+			@Override
+			public ExpNode eval(List<ExpNode> parameters) {
+				return ExpNode.genTextExpNode(text(this, parameters.get(0)).toUpperCase(Locale.ROOT));
+			}
+		}.setSignature(ExpNodeType.TEXT, (ExpNodeType) null));
+		add(functions, new PureFunction("LOWER", 1) {
+			@Override
+			public ExpNode eval(List<ExpNode> parameters) {
+				return ExpNode.genTextExpNode(text(this, parameters.get(0)).toLowerCase(Locale.ROOT));
+			}
+		}.setSignature(ExpNodeType.TEXT, (ExpNodeType) null));
+		add(functions, new PureFunction("TRIM", 1) {
+			@Override
+			public ExpNode eval(List<ExpNode> parameters) {
+				String text = text(this, parameters.get(0));
+				String trimmed = text.trim();
+				return trimmed.length() == text.length() && parameters.get(0).getType() == ExpNodeType.TEXT
+						? parameters.get(0).copy() : ExpNode.genTextExpNode(trimmed);
+			}
+		}.setSignature(ExpNodeType.TEXT, ExpNodeType.TEXT));
+		add(functions, new PureFunction("SUBSTR", 3) {
+			@Override
+			public ExpNode eval(List<ExpNode> parameters) {
+				String text = text(this, parameters.get(0));
+				int start = Math.max(0, Math.min(text.length(), numeric(this, parameters.get(1)).getNumeric().intValue()));
+				int end = Math.max(start, Math.min(text.length(), start + numeric(this, parameters.get(2)).getNumeric().intValue()));
+				return ExpNode.genTextExpNode(text.substring(start, end));
+			}
+		}.setSignature(ExpNodeType.TEXT, null, ExpNodeType.NUMERIC, ExpNodeType.NUMERIC));
+		add(functions, new PureFunction("CONCAT", -1) {
+			@Override
+			public ExpNode eval(List<ExpNode> parameters) {
+				ExpNode result = ExpNode.genTextExpNode("");
+				for (ExpNode parameter : parameters) {
+					text(this, parameter);
+					result = result.append(parameter);
+				}
+				return result;
+			}
+		}.setSignature(ExpNodeType.TEXT, (ExpNodeType) null));
+
+		// regular expressions
+		add(functions, new RegexFunction("MATCHES", 2) {
+			@Override
+			ExpNode eval(Pattern pattern, List<ExpNode> parameters) {
+				return bool(pattern.matcher(text(this, parameters.get(0))).find());
+			}
+		}.setSignature(ExpNodeType.NUMERIC, null, ExpNodeType.TEXT));
+		add(functions, new RegexFunction("REPLACE", 3) {
+			@Override
+			ExpNode eval(Pattern pattern, List<ExpNode> parameters) {
+				Matcher matcher = pattern.matcher(text(this, parameters.get(0)));
+				return ExpNode.genTextExpNode(matcher.replaceAll(text(this, parameters.get(2))));
+			}
+		}.setSignature(ExpNodeType.TEXT, null, ExpNodeType.TEXT, null));
+
+		// conditions
+		add(functions, new PureLazyFunction("IF", 3) {
+			@Override
+			public LazyNumber lazyEval(final List<LazyNumber> lazyParams) {
+				return new LazyNumber() {
+					public ExpNode eval() throws Exception {
+						return copy(isTrue(lazyParams.get(0).eval()) ? lazyParams.get(1).eval() : lazyParams.get(2).eval());
+					}
+
+					public String getString() throws Exception {
+						return String.valueOf(eval());
+					}
+				};
+			}
+
+			@Override
+			public int select(ExpNode[] constants) {
+				return constants[0] == null ? -1 : isTrue(constants[0]) ? 1 : 2;
+			}
+		});
+		add(functions, new PureLazyFunction("COALESCE", -1) {
+			@Override
+			public LazyNumber lazyEval(final List<LazyNumber> lazyParams) {
+				return new LazyNumber() {
+					public ExpNode eval() throws Exception {
+						for (LazyNumber lazyParam : lazyParams) {
+							ExpNode value = lazyParam.eval();
+							if (value != null) {
+								return value.copy();
+							}
+						}
+						return null;
+					}
+
+					public String getString() throws Exception {
+						return String.valueOf(eval());
+					}
+				};
+			}
+
+			@Override
+			public int select(ExpNode[] constants) {
+				return constants.length > 0 && constants[0] != null ? 0 : -1;
+			}
+		});
+		add(functions, new PureFunction("NOT", 1) {
+			@Override
+			public ExpNode eval(List<ExpNode> parameters) {
+				return bool(!isTrue(parameters.get(0)));
+			}
+		}.setSignature(ExpNodeType.NUMERIC, (ExpNodeType) null));
+
+		// dates, as milliseconds since 1970-01-01T00:00:00Z
+		add(functions, new Function("NOW", 0) {
+			@Override
+			public ExpNode eval(List<ExpNode> parameters) {
+				return new ExpNode(BigDecimal.valueOf(System.currentTimeMillis()));
+			}
+		}.setSignature(ExpNodeType.NUMERIC));
+		add(functions, new DateFormatFunction(null).setSignature(ExpNodeType.TEXT, ExpNodeType.NUMERIC, ExpNodeType.TEXT));
+		return functions;
+	}
+
+	private static void add(Map<String, LazyFunction> functions, LazyFunction function) {
+		functions.put(function.getName(), function);
+	}
+
+	/** Whether a value is a true condition */
+	public static boolean isTrue(ExpNode value) {
+		if (value == null) {
+			return false;
+		}
+		if (value.getType() == ExpNodeType.NUMERIC) {
+			return value.getNumeric().signum() != 0;
+		}
+		return "true".equalsIgnoreCase(value.getText());
+	}
+
+	private static ExpNode numeric(LazyFunction function, ExpNode value) {
+		if (value == null || value.getType() != ExpNodeType.NUMERIC || value.getNumeric() == null) {
+			throw new ExpressionException("Function " + function.getName() + " expected a numeric parameter, got "
+					+ (value == null ? "null" : value.getText()));
+		}
+		return value;
+	}
+
+	private static String text(LazyFunction function, ExpNode value) {
+		if (value == null) {
+			throw new ExpressionException("Function " + function.getName() + " expected a parameter, got null");
+		}
+		return value.getText();
+	}
+
+	private static ExpNode extreme(LazyFunction function, List<ExpNode> parameters, int sign) {
+		if (parameters.isEmpty()) {
+			throw new ExpressionException("Function " + function.getName() + " expected at least one parameter");
+		}
+		ExpNode result = numeric(function, parameters.get(0));
+		for (int i = 1; i < parameters.size(); i++) {
+			ExpNode value = numeric(function, parameters.get(i));
+			if (value.getNumeric().compareTo(result.getNumeric()) * sign > 0) {
+				result = value;
+			}
+		}
+		return ExpNode.valueOf(result.getNumeric());
+	}
+
+	/** A new node for a condition, the results of functions must not be shared as nodes are mutable */
+	private static ExpNode bool(boolean value) {
+		return new ExpNode(value ? 1 : 0);
+	}
+
+	/** A new node of a parameter returned as the result, <code>null</code> for <code>null</code> */
+	private static ExpNode copy(ExpNode value) {
+		return value != null ? value.copy() : null;
+	}
+
+	private static Pattern pattern(String regex) {
+		Pattern pattern = PATTERNS.get(regex);
+		if (pattern == null) {
+			pattern = Pattern.compile(regex);
+			PATTERNS.put(regex, pattern);
+		}
+		return pattern;
+	}
+
+	private static DateTimeFormatter formatter(String format) {
+		DateTimeFormatter formatter = FORMATTERS.get(format);
+		if (formatter == null) {
+			formatter = DateTimeFormatter.ofPattern(format).withZone(ZoneOffset.UTC);
+			FORMATTERS.put(format, formatter);
+		}
+		return formatter;
+	}
+
+	/** A bounded, thread safe map removing the least recently used entries */
+	@SuppressWarnings("serial")
+	private static <V> Map<String, V> cache() {
+		return Collections.synchronizedMap(new LinkedHashMap<String, V>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+				return size() > CACHE_SIZE;
+			}
+		});
+	}
+
+	/** A function without side effects, cheap enough to run inline in asynchronous evaluations */
+	private abstract static class PureFunction extends Function {
+
+		PureFunction(String name, int numParams) {
+			super(name, numParams);
+		}
+
+		@Override
+		public boolean isPure() {
+			return true;
+		}
+
+		@Override
+		public boolean isInline() {
+			return true;
+		}
+	}
+
+	/** A lazy function without side effects */
+	private abstract static class PureLazyFunction extends LazyFunction {
+
+		PureLazyFunction(String name, int numParams) {
+			super(name, numParams);
+		}
+
+		@Override
+		public boolean isPure() {
+			return true;
+		}
+	}
+
+	/** A function with a regular expression as second parameter, compiled with the expression if it is a literal */
+	private abstract static class RegexFunction extends PureFunction {
+		private final Pattern pattern;
+
+		RegexFunction(String name, int numParams) {
+			this(name, numParams, null);
+		}
+
+		private RegexFunction(String name, int numParams, Pattern pattern) {
+			super(name, numParams);
+			this.pattern = pattern;
+		}
+
+		@Override
+		public LazyFunction bind(ExpNode[] literals) {
+			if (pattern != null || literals.length < 2 || literals[1] == null) {
+				return this;
+			}
+			final Pattern compiled;
+			try {
+				compiled = Pattern.compile(literals[1].getText());
+			} catch (PatternSyntaxException e) {
+				throw new ExpressionException("Function " + getName() + " got an invalid regular expression: " + e.getDescription());
+			}
+			final RegexFunction unbound = this;
+			return new RegexFunction(getName(), getNumParams(), compiled) {
+				@Override
+				ExpNode eval(Pattern pattern, List<ExpNode> parameters) {
+					return unbound.eval(pattern, parameters);
+				}
+			}.setSignature(getResultType(), getParamTypes());
+		}
+
+		@Override
+		public ExpNode eval(List<ExpNode> parameters) {
+			return eval(pattern != null ? pattern : pattern(text(this, parameters.get(1))), parameters);
+		}
+
+		abstract ExpNode eval(Pattern pattern, List<ExpNode> parameters);
+	}
+
+	/** Format a date with a {@link DateTimeFormatter} pattern in UTC, compiled with the expression if it is a literal */
+	private static class DateFormatFunction extends PureFunction {
+		private final DateTimeFormatter formatter;
+
+		DateFormatFunction(DateTimeFormatter formatter) {
+			super("DATEFORMAT", 2);
+			this.formatter = formatter;
+		}
+
+		@Override
+		public LazyFunction bind(ExpNode[] literals) {
+			if (formatter != null || literals[1] == null) {
+				return this;
+			}
+			try {
+				return new DateFormatFunction(formatter(literals[1].getText())).setSignature(getResultType(), getParamTypes());
+			} catch (IllegalArgumentException e) {
+				throw new ExpressionException("Function " + getName() + " got an invalid date pattern: " + e.getMessage());
+			}
+		}
+
+		@Override
+		public ExpNode eval(List<ExpNode> parameters) {
+			long millis = numeric(this, parameters.get(0)).getNumeric().longValue();
+			DateTimeFormatter formatter = this.formatter != null ? this.formatter : formatter(text(this, parameters.get(1)));
+			return ExpNode.genTextExpNode(formatter.format(Instant.ofEpochMilli(millis)));
+		}
+	}
+}
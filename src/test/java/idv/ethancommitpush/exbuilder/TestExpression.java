@@ -25,29 +25,61 @@
  */
 package idv.ethancommitpush.exbuilder;
 
+import org.junit.Assume;
 import org.junit.Test;
 
+import com.udojava.evalex.Aggregate;
+import com.udojava.evalex.AsyncFunction;
+import com.udojava.evalex.BudgetExceededException;
+import com.udojava.evalex.Column;
+import com.udojava.evalex.EvaluationBudget;
+import com.udojava.evalex.EvaluationContext;
+import com.udojava.evalex.EvaluationProfile;
 import com.udojava.evalex.Expression;
+import com.udojava.evalex.ExpressionException;
+import com.udojava.evalex.ExpressionPack;
 import com.udojava.evalex.Function;
+import com.udojava.evalex.FunctionCache;
 import com.udojava.evalex.LazyFunction;
 import com.udojava.evalex.Operator;
+import com.udojava.evalex.ProgramCache;
+import com.udojava.evalex.Registry;
+import com.udojava.evalex.SlidingWindow;
 import com.udojava.evalex.UnaryOperator;
+import com.udojava.evalex.jfr.JfrSupport;
 
 import idv.ethancommitpush.exbuilder.ExpNode;
 import idv.ethancommitpush.exbuilder.ExpNode.ExpNodeType;
 import idv.ethancommitpush.exbuilder.ExpNodeBuilder;
 import idv.ethancommitpush.exbuilder.ExpressionBuilder;
+import idv.ethancommitpush.exbuilder.Normalization;
 import idv.ethancommitpush.exbuilder.TreeMapBuilder;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
 import java.math.BigDecimal;
+import java.nio.ByteBuffer;
 import java.math.MathContext;
 import java.math.RoundingMode;
 import java.net.InetAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
 
 public class TestExpression {
@@ -63,6 +95,837 @@ public class TestExpression {
 		System.out.println("finished");
 	}
 
+	@Test
+	public void testDeepExpression() throws Exception {
+		ExpressionBuilder builder = customExpressionBuilder();
+		StringBuilder sum = new StringBuilder("1");
+		for (int i = 1; i < 20000; i += 1) {
+			sum.append("+1");
+		}
+		assertEquals("20000", eval(builder, sum.toString()));
+
+		Map<String, Operator> operatorMap = 
+				(new TreeMapBuilder<String, Operator>(String.CASE_INSENSITIVE_ORDER))
+				.add("+", new Operator("+", 20, true, true) {
+					@Override
+					public ExpNode eval(ExpNode v1, ExpNode v2) {
+						assertNotNull(v1, v2);
+						return v1.add(v2);
+					}
+				})
+				.build();
+		builder.setOperatorMap(operatorMap);
+		assertEquals("20000", eval(builder, sum.toString()));
+		assertEquals("21", eval(builder, "1+(2+3)+round(4+5)+6"));
+	}
+
+	@Test
+	public void testExpressionPack() throws Exception {
+		ExpressionBuilder builder = customExpressionBuilder();
+		String[] exps = new String[]{"hex(0xff)+'-'+round(1.25e1)", "replace('192.168.0.1','0','633')", "(1+2)*-PI/4"};
+		List<Expression> expressions = new ArrayList<Expression>();
+		for (String exp : exps) {
+			expressions.add(builder.setExpression(exp).build());
+		}
+		File file = File.createTempFile("expressions", ".pack");
+		file.deleteOnExit();
+		ExpressionPack.write(expressions, file);
+
+		ExpressionPack pack = builder.loadPack(file);
+		assertEquals(exps.length, pack.size());
+		for (int i = exps.length - 1; i >= 0; i -= 1) {
+			assertEquals(exps[i], pack.get(i).toString());
+			assertEquals(expressions.get(i).eval().getText(), pack.get(i).eval().getText());
+		}
+
+		// the last expression is cut off in a truncated pack
+		RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+		try {
+			truncated.setLength(truncated.length() - 6);
+		} finally {
+			truncated.close();
+		}
+		pack = builder.loadPack(file);
+		assertEquals("replace('192.168.0.1','0','633')", pack.get(1).toString());
+		try {
+			pack.get(2);
+			fail();
+		} catch (UncheckedIOException e) {
+			assertEquals(true, e.getCause().getMessage().startsWith("Corrupt expression pack at offset "));
+		}
+
+		Expression literals = builder.setExpression("'abc'").build();
+		literals.eval().setText("MUTATED");
+		assertEquals("abc", literals.eval().getText());
+		literals = builder.setExpression("1.5").build();
+		literals.eval().setNumeric(BigDecimal.TEN);
+		assertEquals(new BigDecimal("1.5"), literals.eval().getNumeric());
+	}
+
+	@Test
+	public void testCompileAll() throws Exception {
+		ExpressionBuilder builder = customExpressionBuilder();
+		List<String> exps = new ArrayList<String>();
+		for (int i = 0; i < 100; i += 1) {
+			exps.add(i % 10 == 0 ? "hex(" + i : "round(" + i + "*PI)");
+		}
+		BulkCompilation compilation = builder.compileAll(exps, 4);
+		assertEquals(100, compilation.size());
+		assertEquals(90, compilation.getExpressions().size());
+		assertEquals(10, compilation.getErrors().size());
+		assertEquals(null, compilation.getExpression(50));
+		assertEquals("Mismatched parentheses", compilation.getError(50).getMessage());
+		assertEquals("3.141592654", compilation.getExpression(1).eval().getText());
+
+		List<Map<String, ExpNode>> samples = new ArrayList<Map<String, ExpNode>>();
+		samples.add(Collections.singletonMap("PI", new ExpNode(3)));
+		assertEquals(0, compilation.warmUp(samples, 10));
+		assertEquals("3", compilation.getExpression(1).eval(samples.get(0)).getText());
+	}
+
+	@Test
+	public void testMetrics() throws Exception {
+		ExpressionMetrics metrics = new ExpressionMetrics();
+		ExpressionBuilder builder = customExpressionBuilder().setListener(metrics);
+		Expression round = builder.setExpression("round(PI)").build().setId("round");
+		for (int i = 0; i < 10; i += 1) {
+			round.eval();
+		}
+		eval(builder, "ping('127.0.0.1',20)");
+		try {
+			eval(builder, "PI+x");
+			fail();
+		} catch (ExpressionException e) {
+			assertEquals("Unknown operator or function: x", e.getMessage());
+		}
+		try {
+			eval(builder, "hex(");
+			fail();
+		} catch (ExpressionException e) {
+			// expected
+		}
+
+		assertEquals(10, metrics.getStats("round").getEvalLatency().getCount());
+		assertEquals(1, metrics.getStats("round").getCompileLatency().getCount());
+		assertEquals(10, metrics.getStats("round").getResults(ExpNodeType.NUMERIC));
+		assertEquals(1, metrics.getStats("PI+x").getEvalFailures());
+		assertEquals(1, metrics.getStats("hex(").getCompileFailures());
+		assertEquals("ping('127.0.0.1',20)", metrics.getSlowest(1).get(0).getId());
+		assertEquals(4, metrics.getSlowest(10).size());
+	}
+
+	@Test
+	public void testFlightRecorderEvents() throws Exception {
+		Assume.assumeTrue(JfrSupport.AVAILABLE);
+		assertEquals(false, JfrSupport.isEvalEnabled());
+		List<String> events = new FlightRecording().record(customExpressionBuilder(), "round(PI)+hex(255)");
+		assertEquals(false, JfrSupport.isEvalEnabled());
+		assertEquals("[HEX, ROUND, com.udojava.evalex.Compile, com.udojava.evalex.Eval]", events.toString());
+	}
+
+	/** Kept apart so that the flight recorder API is only loaded if the JVM provides it. */
+	private class FlightRecording {
+
+		List<String> record(ExpressionBuilder builder, String exp) throws Exception {
+			jdk.jfr.Recording recording = new jdk.jfr.Recording();
+			recording.enable("com.udojava.evalex.Compile").withThreshold(Duration.ZERO);
+			recording.enable("com.udojava.evalex.Eval").withThreshold(Duration.ZERO);
+			recording.enable("com.udojava.evalex.Function").withThreshold(Duration.ZERO);
+			recording.start();
+			assertEquals(true, JfrSupport.isEvalEnabled());
+			eval(builder, exp);
+			recording.stop();
+			File file = File.createTempFile("expressions", ".jfr");
+			file.deleteOnExit();
+			recording.dump(file.toPath());
+			recording.close();
+
+			List<String> events = new ArrayList<String>();
+			for (jdk.jfr.consumer.RecordedEvent event : jdk.jfr.consumer.RecordingFile.readAllEvents(file.toPath())) {
+				String name = event.getEventType().getName();
+				events.add(name.equals("com.udojava.evalex.Function") ? event.getString("function") : name);
+				assertEquals(exp, event.getString("expression"));
+			}
+			Collections.sort(events);
+			return events;
+		}
+	}
+
+	@Test
+	public void testEvaluationProfile() throws Exception {
+		ExpressionBuilder builder = customExpressionBuilder();
+		Expression expression = builder.setExpression("'ping '+ping('127.0.0.1',50)+' '+replace('a.b','[.]',hex(1+2))").build();
+		EvaluationProfile profile = new EvaluationProfile(expression);
+		assertEquals("ping reachable a3b", profile.eval().getText());
+		profile.eval();
+
+		EvaluationProfile.Entry slowest = profile.getSymbols().get(0);
+		assertEquals("PING()", slowest.getLabel());
+		assertEquals(2, slowest.getCalls());
+		assertEquals(true, slowest.getExclusiveNanos() >= 100000000L);
+		String[] tree = profile.getTreeReport().split("\\r?\\n");
+		assertEquals(16, tree.length);
+		assertEquals(true, tree[1].endsWith("  +"));
+		assertEquals(true, tree[tree.length - 1].endsWith("        2"));
+		assertEquals(true, profile.getCollapsedStacks().contains(";+;+;PING();'127.0.0.1' "));
+	}
+
+	@Test
+	public void testEvalAsync() throws Exception {
+		final CountDownLatch started = new CountDownLatch(2);
+		final CountDownLatch release = new CountDownLatch(1);
+		Map<String, LazyFunction> functions = new TreeMapBuilder<String, LazyFunction>(String.CASE_INSENSITIVE_ORDER)
+				.add("AWAIT", new AsyncFunction("AWAIT", 1) {
+					@Override
+					public CompletableFuture<ExpNode> evalAsync(final List<ExpNode> parameters) {
+						started.countDown();
+						return CompletableFuture.supplyAsync(new Supplier<ExpNode>() {
+							public ExpNode get() {
+								try {
+									release.await();
+								} catch (InterruptedException e) {
+									throw new CompletionException(e);
+								}
+								return parameters.get(0);
+							}
+						}, AsyncFunction.getDefaultExecutor());
+					}
+				})
+				.add("UPPER", new Function("UPPER", 1) {
+					@Override
+					public ExpNode eval(List<ExpNode> parameters) {
+						return ExpNode.genTextExpNode(parameters.get(0).getText().toUpperCase());
+					}
+				}).build();
+		Expression expression = customExpressionBuilder().setFunctionMap(functions)
+				.setExpression("await('a')+' '+upper(await('b'))").build();
+		CompletableFuture<ExpNode> result = expression.evalAsync();
+		assertEquals(true, started.await(5, TimeUnit.SECONDS));
+		assertEquals(false, result.isDone());
+		release.countDown();
+		assertEquals("a B", result.get().getText());
+
+		// functions run on the executor, unless they are inline
+		final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+		functions.put("WHERE", new Function("WHERE", 1) {
+			@Override
+			public ExpNode eval(List<ExpNode> parameters) {
+				threads.add(Thread.currentThread());
+				return parameters.get(0);
+			}
+		});
+		functions.put("HERE", new Function("HERE", 1) {
+			@Override
+			public ExpNode eval(List<ExpNode> parameters) {
+				threads.add(Thread.currentThread());
+				return parameters.get(0);
+			}
+
+			@Override
+			public boolean isInline() {
+				return true;
+			}
+		});
+		ExpressionBuilder placed = customExpressionBuilder().setFunctionMap(functions);
+		assertEquals("x", placed.setExpression("where('x')").build().evalAsync().get().getText());
+		assertEquals("y", placed.setExpression("here('y')").build().evalAsync().get().getText());
+		assertEquals(true, threads.get(0) != Thread.currentThread());
+		assertEquals(Thread.currentThread(), threads.get(1));
+
+		ExpressionBuilder builder = customExpressionBuilder();
+		assertEquals("reachable PING", builder.setExpression("ping('127.0.0.1',20)+' '+lookup('ping')").build().evalAsync().get().getText());
+		assertEquals("PING", eval(builder, "lookup('ping')"));
+		try {
+			builder.setExpression("1+lookup(x)").build().evalAsync().get();
+			fail();
+		} catch (ExecutionException e) {
+			assertEquals(ExpressionException.class, e.getCause().getClass());
+		}
+	}
+
+	@Test
+	public void testFunctionCache() throws Exception {
+		FunctionCache cache = new FunctionCache(16, 1, TimeUnit.MINUTES);
+		ExpressionBuilder builder = customExpressionBuilder().setFunctionCache(cache);
+		assertEquals("a3b", eval(builder, "replace('a.b','[.]',hex(1+2))"));
+		assertEquals("a3b", eval(builder, "replace('a.b','[.]',hex(3))"));
+		assertEquals(1, cache.getStats("replace").getHits());
+		assertEquals(0.5, cache.getStats("HEX").getHitRatio(), 0);
+		eval(builder, "rand()+time('0')");
+		assertEquals(null, cache.getStats("RAND"));
+		assertEquals(null, cache.getStats("TIME"));
+
+		assertEquals("X", builder.setExpression("lookup('x')").build().evalAsync().get().getText());
+		assertEquals("XX", builder.setExpression("lookup('x')+lookup('x')").build().evalAsync().get().getText());
+		assertEquals("X", eval(builder, "lookup('x')"));
+		assertEquals(3, cache.getStats("LOOKUP").getHits());
+		assertEquals(1, cache.getStats("LOOKUP").getMisses());
+
+		for (int i = 0; i < 100; i++) {
+			eval(builder, "hex(" + i + ")");
+		}
+		assertEquals(true, cache.getStats("HEX").getSize() <= 16);
+		assertEquals(true, cache.getStats("HEX").getEvictions() >= 84);
+
+		builder.setExpression("hex(7)").build().eval().setText("x");
+		assertEquals("7", eval(builder, "hex(7)"));
+		Map<String, LazyFunction> functions = new TreeMapBuilder<String, LazyFunction>(String.CASE_INSENSITIVE_ORDER)
+				.add("HEX", new Function("HEX", 1) {
+					@Override
+					public boolean isPure() {
+						return true;
+					}
+
+					@Override
+					public ExpNode eval(List<ExpNode> parameters) {
+						return ExpNode.genTextExpNode("other");
+					}
+				}).build();
+		assertEquals("other", eval(customExpressionBuilder().setFunctionMap(functions).setFunctionCache(cache), "hex(7)"));
+
+		builder = customExpressionBuilder().addStandardFunctions().setFunctionCache(cache);
+		assertEquals("2", eval(builder, "if(1, 2, 1/0)"));
+		assertEquals("1", eval(builder, "coalesce(1, 1/0)"));
+		assertEquals(null, cache.getStats("IF"));
+	}
+
+	@Test
+	public void testEvaluationBudget() throws Exception {
+		ExpressionBuilder builder = customExpressionBuilder().setBudget(new EvaluationBudget()
+				.setTimeout(100, TimeUnit.MILLISECONDS).setMaxNodes(10).setMaxScale(20));
+		assertEquals("15", eval(builder, "1+2+3+4+5"));
+		assertBudgetExceeded(BudgetExceededException.Limit.NODES, builder, "1+2+3+4+5+6+7");
+		assertBudgetExceeded(BudgetExceededException.Limit.TIMEOUT, builder, "1+ping('127.0.0.1',200)");
+		assertBudgetExceeded(BudgetExceededException.Limit.SCALE, builder, "1+1e-50");
+		assertEquals("15", builder.setExpression("1+2+3+4+5").build().evalAsync().get().getText());
+		assertBudgetExceededAsync(BudgetExceededException.Limit.NODES, builder, "1+2+3+4+5+6+7");
+		assertBudgetExceededAsync(BudgetExceededException.Limit.NODES, builder, "lookup(1+2+3+4+5+6+7)");
+		assertBudgetExceededAsync(BudgetExceededException.Limit.TIMEOUT, builder, "1+ping('127.0.0.1',200)");
+		// exact powers and products too long for the budget fail before they are computed
+		ExpressionBuilder exact = new ExpressionBuilder().setMathContext(MathContext.UNLIMITED).addStandardFunctions()
+				.setBudget(new EvaluationBudget().setTimeout(1, TimeUnit.SECONDS).setMaxPrecision(30));
+		assertEquals("1024", eval(exact, "pow(2, 10)"));
+		assertBudgetExceeded(BudgetExceededException.Limit.PRECISION, exact, "pow(2, 2000000000)");
+		assertBudgetExceeded(BudgetExceededException.Limit.PRECISION, exact, "pow(1.5, 2000000000)");
+		exact = customExpressionBuilder().setMathContext(MathContext.UNLIMITED).setBudget(new EvaluationBudget().setMaxPrecision(30));
+		assertEquals("1524157875019052100", eval(exact, "1234567890*1234567890"));
+		assertBudgetExceeded(BudgetExceededException.Limit.PRECISION, exact, "1234567890123456*1234567890123456");
+		Thread.currentThread().interrupt();
+		try {
+			assertBudgetExceeded(BudgetExceededException.Limit.INTERRUPTED, builder, "1+2");
+		} finally {
+			Thread.interrupted();
+		}
+	}
+
+	private void assertBudgetExceeded(BudgetExceededException.Limit limit, ExpressionBuilder builder, String exp) throws Exception {
+		try {
+			eval(builder, exp);
+			fail();
+		} catch (BudgetExceededException e) {
+			assertEquals(limit, e.getLimit());
+		}
+	}
+
+	private void assertBudgetExceededAsync(BudgetExceededException.Limit limit, ExpressionBuilder builder, String exp) throws Exception {
+		try {
+			builder.setExpression(exp).build().evalAsync().get();
+			fail();
+		} catch (ExecutionException e) {
+			assertEquals(limit, ((BudgetExceededException) e.getCause()).getLimit());
+		}
+	}
+
+	@Test
+	public void testTypeInference() throws Exception {
+		final AtomicInteger genericCalls = new AtomicInteger();
+		Operator append = new Operator("+", 20, true) {
+			@Override
+			public ExpNode eval(ExpNode v1, ExpNode v2) {
+				return v1.append(v2);
+			}
+		};
+		Operator plus = new Operator("+", 20, true) {
+			@Override
+			public ExpNode eval(ExpNode v1, ExpNode v2) {
+				genericCalls.incrementAndGet();
+				assertNotNull(v1, v2);
+				return v1.getType() == ExpNodeType.NUMERIC && v2.getType() == ExpNodeType.NUMERIC ? v1.add(v2) : v1.append(v2);
+			}
+		}.addSignature(ExpNodeType.NUMERIC, ExpNodeType.NUMERIC, ExpNodeType.NUMERIC, new Operator("+", 20, true) {
+			@Override
+			public ExpNode eval(ExpNode v1, ExpNode v2) {
+				return v1.add(v2);
+			}
+		}).addSignature(ExpNodeType.TEXT, null, ExpNodeType.TEXT, append)
+				.addSignature(ExpNodeType.NUMERIC, ExpNodeType.TEXT, ExpNodeType.TEXT, append);
+		Operator minus = new Operator("-", 20, true) {
+			@Override
+			public ExpNode eval(ExpNode v1, ExpNode v2) {
+				return v1.subtract(v2);
+			}
+		}.addSignature(ExpNodeType.NUMERIC, ExpNodeType.NUMERIC, ExpNodeType.NUMERIC, null);
+		LazyFunction hex = new Function("HEX", 1) {
+			@Override
+			public ExpNode eval(List<ExpNode> parameters) {
+				return ExpNode.genTextExpNode(parameters.get(0).getNumeric().toBigInteger().toString(16));
+			}
+		}.setSignature(ExpNodeType.TEXT, ExpNodeType.NUMERIC);
+		Map<String, ExpNode> variableMap = new TreeMapBuilder<String, ExpNode>(String.CASE_INSENSITIVE_ORDER)
+				.add("a", new ExpNode(2)).add("s", ExpNode.genTextExpNode("x")).add("x", new ExpNode(5)).build();
+		ExpressionBuilder builder = new ExpressionBuilder()
+				.setVariableMap(variableMap)
+				.setOperatorMap(new TreeMapBuilder<String, Operator>(String.CASE_INSENSITIVE_ORDER).add("+", plus).add("-", minus).build())
+				.setFunctionMap(new TreeMapBuilder<String, LazyFunction>(String.CASE_INSENSITIVE_ORDER).add("HEX", hex).build())
+				.setVariableTypes(new TreeMapBuilder<String, ExpNodeType>(String.CASE_INSENSITIVE_ORDER)
+						.add("a", ExpNodeType.NUMERIC).add("s", ExpNodeType.TEXT).build());
+
+		assertEquals("3x", eval(builder, "a+1+s"));
+		assertEquals("ff1", eval(builder, "hex(a+253)+1"));
+		assertEquals(0, genericCalls.get());
+		assertEquals("6", eval(builder, "x+1"));
+		assertEquals(1, genericCalls.get());
+		for (String illTyped : new String[]{"s-1", "hex(s)", "hex(a)-1", "s+a-1"}) {
+			try {
+				builder.setExpression(illTyped).build().compile();
+				fail(illTyped);
+			} catch (ExpressionException e) {
+				// expected
+			}
+		}
+		try {
+			builder.setExpression("a+1").build().eval(new TreeMapBuilder<String, ExpNode>(String.CASE_INSENSITIVE_ORDER)
+					.add("a", ExpNode.genTextExpNode("2")).build());
+			fail();
+		} catch (ExpressionException e) {
+			assertEquals("Variable a is declared NUMERIC, got TEXT", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testRoundingCache() throws Exception {
+		MathContext mc = new MathContext(10, RoundingMode.HALF_EVEN);
+		ExpNode pi = new ExpNodeBuilder().setNumeric(new BigDecimal("3.14159265358979323846")).buildNumeric();
+		ExpNode rounded = pi.round(mc);
+		assertEquals(true, rounded.isFixed());
+		assertEquals("3.141592654", rounded.getText());
+		assertEquals("3.141592654", pi.round(mc).getText());
+		assertEquals("31000000000000000000", new ExpNode(new BigDecimal("314e17")).round(new MathContext(2)).getText());
+		rounded.setNumeric(BigDecimal.ONE);
+		assertEquals("3.141592654", pi.round(new MathContext(10, RoundingMode.HALF_EVEN)).getText());
+		assertEquals("3.14", pi.round(new MathContext(3)).getText());
+		pi.setNumeric(new BigDecimal("2.718281828459045"));
+		assertEquals("2.718281828", pi.round(mc).getText());
+
+		Map<String, ExpNode> variables = Collections.singletonMap("x", pi);
+		Expression expression = new ExpressionBuilder().setMathContext(mc).setVariableMap(variables)
+				.setOperatorMap(Collections.<String, Operator>emptyMap())
+				.setFunctionMap(Collections.<String, LazyFunction>emptyMap()).setExpression("x").build();
+		expression.eval().setNumeric(BigDecimal.ONE);
+		assertEquals("2.718281828", expression.eval().getText());
+	}
+
+	@Test
+	public void testNormalization() throws Exception {
+		ExpNode a = new ExpNode(new BigDecimal("1.50"));
+		ExpNode b = new ExpNode(new BigDecimal("1.50"));
+		assertEquals("3", a.add(b).getText());
+		assertEquals("3.00", a.add(b, null, Normalization.NONE).getText());
+		assertEquals("3", a.add(b, null, Normalization.STRIP_TRAILING_ZEROS).getText());
+		assertEquals("2.50", a.add(new ExpNode(1)).getText());
+		assertEquals("2.5", a.add(new ExpNode(1), null, Normalization.STRIP_TRAILING_ZEROS).getText());
+		assertEquals(0, new ExpNode(new BigDecimal("1E+3")).subtract(new ExpNode(1)).getNumeric().scale());
+		ExpNode big = new ExpNode(new BigDecimal("3000000000.00"));
+		assertEquals("3000000001", big.add(new ExpNode(1)).getText());
+		assertEquals("9000000000", big.multiply(new ExpNode(3)).getText());
+		assertEquals("1099511627776", new ExpNode(1).leftShift(40).getText());
+		assertEquals("1500000000", big.rightShift(1).getText());
+		assertEquals("2.5", new ExpNode(new BigDecimal("2.5")).leftShift(1).getText());
+		assertEquals(true, Normalization.isInteger(new BigDecimal("12.000")));
+		assertEquals(false, Normalization.isInteger(new BigDecimal("12.010")));
+		assertEquals(false, Normalization.isInteger(new BigDecimal("-0.5")));
+		assertEquals(true, Normalization.isInteger(new BigDecimal("123456789012345678901234567890.000")));
+		assertEquals(false, Normalization.isInteger(new BigDecimal("123456789012345678901234567890.001")));
+
+		ExpressionBuilder builder = new ExpressionBuilder().setOperatorMap(Collections.<String, Operator>emptyMap())
+				.setFunctionMap(Collections.<String, LazyFunction>emptyMap()).setExpression("x");
+		Map<String, ExpNode> record = Collections.singletonMap("x", new ExpNode(new BigDecimal("1.50")));
+		assertEquals("3", builder.build().aggregate(Aggregate.Kind.SUM).add(record).add(record).getResult().getText());
+		assertEquals("3.00", builder.setNormalization(Normalization.NONE).build().aggregate(Aggregate.Kind.SUM)
+				.add(record).add(record).getResult().getText());
+	}
+
+	@Test
+	public void testLongConcatenation() throws Exception {
+		ExpNode csv = ExpNode.genTextExpNode("");
+		ExpNode comma = ExpNode.genTextExpNode(",");
+		for (int i = 0; i < 200000; i++) {
+			csv = csv.append(new ExpNode(i % 10)).append(comma);
+		}
+		assertEquals(400000, csv.getText().length());
+		assertEquals("0,1,2,3,", csv.getText().substring(0, 8));
+
+		ExpNode part = ExpNode.genTextExpNode("a");
+		ExpNode joined = part.append(comma).append(part);
+		part.setText("b");
+		assertEquals("a,a", joined.getText());
+		assertEquals("a,ab", joined.append(part).getText());
+
+		StringBuilder exp = new StringBuilder("pi");
+		for (int i = 0; i < 2000; i++) {
+			exp.append("+','+").append(i);
+		}
+		String result = eval(customExpressionBuilder(), exp.toString());
+		assertEquals(true, result.startsWith("3.141592654,0,1,2,"));
+		assertEquals(true, result.endsWith(",1998,1999"));
+	}
+
+	@Test
+	public void testStandardFunctions() throws Exception {
+		ExpressionBuilder builder = customExpressionBuilder().addStandardFunctions();
+		assertEquals("3", eval(builder, "abs(-3)"));
+		assertEquals("a3b", eval(builder, "replace('a.b','[.]',hex(1+2))"));
+		assertEquals("7", eval(builder, "max(1, 5, 3)+min(2, 4)"));
+		assertEquals("ELL", eval(builder, "upper(substr('hello', 1, 3))"));
+		assertEquals("y", eval(builder, "if(len('abc')-3, 'x', 'y')"));
+		assertEquals("a1b", eval(builder, "concat('a', 1, 'b')"));
+		assertEquals("1970-01-01", eval(builder, "dateformat(0, 'yyyy-MM-dd')"));
+
+		Map<String, ExpNode> variables = new TreeMapBuilder<String, ExpNode>(String.CASE_INSENSITIVE_ORDER)
+				.add("s", ExpNode.genTextExpNode("a.b.c")).add("r", ExpNode.genTextExpNode("\\.")).add("n", null)
+				.add("v", new ExpNode(5)).build();
+		builder = new ExpressionBuilder().setVariableMap(variables)
+				.setOperatorMap(Collections.<String, Operator>emptyMap()).addStandardFunctions();
+		assertEquals("3.14", eval(builder, "round(3.14159, 2)"));
+		assertEquals("b", eval(builder, "coalesce(n, 'b')"));
+		assertEquals("a-b-c", eval(builder, "replace(s, '[.]', '-')"));
+		assertEquals("a_b_c", eval(builder, "replace(s, r, '_')"));
+		assertEquals("1", eval(builder, "matches(s, '^a')"));
+		assertEquals("0", eval(builder, "not(matches(s, r))"));
+		builder.setExpression("matches(s, '^a')").build().eval().setText("x");
+		assertEquals("1", eval(builder, "matches(s, '^a')"));
+		builder.setExpression("max(v, 1)").build().eval().setText("x");
+		builder.setExpression("abs(v)").build().eval().setText("x");
+		assertEquals("5", eval(builder, "v"));
+		Expression trim = builder.setExpression("trim('abc')").build();
+		trim.eval().setText("M2");
+		assertEquals("abc", trim.eval().getText());
+		builder.setExpression("if(v, s, 'x')").build().eval().setText("x");
+		builder.setExpression("coalesce(n, s)").build().eval().setText("x");
+		assertEquals("a.b.c", eval(builder, "s"));
+		try {
+			builder.setExpression("matches(s, '[')").build().compile();
+			fail();
+		} catch (ExpressionException e) {
+			assertEquals(true, e.getMessage().startsWith("Function MATCHES got an invalid regular expression"));
+		}
+	}
+
+	@Test
+	public void testRegistry() throws Exception {
+		MathContext mc = new MathContext(10, RoundingMode.HALF_EVEN);
+		Registry<LazyFunction> common = Registry.of(StandardFunctions.create(mc));
+		Registry<LazyFunction> tenant = common.with("Twice", new Function("TWICE", 1) {
+			@Override
+			public ExpNode eval(List<ExpNode> parameters) {
+				return parameters.get(0).add(parameters.get(0));
+			}
+		});
+		assertEquals(false, common.containsKey("twice"));
+		assertEquals(common.size() + 1, tenant.size());
+		assertEquals(common.get("ABS"), tenant.get("abs"));
+		assertEquals(common.size() - 1, tenant.without("TWICE").without("Abs").size());
+		try {
+			tenant.put("X", null);
+			fail();
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+
+		Registry<ExpNode> variables = Registry.of(Collections.singletonMap("x", new ExpNode(2)));
+		ExpressionBuilder builder = new ExpressionBuilder().setMathContext(mc)
+				.setOperatorMap(Registry.<Operator>empty()).setFunctionMap(tenant).setVariableMap(variables);
+		Expression expression = builder.setExpression("twice(max(X, 1))").build();
+		assertEquals("4", expression.eval().getText());
+		assertEquals("6", expression.eval(variables.with("X", new ExpNode(3))).getText());
+		assertEquals("4", expression.eval().getText());
+		try {
+			builder.setExpression("twice(y)").build().eval();
+			fail();
+		} catch (ExpressionException e) {
+			assertEquals("Unknown operator or function: y", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testEvaluationContext() throws Exception {
+		final MathContext mc = new MathContext(10, RoundingMode.HALF_EVEN);
+		final ExpressionBuilder inner = new ExpressionBuilder().setMathContext(mc).addStandardFunctions();
+		final EvaluationContext context = new EvaluationContext();
+		Registry<LazyFunction> functions = Registry.of(StandardFunctions.create(mc)).with("NESTED", new Function("NESTED", 2) {
+			@Override
+			public ExpNode eval(List<ExpNode> parameters) throws Exception {
+				try {
+					parameters.set(0, null);
+					fail();
+				} catch (UnsupportedOperationException e) {
+					// expected
+				}
+				StringBuilder exp = new StringBuilder("3");
+				for (int i = 0; i < 100; i++) {
+					exp.insert(0, "max(1, ").append(")");
+				}
+				ExpNode deep = inner.setExpression(exp.toString()).build().eval(Collections.<String, ExpNode>emptyMap(), context);
+				return parameters.get(0).add(parameters.get(1)).add(deep);
+			}
+		});
+		ExpressionBuilder builder = new ExpressionBuilder().setMathContext(mc).setFunctionMap(functions);
+		Expression expression = builder.setExpression("nested(x, abs(min(2, x, 5)))").build();
+		for (int i = 3; i < 6; i++) {
+			Map<String, ExpNode> variables = Collections.singletonMap("x", new ExpNode(i));
+			assertEquals(String.valueOf(i + 2 + 3), expression.eval(variables, context).getText());
+		}
+		assertEquals("8", expression.eval(Collections.singletonMap("x", new ExpNode(3))).getText());
+	}
+
+	@Test
+	public void testProgramCache() throws Exception {
+		ProgramCache cache = new ProgramCache(100);
+		ExpressionBuilder builder = customExpressionBuilder().setProgramCache(cache);
+		assertEquals("HEX ( PI * ? ) + '?'", builder.setExpression("hex(PI*4) + 'a'").build().getShape());
+		assertEquals("ca", eval(builder, "hex(PI*4) + 'a'"));
+		assertEquals("19b", eval(builder, " HEX( PI * 8 )+'b'"));
+		assertEquals("c4", eval(builder, "hex(PI*4) + 4"));
+		assertEquals("a-b.c", eval(builder, "replace('a.b.c', '^a[.]', 'a-')"));
+		assertEquals("x.b.x", eval(builder, "replace('a.b.c','[ac]','x')"));
+		assertEquals(2, cache.getHits());
+		assertEquals(3, cache.getMisses());
+		assertEquals(3, cache.getSize());
+
+		// expressions compiled with other definitions do not share programs
+		assertEquals("c8", eval(customExpressionBuilder().setProgramCache(cache), "hex(PI*4) + 8"));
+		assertEquals(2, cache.getHits());
+		// and keep the programs of both definitions
+		assertEquals("cz", eval(builder, "hex(PI*4) + 'z'"));
+		assertEquals(3, cache.getHits());
+		assertEquals(4, cache.getSize());
+		// an expression sharing a program keeps its own tokens
+		assertEquals("HEX(PI * 8) + 'b'", builder.setExpression(" HEX( PI * 8 )+'b'").build()
+				.specialize(Collections.<String, ExpNode>emptyMap()).toString());
+		// names are folded, as they are looked up ignoring case
+		assertEquals("SCORE * ?", builder.setExpression("Score * 0.75").build().getShape());
+		assertEquals("SCORE * ?", builder.setExpression("score*0.8").build().getShape());
+		Map<String, ExpNode> score = new TreeMapBuilder<String, ExpNode>(String.CASE_INSENSITIVE_ORDER)
+				.add("score", new ExpNode(new BigDecimal("0.79"))).build();
+		assertEquals("1.58", builder.setExpression("score * 2").build().eval(score).getText());
+		assertEquals("2.37", builder.setExpression("Score * 3").build().eval(score).getText());
+		assertEquals(5, cache.getHits());
+	}
+
+	@Test
+	public void testSpecialize() throws Exception {
+		ExpressionBuilder builder = customExpressionBuilder().addStandardFunctions();
+		Map<String, ExpNode> known = new TreeMapBuilder<String, ExpNode>(String.CASE_INSENSITIVE_ORDER)
+				.add("tier", new ExpNode(1)).add("rate", new ExpNode(new BigDecimal("0.5")))
+				.add("limit", new ExpNode(3)).add("name", ExpNode.genTextExpNode("banana")).build();
+		Expression expression = builder.setExpression("if(tier, x * rate, x) + limit * 2").build();
+		Expression residual = expression.specialize(known);
+		assertEquals("x * 0.5 + 6", residual.toString());
+		Map<String, ExpNode> variables = Collections.singletonMap("x", new ExpNode(4));
+		assertEquals("8", residual.eval(variables).getText());
+		assertEquals(expression.eval(new TreeMapBuilder<String, ExpNode>(String.CASE_INSENSITIVE_ORDER).add("x", new ExpNode(4))
+				.add("tier", new ExpNode(1)).add("rate", new ExpNode(new BigDecimal("0.5"))).add("limit", new ExpNode(3))
+				.build()).getText(), residual.eval(variables).getText());
+
+		assertEquals("'bbnbnb' + x", builder.setExpression("replace(name, 'a', 'b') + x").build().specialize(known).toString());
+		assertEquals("-(x - 1) * 4", builder.setExpression("-(x - (limit - 2)) * (limit + 1)").build().specialize(known).toString());
+		// the branch which fails is dropped, a failing constant is kept if the branch is unknown
+		assertEquals("2", builder.setExpression("if(tier - 1, 1 / 0, 2)").build().specialize(known).toString());
+		assertEquals("if(x, 1 / 0, 2)", builder.setExpression("if(x, 1 / 0, 2)").build().specialize(known).toString());
+		assertEquals("time(x)", builder.setExpression("time(x)").build().specialize(known).toString());
+		// the text of a residual expression is for display only
+		residual = builder.setExpression("concat(name, x)").build()
+				.specialize(Collections.singletonMap("name", ExpNode.genTextExpNode("it's")));
+		assertEquals("concat('it's', x)", residual.toString());
+		assertEquals("it's4", residual.eval(variables).getText());
+	}
+
+	@Test
+	public void testEvalBatch() throws Exception {
+		int rows = 1000;
+		// records of a double price and a long quantity
+		ByteBuffer records = ByteBuffer.allocateDirect(rows * 16);
+		for (int r = 0; r < rows; r++) {
+			records.putDouble(r * 16, r + 0.25);
+			records.putLong(r * 16 + 8, r % 7);
+		}
+		ByteBuffer totals = ByteBuffer.allocateDirect(rows * 8);
+		Map<String, Column> columns = new TreeMapBuilder<String, Column>(String.CASE_INSENSITIVE_ORDER)
+				.add("price", new Column(records, Column.Type.DOUBLE, 0, 16))
+				.add("qty", new Column(records, Column.Type.LONG, 8, 16)).build();
+		Expression expression = customExpressionBuilder().setExpression("price * qty - qty / 4").build();
+		expression.evalBatch(columns, 0, rows, Column.ofDoubles(totals));
+		for (int r = 0; r < rows; r++) {
+			assertEquals((double) r * (r % 7), totals.getDouble(r * 8), 0);
+		}
+		assertEquals(rows, columns.get("qty").getRows());
+
+		ByteBuffer rounded = ByteBuffer.allocate(rows * 4);
+		customExpressionBuilder().setExpression("qty * 2").build().evalBatch(columns, 0, rows,
+				new Column(rounded, Column.Type.INT, 0, 4));
+		assertEquals(12, rounded.getInt(6 * 4));
+		try {
+			customExpressionBuilder().setExpression("price").build().evalBatch(columns, 0, rows, Column.ofLongs(totals));
+			fail();
+		} catch (ExpressionException e) {
+			assertEquals("Column of LONG cannot hold 0.25 at row 0", e.getMessage());
+		}
+		try {
+			expression.evalBatch(columns, 0, rows + 1, Column.ofDoubles(ByteBuffer.allocate((rows + 1) * 8)));
+			fail();
+		} catch (IllegalArgumentException e) {
+			assertEquals("Rows 0 to 1001 exceed column price of 1000 rows", e.getMessage());
+		}
+		try {
+			expression.evalBatch(columns, 0, rows, Column.ofDoubles(ByteBuffer.allocate(8)));
+			fail();
+		} catch (IllegalArgumentException e) {
+			assertEquals("Rows 0 to 1000 exceed the output column of 1 rows", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testAggregate() throws Exception {
+		Expression expression = customExpressionBuilder().setExpression("price * qty").build();
+		Aggregate sum = expression.aggregate(Aggregate.Kind.SUM);
+		Aggregate max = expression.aggregate(Aggregate.Kind.MAX);
+		Aggregate partial = sum.partial();
+		for (int i = 1; i <= 100; i++) {
+			Map<String, ExpNode> record = new TreeMapBuilder<String, ExpNode>(String.CASE_INSENSITIVE_ORDER)
+					.add("price", new ExpNode(new BigDecimal("0.5"))).add("qty", new ExpNode(i)).build();
+			(i % 2 == 0 ? sum : partial).add(record);
+			max.add(record);
+		}
+		assertEquals("2525", sum.merge(partial).getResult().getText());
+		assertEquals(100, sum.getCount());
+		assertEquals("50", max.getResult().getText());
+		Aggregate avg = new Aggregate(Aggregate.Kind.AVG, new MathContext(5)).add(new ExpNode(1)).add((ExpNode) null).add(new ExpNode(2));
+		assertEquals("1.5", avg.getResult().getText());
+		assertEquals(null, new Aggregate(Aggregate.Kind.MIN, null).getResult());
+		assertEquals("0.3333333333333333333333333333333333", new Aggregate(Aggregate.Kind.AVG, null)
+				.add(new ExpNode(0)).add(new ExpNode(0)).add(new ExpNode(1)).getResult().getText());
+		assertEquals("0", new Aggregate(Aggregate.Kind.COUNT, null).getResult().getText());
+
+		// a window of 10 time units sliding by 2
+		SlidingWindow window = new SlidingWindow(Aggregate.Kind.SUM, null, 10, 5);
+		SlidingWindow other = new SlidingWindow(Aggregate.Kind.SUM, null, 10, 5);
+		for (int t = 0; t < 30; t++) {
+			(t % 3 == 0 ? other : window).add(t, new ExpNode(t));
+		}
+		assertEquals("245", window.merge(other).getResult(29).getText());
+		assertEquals("204", window.getResult(31).getText());
+		window.add(5, new ExpNode(1000));
+		assertEquals("204", window.getResult(31).getText());
+		assertEquals(null, window.getResult(100));
+	}
+
+	@Test
+	public void testFixedPoint() throws Exception {
+		MathContext mc = new MathContext(10, RoundingMode.HALF_EVEN);
+		ExpNode price = ExpNode.fixed(1999, 2);
+		ExpNode qty = ExpNode.valueOf(new BigDecimal("3"));
+		assertEquals(true, qty.isFixed());
+		assertEquals("59.97", price.multiply(qty, mc).getText());
+		assertEquals(true, price.multiply(qty, mc).isFixed());
+		assertEquals("20", price.add(ExpNode.fixed(1, 2), mc).getText());
+		assertEquals("20.00", price.add(ExpNode.fixed(1, 2), mc, Normalization.NONE).getText());
+		assertEquals("1E+2", ExpNode.fixed(10000, 2).subtract(ExpNode.fixed(0, 0), null, Normalization.STRIP_TRAILING_ZEROS)
+				.getNumeric().toString());
+
+		// results needing rounding or beyond the range of longs are computed as BigDecimal
+		ExpNode big = ExpNode.fixed(Long.MAX_VALUE, 0);
+		assertEquals(false, big.add(big).isFixed());
+		assertEquals(new BigDecimal(Long.MAX_VALUE).multiply(new BigDecimal(2)), big.add(big).getNumeric());
+		assertEquals("1.234567890E+18", ExpNode.fixed(1234567890123456789L, 0).round(mc).getNumeric().toString());
+		assertEquals("-9.22E+18", ExpNode.valueOf(new BigDecimal(Long.MIN_VALUE)).round(new MathContext(3)).getNumeric().toString());
+		assertEquals("-9.22E+18", ExpNode.valueOf(new BigDecimal(Long.MIN_VALUE + 1)).round(new MathContext(3)).getNumeric().toString());
+		ExpNode third = ExpNode.fixed(33333, 5).multiply(ExpNode.fixed(33333, 5), mc);
+		assertEquals(new BigDecimal("0.33333").multiply(new BigDecimal("0.33333"), mc), third.getNumeric());
+
+		assertEquals("x12.5", ExpNode.genTextExpNode("x").append(ExpNode.fixed(125, 1)).getText());
+		assertEquals("60.47", eval(customExpressionBuilder(), "19.99 * 3 + 0.5"));
+	}
+
+	@Test
+	public void testRetainedBytes() throws Exception {
+		ExpressionBuilder builder = customExpressionBuilder();
+		long small = builder.setExpression("x + 1").build().getRetainedBytes();
+		long large = builder.setExpression("x + 1 + 2 + 3").build().getRetainedBytes();
+		assertEquals(true, small > 0);
+		assertEquals(true, large > small);
+		// a type code, a link and an offset per token instead of a token object per token and its
+		// index arrays, which retained 1288 bytes for this expression
+		long compiled = builder.setExpression("price * qty - round(price / 4) + 1").build().getRetainedBytes();
+		assertEquals(true, compiled < 1288);
+		// equal literals share one value
+		long distinct = builder.setExpression("replace(x, 'abcdefghijklmnop', 'qrstuvwxyzabcdef')").build().getRetainedBytes();
+		long equal = builder.setExpression("replace(x, 'abcdefghijklmnop', 'abcdefghijklmnop')").build().getRetainedBytes();
+		assertEquals(true, equal < distinct);
+		// 16 more characters grow the byte arrays of the text and of the literal by 16 bytes each,
+		// the literal value shares the string of the literal
+		long shorter = builder.setExpression("x + 'abcdefgh'").build().getRetainedBytes();
+		long longer = builder.setExpression("x + 'abcdefghijklmnopqrstuvwx'").build().getRetainedBytes();
+		assertEquals(32, longer - shorter);
+		// a regular expression compiled for a call site is counted
+		builder = customExpressionBuilder().addStandardFunctions();
+		long variable = builder.setExpression("matches(x, y)").build().getRetainedBytes();
+		long literal = builder.setExpression("matches(x, 'abcdefgh')").build().getRetainedBytes();
+		assertEquals(true, literal - variable > 8 * 24);
+	}
+
+	@Test
+	public void testRuleSetManager() throws Exception {
+		ExpressionBuilder builder = customExpressionBuilder();
+		RuleSetManager manager = new RuleSetManager(builder, 2);
+		Map<String, String> catalog = new LinkedHashMap<String, String>();
+		catalog.put("double", "x * 2");
+		catalog.put("hex", "hex(x)");
+		catalog.put("old", "x - 1");
+		RuleSetManager.RuleSet first = manager.update(catalog);
+		assertEquals(1, first.getVersion());
+		assertEquals(3, first.getCompiled());
+		Map<String, ExpNode> variables = Collections.singletonMap("x", new ExpNode(26));
+		assertEquals("52", first.eval("double", variables).getText());
+
+		catalog.put("double", "x * 3");
+		catalog.remove("old");
+		catalog.put("new", "x + 1");
+		RuleSetManager.RuleSet second = manager.update(catalog);
+		assertEquals("version 2: 3 rules, 1 kept, 2 compiled, 1 removed", second.toString());
+		assertEquals(first.get("hex"), second.get("hex"));
+		assertEquals("hex", second.get("hex").getId());
+		assertEquals("78", manager.getCurrent().eval("double", variables).getText());
+		// the previous version is unchanged
+		assertEquals("52", first.eval("double", variables).getText());
+		assertEquals("25", first.eval("old", variables).getText());
+
+		catalog.put("broken", "hex(");
+		try {
+			manager.update(catalog);
+			fail();
+		} catch (ExpressionException e) {
+			assertEquals(true, e.getMessage().startsWith("Rule set not published, rules failed to compile: broken: "));
+		}
+		assertEquals(second, manager.getCurrent());
+
+		// rules are recompiled once the definitions change
+		catalog.remove("broken");
+		builder.setMathContext(new MathContext(20, RoundingMode.HALF_EVEN));
+		RuleSetManager.RuleSet third = manager.update(catalog);
+		assertEquals("version 3: 3 rules, 0 kept, 3 compiled, 0 removed", third.toString());
+		assertEquals(true, third.get("hex") != second.get("hex"));
+	}
+
 	private String eval(ExpressionBuilder builder, String exp) throws Exception {
 		long ts1 = System.currentTimeMillis();
 		Expression expression = builder.setExpression(exp).build();
@@ -185,6 +1048,11 @@ public class TestExpression {
 					}
 				}
 				, new Function("HEX", 1) {
+					@Override
+					public boolean isPure() {
+						return true;
+					}
+
 					@Override
 					public ExpNode eval(List<ExpNode> parameters) {
 						assertNotNull(parameters.get(0));
@@ -198,6 +1066,11 @@ public class TestExpression {
 					}
 				}
 				, new Function("REPLACE", 3) {
+					@Override
+					public boolean isPure() {
+						return true;
+					}
+
 					@Override
 					public ExpNode eval(List<ExpNode> parameters) {
 						assertNotNull(parameters.get(0));
@@ -225,6 +1098,26 @@ public class TestExpression {
 						return tmp;
 					}
 				}
+				, new AsyncFunction("LOOKUP", 1) {
+					@Override
+					public boolean isPure() {
+						return true;
+					}
+
+					@Override
+					public CompletableFuture<ExpNode> evalAsync(final List<ExpNode> parameters) {
+						return CompletableFuture.supplyAsync(new Supplier<ExpNode>() {
+							public ExpNode get() {
+								try {
+									Thread.sleep(300);
+								} catch (InterruptedException e) {
+									throw new CompletionException(e);
+								}
+								return ExpNode.genTextExpNode(parameters.get(0).getText().toUpperCase());
+							}
+						});
+					}
+				}
 		};
 		
 		Map<String,LazyFunction> functionMap = (new TreeMapBuilder<String, LazyFunction>(String.CASE_INSENSITIVE_ORDER))
@@ -234,6 +1127,7 @@ public class TestExpression {
 				.add("HEX", functions[3])
 				.add("REPLACE", functions[4])
 				.add("PING", functions[5])
+				.add("LOOKUP", functions[6])
 				.build();
 		ExpressionBuilder builder = 
 				(new ExpressionBuilder())